@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Line-buffered pumping of 8 MB of AppCfg --noisy style output through the
+ * block-decoding AbstractLineBufferingCharacterStreamPumper and through the old
+ * char-at-a-time implementation (kept here as {@link LegacyPumper}). Run with
+ * {@code -prof gc} to compare allocation.
+ * <p>
+ * The output is read from a file rather than a child process, to leave out
+ * process startup, and written to a log file, as MonitoredPumpStreamHandler
+ * does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineBufferingPumperBenchmark {
+
+  static final int SIZE = 8 * 1024 * 1024;
+
+  private static final String[] NOISY = {
+      "Sep 12, 2018 4:01:22 PM com.google.appengine.tools.admin.AbstractServerConnection send1\n",
+      "FINE: Sending request to https://appengine.google.com/api/appversion/addblob?path=WEB-INF%2Flib%2Fodk.jar\n",
+      "Uploading 1 files and blobs.\r\n",
+      "Cloning 2 application files. 42% done\n",
+      "INFO: Uploaded blob 'WEB-INF/lib/javarosa-2.11.0.jar' — 1,234,567 bytes\n",
+  };
+
+  @Param({"block", "legacy"})
+  public String pumper;
+
+  private File output;
+  private File log;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    StringBuilder b = new StringBuilder(SIZE + 256);
+    for (int i = 0; b.length() < SIZE; ++i) {
+      b.append(NOISY[i % NOISY.length]);
+    }
+    output = File.createTempFile("noisy", ".out");
+    log = File.createTempFile("noisy", ".log");
+    FileOutputStream out = new FileOutputStream(output);
+    try {
+      out.write(b.toString().getBytes(Charset.defaultCharset()));
+    } finally {
+      out.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    output.delete();
+    log.delete();
+  }
+
+  static class BlockPumper extends AbstractLineBufferingCharacterStreamPumper {
+    int lines;
+
+    BlockPumper(InputStream is, OutputStream os) {
+      super(is, os);
+    }
+
+    @Override
+    protected String processLineSoFar(String line, boolean hasNewLine) {
+      if (hasNewLine) {
+        ++lines;
+      }
+      return line;
+    }
+  }
+
+  /**
+   * The char-at-a-time loop that AbstractLineBufferingCharacterStreamPumper used
+   * to run, for comparison.
+   */
+  static class LegacyPumper extends AbstractStreamPumper {
+    final InputStreamReader isr;
+    final StringBuilder buf = new StringBuilder();
+    int lines;
+
+    LegacyPumper(InputStream is, OutputStream os) {
+      super(is, os);
+      isr = new InputStreamReader(is);
+    }
+
+    String processLineSoFar(String line, boolean hasNewLine) {
+      if (hasNewLine) {
+        ++lines;
+      }
+      return line;
+    }
+
+    @Override
+    protected void attemptProcessInputStreamBytes(InputStream is, OutputStream os) throws IOException {
+      boolean firstTime;
+      boolean foundEof = false;
+      boolean foundEol = false;
+      boolean foundOneChar = false;
+      for (; !foundEof; ) {
+        firstTime = true;
+        while (isr.ready() || firstTime) {
+          firstTime = false;
+          char[] cbuf = new char[1];
+          if (isr.read(cbuf, 0, 1) == -1) {
+            foundEof = true;
+            signalShouldClose();
+            break;
+          }
+          foundOneChar = true;
+          if (cbuf[0] == '\n') {
+            foundEol = true;
+            break;
+          } else {
+            buf.append(cbuf[0]);
+          }
+        }
+        if (foundOneChar) {
+          if (foundEol) {
+            String line;
+            if (buf.length() > 0 && buf.charAt(buf.length() - 1) == '\r') {
+              line = buf.substring(0, buf.length() - 1);
+            } else {
+              line = buf.toString();
+            }
+            buf.setLength(0);
+            line = processLineSoFar(line, true);
+            if (line != null) {
+              line = line + System.lineSeparator();
+              byte[] outbuf = line.getBytes();
+              os.write(outbuf);
+              os.flush();
+            }
+          } else {
+            processLineSoFar(buf.toString(), false);
+          }
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public long pump() throws IOException {
+    InputStream is = new FileInputStream(output);
+    // closed by the pumper
+    OutputStream os = new FileOutputStream(log, false);
+    // run on this thread rather than the pumper's own
+    if ("legacy".equals(pumper)) {
+      new LegacyPumper(is, os).run();
+    } else {
+      new BlockPumper(is, os).run();
+    }
+    is.close();
+    return log.length();
+  }
+}
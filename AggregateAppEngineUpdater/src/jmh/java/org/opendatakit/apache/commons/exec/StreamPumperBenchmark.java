@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pumps 100 MB of a child process's standard output through DefaultExecutor and
+ * a StreamPumper into a counting sink.
+ * <p>
+ * The child is a JVM running {@link Source}, so each operation includes its
+ * startup (compare against the "raw" pumper, which reads the process stream
+ * directly on the calling thread). The old byte-at-a-time pumper is not measured:
+ * sleeping 10 ms per byte, it would take over a week per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamPumperBenchmark {
+
+  static final long SIZE = 100L * 1024 * 1024;
+
+  @Param({"1024", "8192", "65536"})
+  public int bufferSize;
+
+  @Param({"pumper", "raw"})
+  public String pumper;
+
+  /**
+   * Writes SIZE bytes to standard output.
+   */
+  public static class Source {
+    public static void main(String[] args) throws IOException {
+      OutputStream out = new FileOutputStream(FileDescriptor.out);
+      byte[] block = new byte[64 * 1024];
+      for (long left = SIZE; left > 0; left -= block.length) {
+        out.write(block, 0, (int) Math.min(block.length, left));
+      }
+      out.close();
+    }
+  }
+
+  /**
+   * Discards and counts what it is given.
+   */
+  static class CountingSink extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  private static CommandLine sourceCommand() {
+    CommandLine cmd = new CommandLine(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.addArgument("-cp");
+    cmd.addArgument(System.getProperty("java.class.path"));
+    cmd.addArgument(Source.class.getName());
+    return cmd;
+  }
+
+  @Benchmark
+  public long pump() throws IOException, InterruptedException {
+    final CountingSink sink = new CountingSink();
+    if ("raw".equals(pumper)) {
+      Process p = new ProcessBuilder(sourceCommand().toStrings()).redirectErrorStream(true).start();
+      InputStream is = p.getInputStream();
+      byte[] b = new byte[bufferSize];
+      int n;
+      while ((n = is.read(b)) != -1) {
+        sink.write(b, 0, n);
+      }
+      p.waitFor();
+    } else {
+      final StreamPumper[] out = new StreamPumper[1];
+      DefaultExecutor executor = new DefaultExecutor();
+      executor.setStreamHandler(new PumpStreamHandler(new StreamPumperBuilder() {
+        @Override
+        public AbstractStreamPumper newStreamPumper(StreamType type, InputStream is) {
+          if (type == StreamType.OUT) {
+            out[0] = new StreamPumper(is, sink, bufferSize);
+            return out[0];
+          }
+          return new StreamPumper(is, new CountingSink(), bufferSize);
+        }
+      }));
+      executor.execute(sourceCommand(), new HashMap<String, String>());
+      out[0].waitFor();
+    }
+    if (sink.count != SIZE) {
+      throw new IllegalStateException("pumped " + sink.count + " of " + SIZE + " bytes");
+    }
+    return sink.count;
+  }
+}
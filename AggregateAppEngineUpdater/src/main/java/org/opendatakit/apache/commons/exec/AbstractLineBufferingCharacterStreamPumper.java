@@ -18,22 +18,59 @@ package org.opendatakit.apache.commons.exec;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Convert the input stream into a line-at-a-time buffered character stream.
- * Assumes the default Charset of the system for the input and output streams.
+ * Assumes the default Charset of the system for the input and output streams,
+ * unless one is given.
  * <p>
  * Calls processLineSoFar(line, hasNewLine) to process the incoming
  * line before sending it to the output stream.
+ * <p>
+ * Bytes are read a block at a time, as soon as any are available, and decoded
+ * with one reusable decoder; each block is scanned for line ends, and the lines
+ * it completes are encoded and written out together, with one flush per block.
+ * <p>
+ * If given a TriggerRegistry, the decoded characters are fed to a matcher of
+ * its patterns as they arrive, before the lines they complete are processed.
  *
  * @author mitchellsundt@gmail.com
  */
-public abstract class AbstractLineBufferingCharacterStreamPumper extends AbstractStreamPumper {
+public abstract class AbstractLineBufferingCharacterStreamPumper extends AbstractStreamPumper
+    implements PollableStreamPumper {
+
+  private static final int BLOCK_SIZE = 32768;
+
+  private final CharsetDecoder decoder;
+  private final CharsetEncoder encoder;
+
+  private final ByteBuffer bytes = ByteBuffer.allocate(BLOCK_SIZE);
+  private final CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+
+  /**
+   * the start of the current line, carried over from earlier blocks
+   */
+  private final StringBuilder buf = new StringBuilder();
 
-  InputStreamReader isr;
-  StringBuilder buf = new StringBuilder();
+  /**
+   * the lines to write out at the end of the block
+   */
+  private final StringBuilder outLines = new StringBuilder();
+  private CharBuffer outChars = CharBuffer.allocate(BLOCK_SIZE);
+  private final ByteBuffer outBytes = ByteBuffer.allocate(BLOCK_SIZE);
+
+  /**
+   * follows the stream through the trigger patterns; null if there are none
+   */
+  private final TriggerRegistry.Matcher triggers;
 
   /**
    * Create a new stream pumper.
@@ -42,14 +79,50 @@ public abstract class AbstractLineBufferingCharacterStreamPumper extends Abstrac
    * @param os output stream to write data to.
    */
   public AbstractLineBufferingCharacterStreamPumper(final InputStream is, final OutputStream os) {
+    this(is, os, Charset.defaultCharset());
+  }
+
+  /**
+   * Create a new stream pumper.
+   *
+   * @param is      input stream to read data from
+   * @param os      output stream to write data to.
+   * @param charset the encoding of both streams
+   */
+  public AbstractLineBufferingCharacterStreamPumper(final InputStream is, final OutputStream os,
+                                                    final Charset charset) {
+    this(is, os, charset, null);
+  }
+
+  /**
+   * Create a new stream pumper.
+   *
+   * @param is       input stream to read data from
+   * @param os       output stream to write data to.
+   * @param charset  the encoding of both streams
+   * @param triggers the patterns to look for in the stream, or null
+   */
+  public AbstractLineBufferingCharacterStreamPumper(final InputStream is, final OutputStream os,
+                                                    final Charset charset, final TriggerRegistry triggers) {
     super(is, os);
-    isr = new InputStreamReader(is);
+    this.triggers = (triggers == null) ? null : triggers.newMatcher();
+    // as InputStreamReader does
+    decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    encoder = charset.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
   }
 
   /**
    * Called whenever there is output. We try to call this infrequently (e.g., only when we get
    * a newline). The output line is buffered and extended until we get a hasNewLine value equal
    * to true.  Then we pay attention to the return value (which modifies what we will display.
+   * <p>
+   * A line without a newline is passed, in full so far, each time the process pauses
+   * part-way through it (e.g., at a prompt), and once more at the end of the stream;
+   * only the latter return value is written out.
    *
    * @param line
    * @param hasNewLine
@@ -60,52 +133,150 @@ public abstract class AbstractLineBufferingCharacterStreamPumper extends Abstrac
 
   protected void attemptProcessInputStreamBytes(InputStream is, OutputStream os) throws IOException {
 
-    boolean firstTime = true;
-    boolean foundEof = false;
-    boolean foundEol = false;
-    boolean foundOneChar = false;
-
-    for (; !foundEof; ) {
-      firstTime = true;
-      while (isr.ready() || firstTime) {
-        firstTime = false;
-        char[] cbuf = new char[1];
-        if (isr.read(cbuf, 0, 1) == -1) {
-          foundEof = true;
-          signalShouldClose();
-          break;
-        }
-        foundOneChar = true;
-        if (cbuf[0] == '\n') {
-          foundEol = true;
-          break;
-        } else {
-          buf.append(cbuf[0]);
-        }
+    for (; ; ) {
+      // blocks until the process has written something
+      int n = is.read(bytes.array(), bytes.position(), bytes.remaining());
+      processBlock(n, os);
+      if (n == -1) {
+        signalShouldClose();
+        break;
       }
+    }
+  }
+
+  @Override
+  public int attemptProcessAvailableBytes(InputStream is, OutputStream os) throws IOException {
+    int available = is.available();
+    if (available <= 0) {
+      return 0;
+    }
+    int n = is.read(bytes.array(), bytes.position(), Math.min(available, bytes.remaining()));
+    processBlock(n, os);
+    return n;
+  }
+
+  @Override
+  protected void processEndOfInput(OutputStream os) throws IOException {
+    processBlock(-1, os);
+  }
+
+  /**
+   * Decode and process the n bytes just read into the byte buffer.
+   *
+   * @param n the number of bytes read, or -1 at the end of the stream
+   */
+  private void processBlock(int n, OutputStream os) throws IOException {
+    boolean foundEof = (n == -1);
+    if (!foundEof) {
+      bytes.position(bytes.position() + n);
+    }
 
-      if (foundOneChar) {
-        // got at least one character -- notify observer.
-        if (foundEol) {
-          String line;
-          if (buf.length() > 0 && buf.charAt(buf.length() - 1) == '\r') {
-            line = buf.substring(0, buf.length() - 1);
-          } else {
-            line = buf.toString();
-          }
-          buf.setLength(0);
-          line = processLineSoFar(line, true);
-          if (line != null) {
-            line = line + System.lineSeparator();
-            byte[] outbuf = line.getBytes();
-            os.write(outbuf);
-            os.flush();
-          }
-        } else {
-          String line = buf.toString();
-          processLineSoFar(line, false);
+    bytes.flip();
+    boolean extended = false;
+    CoderResult result;
+    do {
+      result = decoder.decode(bytes, chars, foundEof);
+      extended |= splitLines();
+    } while (result.isOverflow());
+    bytes.compact();
+
+    if (foundEof) {
+      do {
+        result = decoder.flush(chars);
+        extended |= splitLines();
+      } while (result.isOverflow());
+      if (buf.length() > 0) {
+        String line = processLineSoFar(buf.toString(), false);
+        buf.setLength(0);
+        if (line != null) {
+          outLines.append(line);
         }
       }
+    } else if (extended && buf.length() > 0) {
+      // the process is part-way through a line -- notify observer.
+      processLineSoFar(buf.toString(), false);
+    }
+    writeLines(os);
+  }
+
+  /**
+   * Hand the complete lines in the decoded characters to processLineSoFar and
+   * keep the rest for the next block.
+   *
+   * @return true if an incomplete line was started or extended
+   */
+  private boolean splitLines() throws IOException {
+    chars.flip();
+    char[] a = chars.array();
+    int start = chars.position();
+    int end = chars.limit();
+    if (triggers != null) {
+      triggers.feed(a, start, end - start);
     }
+    for (int i = start; i < end; ++i) {
+      if (a[i] == '\n') {
+        lineFound(a, start, i);
+        start = i + 1;
+      }
+    }
+    chars.clear();
+    if (start == end) {
+      return false;
+    }
+    buf.append(a, start, end - start);
+    return true;
+  }
+
+  private void lineFound(char[] a, int start, int end) throws IOException {
+    String line;
+    if (buf.length() == 0) {
+      if (end > start && a[end - 1] == '\r') {
+        --end;
+      }
+      line = new String(a, start, end - start);
+    } else {
+      buf.append(a, start, end - start);
+      int length = buf.length();
+      if (buf.charAt(length - 1) == '\r') {
+        --length;
+      }
+      line = buf.substring(0, length);
+      buf.setLength(0);
+    }
+    line = processLineSoFar(line, true);
+    if (line != null) {
+      outLines.append(line).append(System.lineSeparator());
+    }
+  }
+
+  /**
+   * Encode and write the lines collected from the block.
+   */
+  private void writeLines(OutputStream os) throws IOException {
+    int length = outLines.length();
+    if (length == 0) {
+      return;
+    }
+    if (outChars.capacity() < length) {
+      outChars = CharBuffer.allocate(Math.max(length, 2 * outChars.capacity()));
+    }
+    outLines.getChars(0, length, outChars.array(), 0);
+    outLines.setLength(0);
+    outChars.limit(length);
+
+    encoder.reset();
+    CoderResult result;
+    do {
+      result = encoder.encode(outChars, outBytes, true);
+      os.write(outBytes.array(), 0, outBytes.position());
+      outBytes.clear();
+    } while (result.isOverflow());
+    do {
+      result = encoder.flush(outBytes);
+      os.write(outBytes.array(), 0, outBytes.position());
+      outBytes.clear();
+    } while (result.isOverflow());
+    outChars.clear();
+    os.flush();
   }
 }
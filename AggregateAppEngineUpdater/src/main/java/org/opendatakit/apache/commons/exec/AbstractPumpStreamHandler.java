@@ -126,6 +126,25 @@ public abstract class AbstractPumpStreamHandler implements ExecuteStreamHandler
     errorPumper.start();
   }
 
+  /**
+   * Pump the streams on the threads of the given service instead of threads
+   * of their own.
+   *
+   * @param service the service to pump on
+   */
+  public void start(final StreamPumpService service) {
+    service.register(outputPumper);
+    service.register(errorPumper);
+  }
+
+  /**
+   * @return true once both streams have been pumped to the end (or the pumpers
+   *     have been stopped and have consumed everything available)
+   */
+  public boolean isFinished() {
+    return outputPumper.isFinished() && errorPumper.isFinished();
+  }
+
   /**
    * Stop pumping the streams. When a timeout is specified it it is not guaranteed that the
    * pumper threads are cleanly terminated.
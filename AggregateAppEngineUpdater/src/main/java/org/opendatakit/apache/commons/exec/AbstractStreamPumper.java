@@ -44,6 +44,8 @@ import org.opendatakit.apache.commons.exec.util.DebugUtils;
  * <p>
  * - places the read-write handling within the abstract attemptProcessInputStreamBytes method.
  * - move Thread inside this class; add shouldClose flag and ability to forcibly shut down the pumper thread.
+ * - subclasses that implement PollableStreamPumper can also be pumped, without a thread
+ * of their own, by a StreamPumpService.
  * <p>
  * Copies all data from an input stream to an output stream.
  *
@@ -66,7 +68,7 @@ public abstract class AbstractStreamPumper implements Runnable {
   /**
    * signal worker thread that it should terminate
    */
-  protected boolean shouldClose = false;
+  protected volatile boolean shouldClose = false;
 
   /**
    * was the end of the stream reached
@@ -92,10 +94,42 @@ public abstract class AbstractStreamPumper implements Runnable {
   protected abstract void attemptProcessInputStreamBytes(InputStream is, OutputStream os)
       throws IOException, InterruptedException;
 
+  /**
+   * Called, for a StreamPumpService, when the input ends without read() returning -1
+   * (i.e., the process has exited and everything available has been consumed).
+   *
+   * @throws IOException
+   */
+  protected void processEndOfInput(OutputStream os) throws IOException {
+  }
+
   public void start() {
     executionThread.start();
   }
 
+  /**
+   * One non-blocking step of the pumping, taken by a StreamPumpService thread in
+   * place of run(). Only called on a PollableStreamPumper.
+   *
+   * @return the number of bytes consumed, or -1 once the pumper has finished
+   */
+  int pumpAvailable() {
+    try {
+      int n = ((PollableStreamPumper) this).attemptProcessAvailableBytes(is, os);
+      if (n == 0 && shouldClose) {
+        processEndOfInput(os);
+        n = -1;
+      }
+      if (n != -1) {
+        return n;
+      }
+    } catch (final Exception e) {
+      // nothing to do - happens quite often with watchdog
+    }
+    finish();
+    return -1;
+  }
+
   /**
    * Copies data from the input stream to the output stream. Terminates as soon
    * as the input stream is closed or an error occurs.
@@ -116,17 +150,22 @@ public abstract class AbstractStreamPumper implements Runnable {
     } catch (final Exception e) {
       // nothing to do - happens quite often with watchdog
     } finally {
-      try {
-        os.flush();
-        os.close();
-      } catch (final IOException e) {
-        final String msg = "Got exception while closing exhausted output stream";
-        DebugUtils.handleException(msg, e);
-      }
+      finish();
     }
-    synchronized (this) {
-      finished = true;
-      notifyAll();
+  }
+
+  private void finish() {
+    try {
+      os.flush();
+      os.close();
+    } catch (final IOException e) {
+      final String msg = "Got exception while closing exhausted output stream";
+      DebugUtils.handleException(msg, e);
+    } finally {
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
     }
   }
 
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a batch of commands, at most a given number at a time, e.g., one update
+ * per Aggregate app ID.
+ * <p>
+ * Nothing waits for the processes: each job is launched asynchronously through
+ * its own DefaultExecutor, and the next job is launched from the completion of
+ * the previous one. With a StreamPumpService, the whole batch runs on the
+ * service threads; otherwise each running process has the threads of an
+ * ordinary asynchronous execution.
+ * <p>
+ * With {@link FailurePolicy#FAIL_FAST}, the first job to fail stops the batch:
+ * no further job is launched, and the processes still running are destroyed.
+ * With {@link FailurePolicy#COLLECT_ALL}, every job is run whatever the others
+ * do.
+ */
+public class BatchExecutor {
+
+  public enum FailurePolicy {
+    FAIL_FAST,
+    COLLECT_ALL
+  }
+
+  private final int parallelism;
+
+  private final FailurePolicy failurePolicy;
+
+  private StreamPumpService streamPumpService;
+
+  private WatchdogService watchdogService = WatchdogService.getShared();
+
+  private ProcessDestroyer processDestroyer;
+
+  /**
+   * Run as many jobs at a time as there are processors, and every job whatever
+   * the outcome of the others.
+   */
+  public BatchExecutor() {
+    this(Runtime.getRuntime().availableProcessors(), FailurePolicy.COLLECT_ALL);
+  }
+
+  /**
+   * @param parallelism   the most processes to run at once
+   * @param failurePolicy what to do once a job has failed
+   */
+  public BatchExecutor(final int parallelism, final FailurePolicy failurePolicy) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    if (failurePolicy == null) {
+      throw new IllegalArgumentException("FailurePolicy can not be null");
+    }
+    this.parallelism = parallelism;
+    this.failurePolicy = failurePolicy;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public FailurePolicy getFailurePolicy() {
+    return failurePolicy;
+  }
+
+  public StreamPumpService getStreamPumpService() {
+    return streamPumpService;
+  }
+
+  /**
+   * @param streamPumpService the service to pump the jobs' streams on, or null
+   *                          for threads of their own
+   * @see DefaultExecutor#setStreamPumpService(StreamPumpService)
+   */
+  public void setStreamPumpService(final StreamPumpService streamPumpService) {
+    this.streamPumpService = streamPumpService;
+  }
+
+  public WatchdogService getWatchdogService() {
+    return watchdogService;
+  }
+
+  /**
+   * @param watchdogService the service to time jobs out on (by default
+   *                        WatchdogService.getShared()), or null for a thread
+   *                        per job with a timeout
+   */
+  public void setWatchdogService(final WatchdogService watchdogService) {
+    this.watchdogService = watchdogService;
+  }
+
+  public ProcessDestroyer getProcessDestroyer() {
+    return processDestroyer;
+  }
+
+  /**
+   * @param processDestroyer told of every process of the batch as well (e.g., a
+   *                         ShutdownHookProcessDestroyer); may be null
+   */
+  public void setProcessDestroyer(final ProcessDestroyer processDestroyer) {
+    this.processDestroyer = processDestroyer;
+  }
+
+  /**
+   * Start running the jobs. The jobs must not share stream handlers.
+   *
+   * @param jobs the jobs, launched in this order
+   * @return completes once every job has a result
+   */
+  public CompletableFuture<BatchResult> executeAsync(final Collection<BatchJob> jobs) {
+    final Batch batch = new Batch(jobs.toArray(new BatchJob[jobs.size()]));
+    batch.launchMore();
+    return batch.future;
+  }
+
+  /**
+   * Run the jobs, and wait for them. If interrupted, the batch is aborted.
+   *
+   * @param jobs the jobs, launched in this order
+   * @return the result of every job
+   * @throws InterruptedException if the current thread was interrupted
+   */
+  public BatchResult execute(final Collection<BatchJob> jobs) throws InterruptedException {
+    final Batch batch = new Batch(jobs.toArray(new BatchJob[jobs.size()]));
+    batch.launchMore();
+    try {
+      return batch.future.get();
+    } catch (final InterruptedException e) {
+      batch.abort();
+      throw e;
+    } catch (final ExecutionException e) {
+      // the future is only ever completed normally
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * The state of one run of the jobs. It is also the ProcessDestroyer of their
+   * executors, which is how it knows the processes to destroy on an abort.
+   */
+  private final class Batch implements ProcessDestroyer {
+    final BatchJob[] jobs;
+    final BatchResult.JobResult[] results;
+    final CompletableFuture<BatchResult> future = new CompletableFuture<BatchResult>();
+    final long startNanos = System.nanoTime();
+
+    /** the processes running, if the batch has not been aborted */
+    private final Set<Process> processes = new HashSet<Process>();
+    private int next = 0;
+    private int running = 0;
+    private boolean aborted = false;
+    private boolean completed = false;
+    /** a thread is in the launch loop of launchMore */
+    private boolean launching = false;
+
+    Batch(final BatchJob[] jobs) {
+      this.jobs = jobs;
+      this.results = new BatchResult.JobResult[jobs.length];
+    }
+
+    /**
+     * Launch jobs up to the parallelism limit, or complete the batch if there
+     * are none left to launch or wait for.
+     * <p>
+     * A launch that fails reports, and so calls back here, before it returns.
+     * Rather than recursing, such a call leaves the work to the thread already
+     * in the loop, which takes the state afresh on every pass; so a long run of
+     * failing jobs takes no stack.
+     */
+    void launchMore() {
+      synchronized (this) {
+        if (launching) {
+          return;
+        }
+        launching = true;
+      }
+      for (; ; ) {
+        final int index;
+        BatchResult result = null;
+        synchronized (this) {
+          if (!aborted && running < parallelism && next < jobs.length) {
+            index = next++;
+            ++running;
+          } else {
+            index = -1;
+            launching = false;
+            if (running == 0 && !completed && (aborted || next == jobs.length)) {
+              completed = true;
+              result = toResult();
+            }
+          }
+        }
+        if (index == -1) {
+          if (result != null) {
+            future.complete(result);
+          }
+          return;
+        }
+        // outside the lock, as the launch may report at once
+        launch(index);
+      }
+    }
+
+    private void launch(final int index) {
+      final boolean skip;
+      synchronized (this) {
+        // aborted since launchMore; the job is left not started
+        skip = aborted;
+        if (skip) {
+          --running;
+        }
+      }
+      if (skip) {
+        launchMore();
+        return;
+      }
+      final BatchJob job = jobs[index];
+      final DefaultExecutor executor = new DefaultExecutor();
+      executor.setWorkingDirectory(job.getWorkingDirectory());
+      if (job.getStreamHandler() != null) {
+        executor.setStreamHandler(job.getStreamHandler());
+      }
+      executor.setStreamPumpService(streamPumpService);
+      executor.setProcessDestroyer(this);
+      final ExecuteWatchdog watchdog = (job.getTimeout() == ExecuteWatchdog.INFINITE_TIMEOUT) ? null :
+          new ExecuteWatchdog(job.getTimeout(), watchdogService);
+      executor.setWatchdog(watchdog);
+
+      final DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+      handler.setExecuteStreamHandler(executor.getStreamHandler());
+      final long startMillis = System.currentTimeMillis();
+      final long start = System.nanoTime();
+      handler.getFuture().whenComplete((exitValue, failure) ->
+          finished(index, handler, watchdog, startMillis, System.nanoTime() - start));
+      try {
+        executor.execute(job.getCommandLine(), job.getEnvironment(), handler);
+      } catch (final IOException e) {
+        handler.onProcessFailed(new ExecuteException("Execution failed", Executor.INVALID_EXITVALUE, e));
+      }
+    }
+
+    private void finished(final int index, final DefaultExecuteResultHandler handler,
+                          final ExecuteWatchdog watchdog, final long startMillis, final long nanos) {
+      final ExecuteException e = handler.getException();
+      List<Process> toDestroy = null;
+      synchronized (this) {
+        final BatchResult.Status status;
+        if (e == null) {
+          status = BatchResult.Status.SUCCEEDED;
+        } else if (watchdog != null && watchdog.killedProcess()) {
+          status = BatchResult.Status.TIMED_OUT;
+        } else if (aborted) {
+          status = BatchResult.Status.ABORTED;
+        } else {
+          status = BatchResult.Status.FAILED;
+        }
+        results[index] = new BatchResult.JobResult(jobs[index], status, handler.getExitValue(), e,
+            startMillis, TimeUnit.NANOSECONDS.toMillis(nanos));
+        --running;
+        if (e != null && !aborted && failurePolicy == FailurePolicy.FAIL_FAST) {
+          toDestroy = abortLocked();
+        }
+      }
+      destroy(toDestroy);
+      launchMore();
+    }
+
+    /**
+     * Launch no further job, and destroy the processes still running.
+     */
+    void abort() {
+      final List<Process> toDestroy;
+      synchronized (this) {
+        if (aborted) {
+          return;
+        }
+        toDestroy = abortLocked();
+      }
+      destroy(toDestroy);
+      launchMore();
+    }
+
+    private List<Process> abortLocked() {
+      aborted = true;
+      final List<Process> running = new ArrayList<Process>(processes);
+      processes.clear();
+      return running;
+    }
+
+    private void destroy(final List<Process> toDestroy) {
+      if (toDestroy != null) {
+        for (final Process p : toDestroy) {
+          p.destroy();
+        }
+      }
+    }
+
+    private BatchResult toResult() {
+      for (int i = 0; i < jobs.length; ++i) {
+        if (results[i] == null) {
+          results[i] = new BatchResult.JobResult(jobs[i], BatchResult.Status.NOT_STARTED,
+              Executor.INVALID_EXITVALUE, null, 0L, 0L);
+        }
+      }
+      return new BatchResult(Arrays.asList(results),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    public boolean add(final Process process) {
+      final boolean destroy;
+      synchronized (this) {
+        // a process launched as the batch was being aborted
+        destroy = aborted;
+        if (!destroy) {
+          processes.add(process);
+        }
+      }
+      if (processDestroyer != null) {
+        processDestroyer.add(process);
+      }
+      if (destroy) {
+        process.destroy();
+      }
+      return true;
+    }
+
+    public boolean remove(final Process process) {
+      synchronized (this) {
+        processes.remove(process);
+      }
+      if (processDestroyer != null) {
+        processDestroyer.remove(process);
+      }
+      return true;
+    }
+
+    public synchronized int size() {
+      return processes.size();
+    }
+  }
+}
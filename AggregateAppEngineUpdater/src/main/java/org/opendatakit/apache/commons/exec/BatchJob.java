@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One command of a batch run by a {@link BatchExecutor}: the command line, the
+ * environment and working directory to run it in, where its output goes, and
+ * how long it may run.
+ */
+public class BatchJob {
+
+  private final CommandLine commandLine;
+
+  private Map<String, String> environment = new HashMap<String, String>();
+
+  private File workingDirectory;
+
+  private ExecuteStreamHandler streamHandler;
+
+  private long timeout = ExecuteWatchdog.INFINITE_TIMEOUT;
+
+  /**
+   * @param commandLine the command to run
+   */
+  public BatchJob(final CommandLine commandLine) {
+    if (commandLine == null) {
+      throw new IllegalArgumentException("CommandLine can not be null");
+    }
+    this.commandLine = commandLine;
+  }
+
+  public CommandLine getCommandLine() {
+    return commandLine;
+  }
+
+  public Map<String, String> getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * @param environment variables added to those of this process; null for none
+   * @return this job
+   */
+  public BatchJob setEnvironment(final Map<String, String> environment) {
+    this.environment = (environment == null) ? new HashMap<String, String>() : environment;
+    return this;
+  }
+
+  public File getWorkingDirectory() {
+    return workingDirectory;
+  }
+
+  /**
+   * @param workingDirectory the directory to run in; null for that of this process
+   * @return this job
+   */
+  public BatchJob setWorkingDirectory(final File workingDirectory) {
+    this.workingDirectory = workingDirectory;
+    return this;
+  }
+
+  public ExecuteStreamHandler getStreamHandler() {
+    return streamHandler;
+  }
+
+  /**
+   * @param streamHandler the handler for this job's streams alone; null for a
+   *                      PumpStreamHandler copying to System.out and System.err
+   * @return this job
+   */
+  public BatchJob setStreamHandler(final ExecuteStreamHandler streamHandler) {
+    this.streamHandler = streamHandler;
+    return this;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @param timeout the time, in milliseconds, after which the process is killed;
+   *                ExecuteWatchdog.INFINITE_TIMEOUT for no limit
+   * @return this job
+   */
+  public BatchJob setTimeout(final long timeout) {
+    if (timeout <= 0 && timeout != ExecuteWatchdog.INFINITE_TIMEOUT) {
+      throw new IllegalArgumentException("timeout must be positive or INFINITE_TIMEOUT");
+    }
+    this.timeout = timeout;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return commandLine.toString();
+  }
+}
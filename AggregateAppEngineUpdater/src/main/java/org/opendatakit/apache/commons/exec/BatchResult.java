@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.apache.commons.exec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a batch run by a {@link BatchExecutor}: one result per job, in
+ * the order the jobs were given, with the time each took.
+ */
+public class BatchResult {
+
+  public enum Status {
+    /** the process exited with a success exit value */
+    SUCCEEDED,
+    /** the process could not be started, or exited with a failure exit value */
+    FAILED,
+    /** the process was killed for running past the job's timeout */
+    TIMED_OUT,
+    /** the process was killed because the batch was aborted */
+    ABORTED,
+    /** the batch was aborted before the job was started */
+    NOT_STARTED
+  }
+
+  public static final class JobResult {
+    private final BatchJob job;
+    private final Status status;
+    private final int exitValue;
+    private final ExecuteException exception;
+    private final long startTimeMillis;
+    private final long durationMillis;
+
+    JobResult(final BatchJob job, final Status status, final int exitValue, final ExecuteException exception,
+              final long startTimeMillis, final long durationMillis) {
+      this.job = job;
+      this.status = status;
+      this.exitValue = exitValue;
+      this.exception = exception;
+      this.startTimeMillis = startTimeMillis;
+      this.durationMillis = durationMillis;
+    }
+
+    public BatchJob getJob() {
+      return job;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public boolean isSuccess() {
+      return status == Status.SUCCEEDED;
+    }
+
+    /**
+     * @return the exit value, or Executor.INVALID_EXITVALUE if there is none
+     */
+    public int getExitValue() {
+      return exitValue;
+    }
+
+    /**
+     * @return why the job failed, or null if it succeeded or was not started
+     */
+    public ExecuteException getException() {
+      return exception;
+    }
+
+    /**
+     * @return when the process was launched (System.currentTimeMillis()), or 0
+     * if it was not started
+     */
+    public long getStartTimeMillis() {
+      return startTimeMillis;
+    }
+
+    /**
+     * @return the time from launching the process until its result was known,
+     * including draining its output
+     */
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+      return status + " (exit " + exitValue + ", " + durationMillis + " ms): " + job;
+    }
+  }
+
+  private final List<JobResult> results;
+
+  private final long elapsedMillis;
+
+  BatchResult(final List<JobResult> results, final long elapsedMillis) {
+    this.results = Collections.unmodifiableList(results);
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * @return the results, in the order the jobs were given
+   */
+  public List<JobResult> getResults() {
+    return results;
+  }
+
+  /**
+   * @return the results of the jobs that did not succeed, in order
+   */
+  public List<JobResult> getFailures() {
+    final List<JobResult> failures = new ArrayList<JobResult>();
+    for (final JobResult r : results) {
+      if (!r.isSuccess()) {
+        failures.add(r);
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * @return true if every job succeeded
+   */
+  public boolean isSuccess() {
+    return getFailures().isEmpty();
+  }
+
+  public int getCount(final Status status) {
+    int count = 0;
+    for (final JobResult r : results) {
+      if (r.getStatus() == status) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the wall-clock time of the whole batch
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder();
+    b.append(results.size()).append(" jobs in ").append(elapsedMillis).append(" ms:");
+    for (final Status s : Status.values()) {
+      final int count = getCount(s);
+      if (count != 0) {
+        b.append(' ').append(s).append('=').append(count);
+      }
+    }
+    return b.toString();
+  }
+}
@@ -34,33 +34,31 @@
 
 package org.opendatakit.apache.commons.exec;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
 /**
  * A default implementation of 'ExecuteResultHandler' used for asynchronous
  * process handling.
+ * <p>
+ * The result is held in a CompletableFuture, so waiters wake up as soon as the
+ * process has exited, and follow-on processes can be chained with
+ * {@link #thenLaunch(Consumer)} without a thread waiting in between.
  *
  * @version $Id: DefaultExecuteResultHandler.java 1636057 2014-11-01 21:14:00Z ggregory $
  */
 public class DefaultExecuteResultHandler implements ExecuteResultHandler {
 
   /**
-   * the interval polling the result
-   */
-  private static final int SLEEP_TIME_MS = 50;
-
-  /**
-   * Keep track if the process is still running
+   * Completes with the exit value, or exceptionally with the ExecuteException.
+   * This is the only record of the result, so the first report wins.
    */
-  private volatile boolean hasResult;
-
-  /**
-   * The exit value of the finished process
-   */
-  private volatile int exitValue;
-
-  /**
-   * Any offending exception
-   */
-  private volatile ExecuteException exception;
+  private final CompletableFuture<Integer> result = new CompletableFuture<>();
 
   private ExecuteStreamHandler streamHandler;
 
@@ -68,26 +66,20 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    * Constructor.
    */
   public DefaultExecuteResultHandler() {
-    this.hasResult = false;
-    this.exitValue = Executor.INVALID_EXITVALUE;
   }
 
   /**
    * @see org.opendatakit.apache.commons.exec.ExecuteResultHandler#onProcessComplete(int)
    */
   public void onProcessComplete(final int exitValue) {
-    this.exitValue = exitValue;
-    this.exception = null;
-    this.hasResult = true;
+    result.complete(exitValue);
   }
 
   /**
    * @see org.opendatakit.apache.commons.exec.ExecuteResultHandler#onProcessFailed(org.opendatakit.apache.commons.exec.ExecuteException)
    */
   public void onProcessFailed(final ExecuteException e) {
-    this.exitValue = e.getExitValue();
-    this.exception = e;
-    this.hasResult = true;
+    result.completeExceptionally(e);
   }
 
   /**
@@ -98,11 +90,11 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    */
   public ExecuteException getException() {
 
-    if (!hasResult) {
+    if (!hasResult()) {
       throw new IllegalStateException("The process has not exited yet therefore no result is available ...");
     }
 
-    return exception;
+    return failure();
   }
 
   /**
@@ -113,11 +105,27 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    */
   public int getExitValue() {
 
-    if (!hasResult) {
+    if (!hasResult()) {
       throw new IllegalStateException("The process has not exited yet therefore no result is available ...");
     }
 
-    return exitValue;
+    final ExecuteException failure = failure();
+    return (failure == null) ? result.join() : failure.getExitValue();
+  }
+
+  /**
+   * @return the exception the completed future holds, or null if it completed normally
+   */
+  private ExecuteException failure() {
+    if (!result.isCompletedExceptionally()) {
+      return null;
+    }
+    try {
+      result.join();
+      return null;
+    } catch (final CompletionException | CancellationException e) {
+      return toExecuteException(e);
+    }
   }
 
   /**
@@ -126,7 +134,56 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    * @return true if a result of the execution is available
    */
   public boolean hasResult() {
-    return hasResult;
+    return result.isDone();
+  }
+
+  /**
+   * The result as a future, for composing with other asynchronous work. It
+   * completes with the exit value, or exceptionally with the ExecuteException.
+   * <p>
+   * Dependent actions run on the thread that reported the result (usually the
+   * executor's thread) unless an async variant is used.
+   *
+   * @return the future result of the execution
+   */
+  public CompletableFuture<Integer> getFuture() {
+    return result;
+  }
+
+  /**
+   * Launch another process once this one has completed successfully. Nothing
+   * waits in between: the launcher is called from the thread that reports this
+   * result, and should start its process asynchronously (e.g., through
+   * {@link Executor#execute(CommandLine, java.util.Map, ExecuteResultHandler)}).
+   * If this process fails, or the launcher throws, the returned handler fails
+   * with the same exception and nothing is launched.
+   *
+   * @param launcher starts the next process, reporting to the handler it is given
+   * @return the handler for the next process; chain from it to add further steps
+   */
+  public DefaultExecuteResultHandler thenLaunch(final Consumer<? super DefaultExecuteResultHandler> launcher) {
+    final DefaultExecuteResultHandler next = new DefaultExecuteResultHandler();
+    result.whenComplete((value, failure) -> {
+      if (failure != null) {
+        next.onProcessFailed(toExecuteException(failure));
+        return;
+      }
+      try {
+        launcher.accept(next);
+      } catch (final RuntimeException e) {
+        next.onProcessFailed(new ExecuteException("Failed to launch the next process", Executor.INVALID_EXITVALUE, e));
+      }
+    });
+    return next;
+  }
+
+  private static ExecuteException toExecuteException(Throwable failure) {
+    Throwable cause = (failure instanceof CompletionException && failure.getCause() != null) ?
+        failure.getCause() : failure;
+    if (cause instanceof ExecuteException) {
+      return (ExecuteException) cause;
+    }
+    return new ExecuteException("Execution failed", Executor.INVALID_EXITVALUE, cause);
   }
 
   /**
@@ -143,8 +200,10 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    */
   public void waitFor() throws InterruptedException {
 
-    while (!hasResult()) {
-      Thread.sleep(SLEEP_TIME_MS);
+    try {
+      result.get();
+    } catch (final ExecutionException | CancellationException e) {
+      // failed or cancelled through getFuture(); see getException()
     }
   }
 
@@ -163,10 +222,12 @@ public class DefaultExecuteResultHandler implements ExecuteResultHandler {
    */
   public void waitFor(final long timeout) throws InterruptedException {
 
-    final long until = System.currentTimeMillis() + timeout;
-
-    while (!hasResult() && System.currentTimeMillis() < until) {
-      Thread.sleep(SLEEP_TIME_MS);
+    try {
+      result.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (final ExecutionException | CancellationException e) {
+      // failed or cancelled through getFuture(); see getException()
+    } catch (final TimeoutException e) {
+      // still running; see hasResult()
     }
   }
 
@@ -32,6 +32,7 @@
  */
 package org.opendatakit.apache.commons.exec;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
@@ -46,6 +47,8 @@ import java.util.Map;
  * <li>kill long-running processes using an ExecuteWatchdog</li>
  * <li>define a set of expected exit values</li>
  * <li>terminate any started processes when the main process is terminating using a ProcessDestroyer</li>
+ * <li>run asynchronous executions on a StreamPumpService, without threads of their own</li>
+ * <li>run a ProcessPipeline of command lines connected by operating system pipes</li>
  * </ul>
  * <p>
  * The following example shows the basic usage:
@@ -85,11 +88,23 @@ public class DefaultExecutor implements Executor {
    */
   private Thread executorThread;
 
+  /**
+   * optional shared threads for asynchronous executions
+   */
+  private StreamPumpService streamPumpService;
+
   /**
    * the first exception being caught to be thrown to the caller
    */
   private IOException exceptionCaught;
 
+  /**
+   * Starts the process of an execution: that of a command line, or a pipeline.
+   */
+  private interface Launch {
+    Process start() throws IOException;
+  }
+
   /**
    * Default constructor creating a default {@code PumpStreamHandler}
    * and sets the working directory of the subprocess to the current
@@ -148,6 +163,24 @@ public class DefaultExecutor implements Executor {
     this.processDestroyer = processDestroyer;
   }
 
+  public StreamPumpService getStreamPumpService() {
+    return streamPumpService;
+  }
+
+  /**
+   * Run asynchronous executions on the given service: its threads pump the process
+   * streams and notice when the process exits, and the result handler is called
+   * from one of them. No thread is started per execution. This applies when the
+   * stream handler is an AbstractPumpStreamHandler whose pumpers support it (those
+   * in this package do); synchronous executions are unaffected.
+   *
+   * @param streamPumpService the service (e.g., StreamPumpService.getShared()), or
+   *                          null to use threads of their own
+   */
+  public void setStreamPumpService(final StreamPumpService streamPumpService) {
+    this.streamPumpService = streamPumpService;
+  }
+
   /**
    * @see org.opendatakit.apache.commons.exec.Executor#getWorkingDirectory()
    */
@@ -180,7 +213,29 @@ public class DefaultExecutor implements Executor {
       throw new IOException(workingDirectory + " doesn't exist.");
     }
 
-    return executeInternal(command, environment, workingDirectory, streamHandler);
+    return executeInternal(() -> launch(command, environment, workingDirectory), streamHandler);
+
+  }
+
+  /**
+   * Run a pipeline synchronously. The stream handler is attached to the input of
+   * the first stage and the output and error streams of the last; the watchdog and
+   * process destroyer apply to every stage.
+   *
+   * @param pipeline    the pipeline to run
+   * @param environment the environment of every stage
+   * @return the exit value of the last stage
+   * @throws ExecuteException execution of the last stage failed
+   * @throws IOException      a stage could not be started
+   */
+  public int execute(final ProcessPipeline pipeline, final Map<String, String> environment)
+      throws IOException {
+
+    if (workingDirectory != null && !workingDirectory.exists()) {
+      throw new IOException(workingDirectory + " doesn't exist.");
+    }
+
+    return executeInternal(() -> launch(pipeline, environment, workingDirectory), streamHandler);
 
   }
 
@@ -199,6 +254,24 @@ public class DefaultExecutor implements Executor {
    */
   public void execute(final CommandLine command, final Map<String, String> environment,
                       final ExecuteResultHandler handler) throws IOException {
+    executeAsync(() -> launch(command, environment, workingDirectory), handler);
+  }
+
+  /**
+   * Run a pipeline asynchronously.
+   *
+   * @param pipeline    the pipeline to run
+   * @param environment the environment of every stage
+   * @param handler     capture the exit value of the last stage, or the failure
+   * @throws IOException the working directory does not exist
+   * @see #execute(ProcessPipeline, Map)
+   */
+  public void execute(final ProcessPipeline pipeline, final Map<String, String> environment,
+                      final ExecuteResultHandler handler) throws IOException {
+    executeAsync(() -> launch(pipeline, environment, workingDirectory), handler);
+  }
+
+  private void executeAsync(final Launch launch, final ExecuteResultHandler handler) throws IOException {
 
     if (workingDirectory != null && !workingDirectory.exists()) {
       throw new IOException(workingDirectory + " doesn't exist.");
@@ -208,11 +281,16 @@ public class DefaultExecutor implements Executor {
       watchdog.setProcessNotStarted();
     }
 
+    if (streamPumpService != null && streamHandler instanceof AbstractPumpStreamHandler) {
+      executeOnService(launch, (AbstractPumpStreamHandler) streamHandler, handler);
+      return;
+    }
+
     final Runnable runnable = new Runnable() {
       public void run() {
         int exitValue = Executor.INVALID_EXITVALUE;
         try {
-          exitValue = executeInternal(command, environment, workingDirectory, streamHandler);
+          exitValue = executeInternal(launch, streamHandler);
           handler.onProcessComplete(exitValue);
         } catch (final ExecuteException e) {
           handler.onProcessFailed(e);
@@ -268,6 +346,25 @@ public class DefaultExecutor implements Executor {
     return pb.start();
   }
 
+  /**
+   * Starts every stage of a pipeline.
+   *
+   * @param pipeline the pipeline to run
+   * @param env      the environment for every stage
+   * @param dir      the working directory for every stage
+   * @return the pipeline, as one process
+   * @throws IOException a stage could not be started
+   */
+  protected Process launch(final ProcessPipeline pipeline, final Map<String, String> env,
+                           final File dir) throws IOException {
+
+    if (dir != null && !dir.exists()) {
+      throw new IOException(dir.getAbsolutePath() + " doesn't exist.");
+    }
+
+    return pipeline.start(env, dir);
+  }
+
   /**
    * Get the worker thread being used for asynchronous execution.
    *
@@ -307,19 +404,16 @@ public class DefaultExecutor implements Executor {
    * Execute an internal process. If the executing thread is interrupted while waiting for the
    * child process to return the child process will be killed.
    *
-   * @param command     the command to execute
-   * @param environment the execution environment
-   * @param dir         the working directory
+   * @param launch      starts the process
    * @param streams     process the streams (in, out, err) of the process
    * @return the exit code of the process
    * @throws IOException executing the process failed
    */
-  private int executeInternal(final CommandLine command, final Map<String, String> environment,
-                              final File dir, final ExecuteStreamHandler streams) throws IOException {
+  private int executeInternal(final Launch launch, final ExecuteStreamHandler streams) throws IOException {
 
     setExceptionCaught(null);
 
-    final Process process = this.launch(command, environment, dir);
+    final Process process = launch.start();
 
     // this also starts the streams
     try {
@@ -399,6 +493,91 @@ public class DefaultExecutor implements Executor {
     }
   }
 
+  /**
+   * The asynchronous counterpart of executeInternal, driven by the StreamPumpService
+   * rather than a thread of its own: once the process has exited, the streams are
+   * stopped; once they have been drained, the result is reported.
+   */
+  private void executeOnService(final Launch launch, final AbstractPumpStreamHandler streams,
+                                final ExecuteResultHandler handler) {
+    final StreamPumpService service = streamPumpService;
+    final ExecuteWatchdog watchdog = this.watchdog;
+    final ProcessDestroyer destroyer = this.processDestroyer;
+
+    final Process process;
+    try {
+      process = launch.start();
+    } catch (final IOException e) {
+      handler.onProcessFailed(new ExecuteException("Execution failed", Executor.INVALID_EXITVALUE, e));
+      return;
+    }
+
+    streams.setProcessInputStream(process.getOutputStream());
+    streams.setProcessOutputStream(process.getInputStream());
+    streams.setProcessErrorStream(process.getErrorStream());
+    streams.start(service);
+
+    if (destroyer != null) {
+      destroyer.add(process);
+    }
+    if (watchdog != null) {
+      watchdog.start(process);
+    }
+
+    service.watch(() -> !process.isAlive(), () -> {
+      if (watchdog != null) {
+        watchdog.stop();
+      }
+      IOException caught = null;
+      try {
+        streams.stop();
+      } catch (final IOException e) {
+        caught = e;
+      }
+      final IOException stopFailure = caught;
+      service.watch(streams::isFinished,
+          () -> completeOnService(process, streams, handler, watchdog, destroyer, stopFailure));
+    });
+  }
+
+  private void completeOnService(final Process process, final ExecuteStreamHandler streams,
+                                 final ExecuteResultHandler handler, final ExecuteWatchdog watchdog,
+                                 final ProcessDestroyer destroyer, final IOException stopFailure) {
+    if (destroyer != null) {
+      destroyer.remove(process);
+    }
+
+    Exception failure = stopFailure;
+    for (final Closeable stream : new Closeable[] {
+        process.getInputStream(), process.getOutputStream(), process.getErrorStream()}) {
+      try {
+        stream.close();
+      } catch (final IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure == null && watchdog != null) {
+      try {
+        watchdog.checkException();
+      } catch (final Exception e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      handler.onProcessFailed(new ExecuteException("Execution failed", Executor.INVALID_EXITVALUE, failure));
+      return;
+    }
+
+    final int exitValue = process.exitValue();
+    if (streams.isFailure(exitValue)) {
+      handler.onProcessFailed(new ExecuteException("Process exited with an error: " + exitValue, exitValue));
+    } else {
+      handler.onProcessComplete(exitValue);
+    }
+  }
+
   /**
    * Get the first IOException being thrown.
    *
@@ -57,6 +57,9 @@ import org.opendatakit.apache.commons.exec.util.DebugUtils;
  * Please note that ExecuteWatchdog is processed asynchronously, e.g. it might
  * be still attached to a process even after the DefaultExecutor.execute
  * has returned.
+ * <p>
+ * When many processes run at once, pass {@link WatchdogService#getShared()} so
+ * that their timeouts share one thread.
  *
  * @version $Id: ExecuteWatchdog.java 1612032 2014-07-20 06:30:44Z ggregory $
  * @see org.opendatakit.apache.commons.exec.Executor
@@ -104,12 +107,23 @@ public class ExecuteWatchdog implements TimeoutObserver {
    *                greater than 0 or 'INFINITE_TIMEOUT'
    */
   public ExecuteWatchdog(final long timeout) {
+    this(timeout, null);
+  }
+
+  /**
+   * Creates a new watchdog with a given timeout.
+   *
+   * @param timeout the timeout for the process in milliseconds. It must be
+   *                greater than 0 or 'INFINITE_TIMEOUT'
+   * @param service the service to time out on; null for a thread of its own
+   */
+  public ExecuteWatchdog(final long timeout, final WatchdogService service) {
     this.killedProcess = false;
     this.watch = false;
     this.hasWatchdog = timeout != INFINITE_TIMEOUT;
     this.processStarted = false;
     if (this.hasWatchdog) {
-      this.watchdog = new Watchdog(timeout);
+      this.watchdog = new Watchdog(timeout, service);
       this.watchdog.addTimeoutObserver(this);
     } else {
       this.watchdog = null;
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An AbstractStreamPumper that can also be pumped, without a thread of its own,
+ * by a StreamPumpService.
+ *
+ * @see StreamPumpService#register(AbstractStreamPumper)
+ */
+public interface PollableStreamPumper {
+  /**
+   * Process whatever can be read without blocking.
+   *
+   * @param is the input stream to pump from
+   * @param os the output stream to pump into
+   * @return the number of bytes consumed (0 if none were available), or -1 at the
+   *     end of the stream
+   * @throws IOException
+   */
+  int attemptProcessAvailableBytes(InputStream is, OutputStream os) throws IOException;
+}
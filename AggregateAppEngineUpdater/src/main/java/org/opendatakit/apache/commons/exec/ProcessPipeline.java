@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command lines chained by operating system pipes, each stage reading the
+ * output of the one before, e.g., a generated configuration piped into AppCfg.
+ * The data between the stages never passes through the JVM.
+ * <p>
+ * Run a pipeline with {@link DefaultExecutor#execute(ProcessPipeline, Map)} or
+ * {@link DefaultExecutor#execute(ProcessPipeline, Map, ExecuteResultHandler)}: it
+ * is then treated as a single process whose input is that of the first stage, and
+ * whose output and error streams, given to the ExecuteStreamHandler, are those of
+ * the last stage. The error output of the other stages is appended to the stage
+ * error file, or discarded. The exit value is that of the last stage, as in a
+ * shell; destroying the pipeline destroys every stage.
+ * <p>
+ * On Java 9 and later, the stages are started by ProcessBuilder.startPipeline.
+ * Java 8 has no way to connect one child's output to another's input, so there
+ * the pipeline is run by /bin/sh (and is not available on Windows); destroying it
+ * terminates the shell and the last stage, and the earlier stages end once they
+ * next write to the closed pipe.
+ */
+public class ProcessPipeline {
+
+  private static final boolean WINDOWS =
+      System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows");
+
+  private static final File NULL_FILE = new File(WINDOWS ? "NUL" : "/dev/null");
+
+  private static final String SHELL = "/bin/sh";
+
+  /** ProcessBuilder.startPipeline(List), or null before Java 9 */
+  private static final Method START_PIPELINE = findStartPipeline();
+
+  private final List<CommandLine> stages = new ArrayList<CommandLine>();
+
+  private File stageErrorFile;
+
+  /**
+   * @param first the command whose output starts the pipeline
+   */
+  public ProcessPipeline(final CommandLine first) {
+    pipeTo(first);
+  }
+
+  private static Method findStartPipeline() {
+    try {
+      return ProcessBuilder.class.getMethod("startPipeline", List.class);
+    } catch (final NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Add a stage reading the output of the current last stage.
+   *
+   * @param next the command to add
+   * @return this pipeline
+   */
+  public ProcessPipeline pipeTo(final CommandLine next) {
+    if (next == null) {
+      throw new IllegalArgumentException("CommandLine can not be null");
+    }
+    stages.add(next);
+    return this;
+  }
+
+  public List<CommandLine> getStages() {
+    return Collections.unmodifiableList(stages);
+  }
+
+  public File getStageErrorFile() {
+    return stageErrorFile;
+  }
+
+  /**
+   * @param stageErrorFile where the error output of every stage but the last is
+   *                       appended; null to discard it
+   */
+  public void setStageErrorFile(final File stageErrorFile) {
+    this.stageErrorFile = stageErrorFile;
+  }
+
+  /**
+   * Start every stage.
+   *
+   * @param env        variables added to those of this process for every stage;
+   *                   may be null
+   * @param workingDir the directory the stages run in; null for that of this process
+   * @return the pipeline, as one process
+   * @throws IOException if a stage could not be started
+   */
+  Process start(final Map<String, String> env, final File workingDir) throws IOException {
+    if (START_PIPELINE != null) {
+      return startPipeline(env, workingDir);
+    }
+    if (WINDOWS) {
+      throw new IOException("Process pipelines need Java 9 or later on Windows.");
+    }
+    final ProcessBuilder pb = builder(env, workingDir, SHELL, "-c", toShellScript());
+    return pb.start();
+  }
+
+  private ProcessBuilder builder(final Map<String, String> env, final File workingDir, final String... command) {
+    final ProcessBuilder pb = new ProcessBuilder(command);
+    if (env != null) {
+      pb.environment().putAll(env);
+    }
+    pb.directory(workingDir);
+    return pb;
+  }
+
+  private Process startPipeline(final Map<String, String> env, final File workingDir) throws IOException {
+    final List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>();
+    for (int i = 0; i < stages.size(); ++i) {
+      final ProcessBuilder pb = builder(env, workingDir, stages.get(i).toStrings());
+      if (i < stages.size() - 1) {
+        pb.redirectError((stageErrorFile == null) ? Redirect.to(NULL_FILE) : Redirect.appendTo(stageErrorFile));
+      }
+      builders.add(pb);
+    }
+    final List<?> processes;
+    try {
+      processes = (List<?>) START_PIPELINE.invoke(null, builders);
+    } catch (final InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } catch (final IllegalAccessException e) {
+      throw new IOException(e);
+    }
+    final List<Process> started = new ArrayList<Process>();
+    for (final Object p : processes) {
+      started.add((Process) p);
+    }
+    return new PipelineProcess(started);
+  }
+
+  /**
+   * The pipeline as a script for /bin/sh. It runs in the background so that
+   * the shell can pass a termination on to the last stage, and the first stage
+   * is given the shell's input explicitly, which a background job would not get.
+   */
+  String toShellScript() {
+    final StringBuilder script = new StringBuilder();
+    script.append("exec 3<&0\n");
+    script.append("trap 'kill $! 2>/dev/null; exit 143' TERM\n");
+    for (int i = 0; i < stages.size(); ++i) {
+      if (i > 0) {
+        script.append(" | ");
+      }
+      for (final String arg : stages.get(i).toStrings()) {
+        script.append(shellQuote(arg)).append(' ');
+      }
+      script.append((i == 0) ? "<&3 3<&-" : "3<&-");
+      if (i < stages.size() - 1) {
+        script.append(" 2>>").append(shellQuote(((stageErrorFile == null) ? NULL_FILE : stageErrorFile).getPath()));
+      }
+    }
+    script.append(" &\n");
+    script.append("wait $!\n");
+    return script.toString();
+  }
+
+  private static String shellQuote(final String arg) {
+    return "'" + arg.replace("'", "'\\''") + "'";
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder();
+    for (final CommandLine stage : stages) {
+      if (b.length() != 0) {
+        b.append(" | ");
+      }
+      b.append(stage);
+    }
+    return b.toString();
+  }
+
+  /**
+   * The stages started by ProcessBuilder.startPipeline, as one process.
+   */
+  static final class PipelineProcess extends Process {
+    private final List<Process> stages;
+    private final Process first;
+    private final Process last;
+
+    PipelineProcess(final List<Process> stages) {
+      this.stages = stages;
+      this.first = stages.get(0);
+      this.last = stages.get(stages.size() - 1);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return first.getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return last.getInputStream();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return last.getErrorStream();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+      for (final Process p : stages) {
+        p.waitFor();
+      }
+      return last.exitValue();
+    }
+
+    @Override
+    public boolean waitFor(final long timeout, final TimeUnit unit) throws InterruptedException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      for (final Process p : stages) {
+        if (!p.waitFor(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @throws IllegalThreadStateException if any stage is still running
+     */
+    @Override
+    public int exitValue() {
+      for (final Process p : stages) {
+        p.exitValue();
+      }
+      return last.exitValue();
+    }
+
+    @Override
+    public boolean isAlive() {
+      for (final Process p : stages) {
+        if (p.isAlive()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void destroy() {
+      for (final Process p : stages) {
+        p.destroy();
+      }
+    }
+
+    @Override
+    public Process destroyForcibly() {
+      for (final Process p : stages) {
+        p.destroyForcibly();
+      }
+      return this;
+    }
+  }
+}
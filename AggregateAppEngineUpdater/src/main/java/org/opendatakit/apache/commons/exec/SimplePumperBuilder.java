@@ -25,9 +25,22 @@ import java.io.InputStream;
  */
 public class SimplePumperBuilder implements StreamPumperBuilder {
 
+  private final int bufferSize;
+
+  public SimplePumperBuilder() {
+    this(StreamPumper.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize the most bytes each pumper copies per read and write
+   */
+  public SimplePumperBuilder(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
   @Override
   public AbstractStreamPumper newStreamPumper(StreamType type, InputStream is) {
-    return new StreamPumper(is, System.err);
+    return new StreamPumper(is, System.err, bufferSize);
   }
 
 }
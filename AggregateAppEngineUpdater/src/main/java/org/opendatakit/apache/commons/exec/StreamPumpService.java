@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.apache.commons.exec;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.opendatakit.apache.commons.exec.util.DebugUtils;
+
+/**
+ * Pumps the output and error streams of any number of processes, and notices
+ * when the processes exit, from a fixed, small number of daemon threads.
+ * <p>
+ * Process pipes cannot be selected on in Java 8, so each thread polls the
+ * streams assigned to it: it reads whatever each has available (which never
+ * blocks), and checks its watch conditions (e.g., that a process has exited).
+ * While there is output, it loops without pausing; when a round finds nothing,
+ * it backs off, from 1 ms up to {@link #MAX_IDLE_MILLIS}. Threads with nothing
+ * registered are parked.
+ * <p>
+ * Only pumpers that implement PollableStreamPumper (as the pumpers in this
+ * package do) are pumped by the service; any other pumper is started on its
+ * own thread.
+ * Everything run on the service threads, i.e., processLineSoFar and the watch
+ * actions, must not block.
+ *
+ * @see DefaultExecutor#setStreamPumpService(StreamPumpService)
+ */
+public class StreamPumpService {
+
+  public static final long MAX_IDLE_MILLIS = 16;
+
+  private static final class SharedHolder {
+    static final StreamPumpService INSTANCE =
+        new StreamPumpService(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+  }
+
+  /**
+   * An action to run, once, when its condition holds.
+   */
+  private static final class Watch {
+    final BooleanSupplier condition;
+    final Runnable action;
+
+    Watch(BooleanSupplier condition, Runnable action) {
+      this.condition = condition;
+      this.action = action;
+    }
+  }
+
+  private final class Poller implements Runnable {
+    final Thread thread;
+    final ConcurrentLinkedQueue<Object> incoming = new ConcurrentLinkedQueue<Object>();
+    final List<AbstractStreamPumper> pumpers = new ArrayList<AbstractStreamPumper>();
+    final List<Watch> watches = new ArrayList<Watch>();
+
+    Poller(int index) {
+      thread = new Thread(this, "Exec Stream Pump Service-" + index);
+      thread.setDaemon(true);
+    }
+
+    void add(Object o) {
+      incoming.add(o);
+      LockSupport.unpark(thread);
+    }
+
+    public void run() {
+      long idleNanos = 0;
+      while (!shutdown) {
+        Object o;
+        while ((o = incoming.poll()) != null) {
+          if (o instanceof Watch) {
+            watches.add((Watch) o);
+          } else {
+            pumpers.add((AbstractStreamPumper) o);
+          }
+        }
+        if (pumpers.isEmpty() && watches.isEmpty()) {
+          idleNanos = 0;
+          LockSupport.park(this);
+          continue;
+        }
+
+        boolean progressed = false;
+        for (Iterator<AbstractStreamPumper> it = pumpers.iterator(); it.hasNext(); ) {
+          int n;
+          try {
+            n = it.next().pumpAvailable();
+          } catch (final RuntimeException e) {
+            // failed while closing its output stream
+            n = -1;
+          }
+          if (n != 0) {
+            progressed = true;
+          }
+          if (n == -1) {
+            it.remove();
+            activePumpers.decrementAndGet();
+          }
+        }
+        for (Iterator<Watch> it = watches.iterator(); it.hasNext(); ) {
+          Watch w = it.next();
+          boolean due;
+          try {
+            due = w.condition.getAsBoolean();
+          } catch (final RuntimeException e) {
+            due = true;
+          }
+          if (due) {
+            it.remove();
+            activeWatches.decrementAndGet();
+            progressed = true;
+            try {
+              w.action.run();
+            } catch (final RuntimeException e) {
+              // keep pumping for everyone else
+              if (DebugUtils.isDebugEnabled()) {
+                System.err.println("StreamPumpService watch action failed");
+                e.printStackTrace();
+              }
+            }
+          }
+        }
+
+        if (progressed) {
+          idleNanos = 0;
+        } else {
+          idleNanos = (idleNanos == 0) ? TimeUnit.MILLISECONDS.toNanos(1) :
+              Math.min(2 * idleNanos, TimeUnit.MILLISECONDS.toNanos(MAX_IDLE_MILLIS));
+          // unpark() ends the pause early when something is registered
+          LockSupport.parkNanos(this, idleNanos);
+        }
+      }
+    }
+  }
+
+  private final Poller[] pollers;
+
+  private final AtomicInteger next = new AtomicInteger();
+  private final AtomicInteger activePumpers = new AtomicInteger();
+  private final AtomicInteger activeWatches = new AtomicInteger();
+
+  private volatile boolean shutdown = false;
+
+  /**
+   * @return the service shared by everything that does not need its own
+   */
+  public static StreamPumpService getShared() {
+    return SharedHolder.INSTANCE;
+  }
+
+  /**
+   * @param threads the number of pumping threads
+   */
+  public StreamPumpService(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must not be less than 1.");
+    }
+    pollers = new Poller[threads];
+    for (int i = 0; i < threads; ++i) {
+      pollers[i] = new Poller(i);
+      pollers[i].thread.start();
+    }
+  }
+
+  private Poller nextPoller() {
+    if (shutdown) {
+      throw new IllegalStateException("StreamPumpService has been shut down.");
+    }
+    return pollers[(next.getAndIncrement() & Integer.MAX_VALUE) % pollers.length];
+  }
+
+  /**
+   * Pump the stream until it ends, or until the pumper is told to close and has
+   * consumed everything available. A pumper that cannot be polled is started
+   * on its own thread instead, and is not counted by {@link #getPumperCount()}.
+   *
+   * @param pumper the pumper, not started
+   */
+  public void register(final AbstractStreamPumper pumper) {
+    if (!(pumper instanceof PollableStreamPumper)) {
+      pumper.start();
+      return;
+    }
+    // nextPoller() fails once the service is shut down
+    Poller poller = nextPoller();
+    activePumpers.incrementAndGet();
+    poller.add(pumper);
+  }
+
+  /**
+   * Run the action on a service thread once the condition holds. The condition
+   * is checked every round, so it must be cheap.
+   *
+   * @param condition e.g., that a process has exited
+   * @param action    what to do then
+   */
+  public void watch(final BooleanSupplier condition, final Runnable action) {
+    Poller poller = nextPoller();
+    activeWatches.incrementAndGet();
+    poller.add(new Watch(condition, action));
+  }
+
+  public int getThreadCount() {
+    return pollers.length;
+  }
+
+  /**
+   * @return the number of streams being pumped
+   */
+  public int getPumperCount() {
+    return activePumpers.get();
+  }
+
+  /**
+   * @return the number of conditions (e.g., running processes) being watched
+   */
+  public int getWatchCount() {
+    return activeWatches.get();
+  }
+
+  /**
+   * Stop the service threads. Streams still registered are no longer pumped.
+   */
+  public void shutdown() {
+    shutdown = true;
+    for (Poller p : pollers) {
+      LockSupport.unpark(p.thread);
+    }
+  }
+}
@@ -34,19 +34,37 @@
 
 package org.opendatakit.apache.commons.exec;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Restructured to move most functionality into AbstractStreamPumper class, leaving
  * the guts of the read-write loop to be implemented here.
  * <p>
- * Copies all data from an input stream to an output stream.
+ * Copies all data from an input stream to an output stream, a buffer at a time.
+ * Reads block until the process writes something, so there is no polling; whatever
+ * has arrived is written and flushed straight away. File streams are copied through
+ * their channels with a direct buffer; other streams are adapted to channels.
  *
  * @version $Id: StreamPumper.java 1557263 2014-01-10 21:18:09Z ggregory $
  */
-public class StreamPumper extends AbstractStreamPumper {
+public class StreamPumper extends AbstractStreamPumper implements PollableStreamPumper {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final int bufferSize;
+
+  private ReadableByteChannel in;
+  private WritableByteChannel out;
+  private ByteBuffer buffer;
 
   /**
    * Create a new stream pumper.
@@ -55,31 +73,84 @@ public class StreamPumper extends AbstractStreamPumper {
    * @param os output stream to write data to.
    */
   public StreamPumper(final InputStream is, final OutputStream os) {
+    this(is, os, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new stream pumper.
+   *
+   * @param is         input stream to read data from
+   * @param os         output stream to write data to.
+   * @param bufferSize the most bytes copied per read and write
+   */
+  public StreamPumper(final InputStream is, final OutputStream os, final int bufferSize) {
     super(is, os);
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive");
+    }
+    this.bufferSize = bufferSize;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The read ends by itself, at the end of the stream or when the executor closes
+   * the process streams. Interrupting it would close the channel (and the process
+   * stream under it) before the last of the output was copied.
+   */
+  @Override
+  public void signalShouldClose() {
+    shouldClose = true;
   }
 
-  protected void attemptProcessInputStreamBytes(InputStream is, OutputStream os) throws IOException, InterruptedException {
+  private void openChannels(InputStream is, OutputStream os) {
+    if (buffer != null) {
+      return;
+    }
+    in = (is instanceof FileInputStream) ?
+        ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+    out = (os instanceof FileOutputStream) ?
+        ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+    buffer = (in instanceof FileChannel && out instanceof FileChannel) ?
+        ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+  }
+
+  protected void attemptProcessInputStreamBytes(InputStream is, OutputStream os) throws IOException {
 
-    int fwdRead;
+    openChannels(is, os);
     for (; ; ) {
-      fwdRead = is.available();
-      if (fwdRead < 0) {
-        // confirming close (may need this to propagate up chain)
-        int ch = is.read();
-        if (ch == -1) {
-          signalShouldClose();
-          break;
-        }
-      } else if (fwdRead > 0) {
-        int ch = is.read();
-        if (ch == -1) {
-          signalShouldClose();
-          break;
-        }
-        os.write(ch);
-        os.flush();
+      // returns as soon as some bytes are available
+      if (copy(os) == -1) {
+        signalShouldClose();
+        break;
       }
-      Thread.sleep(10);
     }
   }
+
+  @Override
+  public int attemptProcessAvailableBytes(InputStream is, OutputStream os) throws IOException {
+    int available = is.available();
+    if (available <= 0) {
+      return 0;
+    }
+    openChannels(is, os);
+    buffer.limit(Math.min(available, buffer.capacity()));
+    return copy(os);
+  }
+
+  private int copy(OutputStream os) throws IOException {
+    int n = in.read(buffer);
+    if (n == -1) {
+      return n;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+    os.flush();
+    return n;
+  }
 }
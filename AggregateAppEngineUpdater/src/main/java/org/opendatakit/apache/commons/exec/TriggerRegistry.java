@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.apache.commons.exec;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Patterns to look for in the output of a process, each with the callback to
+ * run when it is found, e.g., prompts, error signatures and progress markers.
+ * <p>
+ * The patterns are compiled into one Aho-Corasick automaton, so every character
+ * is looked at once, however many patterns there are. A {@link Matcher} follows
+ * one stream: it is fed the decoded characters as they arrive, in chunks of any
+ * size, and a pattern that spans chunks is found all the same. Callbacks run as
+ * soon as the last character of the pattern has been fed, even part-way through
+ * a line (as with a prompt).
+ * <p>
+ * A pattern is a literal, found anywhere, or is anchored at the start of a line
+ * (i.e., at the start of the stream or after a '\n').
+ *
+ * @see AbstractLineBufferingCharacterStreamPumper#AbstractLineBufferingCharacterStreamPumper(java.io.InputStream,
+ *     java.io.OutputStream, java.nio.charset.Charset, TriggerRegistry)
+ */
+public class TriggerRegistry {
+
+  public interface Callback {
+    /**
+     * @param pattern the pattern found (without the anchor)
+     * @param end     the number of characters fed to the matcher up to and
+     *                including the end of the match
+     * @throws IOException passed on to whoever fed the matcher
+     */
+    void triggered(String pattern, long end) throws IOException;
+  }
+
+  private static final char LINE_START = '\n';
+
+  private static final class Pattern {
+    final String text;
+    final boolean anchored;
+    final Callback callback;
+
+    Pattern(String text, boolean anchored, Callback callback) {
+      this.text = text;
+      this.anchored = anchored;
+      this.callback = callback;
+    }
+  }
+
+  private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+  /** the automaton for the current patterns; null once they have changed */
+  private Automaton automaton;
+
+  /**
+   * Run the callback wherever the text occurs.
+   *
+   * @param text     the text to look for
+   * @param callback what to do each time it is found
+   * @return this registry
+   */
+  public TriggerRegistry addLiteral(String text, Callback callback) {
+    return add(new Pattern(text, false, callback));
+  }
+
+  /**
+   * Run the callback wherever a line starts with the text.
+   *
+   * @param text     the text to look for
+   * @param callback what to do each time it is found
+   * @return this registry
+   */
+  public TriggerRegistry addLineStart(String text, Callback callback) {
+    return add(new Pattern(text, true, callback));
+  }
+
+  private synchronized TriggerRegistry add(Pattern pattern) {
+    if (pattern.text == null || pattern.text.isEmpty()) {
+      throw new IllegalArgumentException("pattern can not be empty");
+    }
+    if (pattern.callback == null) {
+      throw new IllegalArgumentException("Callback can not be null");
+    }
+    patterns.add(pattern);
+    automaton = null;
+    return this;
+  }
+
+  public synchronized int size() {
+    return patterns.size();
+  }
+
+  /**
+   * @return a matcher for one stream, for the patterns registered so far
+   */
+  public synchronized Matcher newMatcher() {
+    if (automaton == null) {
+      automaton = new Automaton(new ArrayList<Pattern>(patterns));
+    }
+    return new Matcher(automaton);
+  }
+
+  /**
+   * The position in one stream. Not thread-safe: a stream is fed by one pumper.
+   */
+  public static final class Matcher {
+    private final Automaton automaton;
+    private int state;
+    private long position;
+
+    Matcher(Automaton automaton) {
+      this.automaton = automaton;
+      reset();
+    }
+
+    /**
+     * Go back to the start of a line, as at the start of the stream.
+     */
+    public void reset() {
+      state = automaton.lineStartState;
+      position = 0;
+    }
+
+    /**
+     * @return the number of characters fed since the start (or reset)
+     */
+    public long getPosition() {
+      return position;
+    }
+
+    public void feed(CharSequence s) throws IOException {
+      for (int i = 0; i < s.length(); ++i) {
+        step(s.charAt(i));
+      }
+    }
+
+    public void feed(char[] a, int off, int len) throws IOException {
+      for (int i = off; i < off + len; ++i) {
+        step(a[i]);
+      }
+    }
+
+    private void step(char ch) throws IOException {
+      final Automaton m = automaton;
+      final int c = m.classOf(ch);
+      state = (c < 0) ? 0 : m.delta[state * m.width + c];
+      ++position;
+      final int[] found = m.outputs[state];
+      if (found != null) {
+        for (int p : found) {
+          Pattern pattern = m.patterns[p];
+          pattern.callback.triggered(pattern.text, position);
+        }
+      }
+    }
+  }
+
+  /**
+   * The deterministic form of the Aho-Corasick automaton: a transition for
+   * every state and character of the patterns, with every pattern that ends in
+   * a state (including through its suffixes) listed there. Characters found in
+   * no pattern lead back to the root.
+   */
+  private static final class Automaton {
+    final Pattern[] patterns;
+
+    /** the characters of the patterns, sorted; a character's class is its index */
+    final char[] alphabet;
+    final int[] asciiClass = new int[128];
+    final int width;
+
+    final int[] delta;
+    final int[][] outputs;
+    final int lineStartState;
+
+    Automaton(List<Pattern> list) {
+      patterns = list.toArray(new Pattern[list.size()]);
+
+      StringBuilder chars = new StringBuilder().append(LINE_START);
+      for (Pattern p : patterns) {
+        chars.append(p.text);
+      }
+      char[] all = chars.toString().toCharArray();
+      Arrays.sort(all);
+      int n = 0;
+      for (int i = 0; i < all.length; ++i) {
+        if (i == 0 || all[i] != all[i - 1]) {
+          all[n++] = all[i];
+        }
+      }
+      alphabet = Arrays.copyOf(all, n);
+      width = n;
+      Arrays.fill(asciiClass, -1);
+      for (int i = 0; i < n; ++i) {
+        if (alphabet[i] < 128) {
+          asciiClass[alphabet[i]] = i;
+        }
+      }
+
+      // the trie
+      List<Map<Integer, Integer>> go = new ArrayList<Map<Integer, Integer>>();
+      List<List<Integer>> ends = new ArrayList<List<Integer>>();
+      go.add(new HashMap<Integer, Integer>());
+      ends.add(new ArrayList<Integer>());
+      for (int p = 0; p < patterns.length; ++p) {
+        String text = patterns[p].anchored ? LINE_START + patterns[p].text : patterns[p].text;
+        int s = 0;
+        for (int i = 0; i < text.length(); ++i) {
+          int c = classOf(text.charAt(i));
+          Integer t = go.get(s).get(c);
+          if (t == null) {
+            t = go.size();
+            go.add(new HashMap<Integer, Integer>());
+            ends.add(new ArrayList<Integer>());
+            go.get(s).put(c, t);
+          }
+          s = t;
+        }
+        ends.get(s).add(p);
+      }
+
+      // breadth first, so that a state's failure state is complete before it
+      int states = go.size();
+      delta = new int[states * width];
+      outputs = new int[states][];
+      int[] fail = new int[states];
+      ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+      for (int c = 0; c < width; ++c) {
+        Integer t = go.get(0).get(c);
+        if (t != null) {
+          delta[c] = t;
+          queue.add(t);
+        }
+      }
+      outputs[0] = toArray(ends.get(0));
+      while (!queue.isEmpty()) {
+        int s = queue.poll();
+        List<Integer> found = ends.get(s);
+        if (outputs[fail[s]] != null) {
+          for (int p : outputs[fail[s]]) {
+            found.add(p);
+          }
+        }
+        outputs[s] = toArray(found);
+        for (int c = 0; c < width; ++c) {
+          Integer t = go.get(s).get(c);
+          if (t == null) {
+            delta[s * width + c] = delta[fail[s] * width + c];
+          } else {
+            delta[s * width + c] = t;
+            fail[t] = delta[fail[s] * width + c];
+            queue.add(t);
+          }
+        }
+      }
+
+      // as if a line had just ended; nothing is reported for it
+      lineStartState = delta[classOf(LINE_START)];
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      if (list.isEmpty()) {
+        return null;
+      }
+      int[] a = new int[list.size()];
+      for (int i = 0; i < a.length; ++i) {
+        a[i] = list.get(i);
+      }
+      return a;
+    }
+
+    int classOf(char ch) {
+      if (ch < 128) {
+        return asciiClass[ch];
+      }
+      int c = Arrays.binarySearch(alphabet, ch);
+      return (c < 0) ? -1 : c;
+    }
+  }
+}
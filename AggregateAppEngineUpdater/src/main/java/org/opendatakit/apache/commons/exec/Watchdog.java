@@ -36,9 +36,13 @@ package org.opendatakit.apache.commons.exec;
 
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generalization of {@code ExecuteWatchdog}
+ * <p>
+ * Given a WatchdogService, the timeout is scheduled on the service's shared
+ * thread; otherwise each start() runs a thread of its own.
  *
  * @version $Id: Watchdog.java 1636056 2014-11-01 21:12:52Z ggregory $
  * @see org.opendatakit.apache.commons.exec.ExecuteWatchdog
@@ -49,13 +53,26 @@ public class Watchdog implements Runnable {
 
   private final long timeout;
 
+  private final WatchdogService service;
+
+  private WatchdogService.Timeout scheduled;
+
   private boolean stopped = false;
 
   public Watchdog(final long timeout) {
+    this(timeout, null);
+  }
+
+  /**
+   * @param timeout the timeout in milliseconds
+   * @param service the service to time out on; null for a thread of its own
+   */
+  public Watchdog(final long timeout, final WatchdogService service) {
     if (timeout < 1) {
       throw new IllegalArgumentException("timeout must not be less than 1.");
     }
     this.timeout = timeout;
+    this.service = service;
   }
 
   public void addTimeoutObserver(final TimeoutObserver to) {
@@ -75,6 +92,21 @@ public class Watchdog implements Runnable {
 
   public synchronized void start() {
     stopped = false;
+    if (service != null) {
+      scheduled = service.schedule(timeout, TimeUnit.MILLISECONDS, new Runnable() {
+        public void run() {
+          synchronized (Watchdog.this) {
+            if (stopped) {
+              return;
+            }
+            scheduled = null;
+          }
+          // notify the listeners outside of the synchronized block (see EXEC-60)
+          fireTimeoutOccured();
+        }
+      });
+      return;
+    }
     final Thread t = new Thread(this, "WATCHDOG");
     t.setDaemon(true);
     t.start();
@@ -82,6 +114,10 @@ public class Watchdog implements Runnable {
 
   public synchronized void stop() {
     stopped = true;
+    if (scheduled != null) {
+      scheduled.cancel();
+      scheduled = null;
+    }
     notifyAll();
   }
 
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.apache.commons.exec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opendatakit.apache.commons.exec.util.DebugUtils;
+
+/**
+ * Times out any number of Watchdogs from one daemon thread, instead of a thread
+ * per Watchdog.
+ * <p>
+ * Timeouts are kept in a hashed timer wheel: an array of buckets, one per tick,
+ * each a doubly-linked list. Scheduling and cancelling a timeout are constant
+ * time; the thread wakes once per tick while any timeout is pending (and not
+ * at all otherwise) and only looks at that tick's bucket. A timeout fires within
+ * a tick after it is due. Timeout actions run on the service thread, so they
+ * must be quick, as destroying a process is.
+ *
+ * @see Watchdog#Watchdog(long, WatchdogService)
+ * @see ExecuteWatchdog#ExecuteWatchdog(long, WatchdogService)
+ */
+public class WatchdogService {
+
+  public static final long DEFAULT_TICK_MILLIS = 100;
+
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final class SharedHolder {
+    static final WatchdogService INSTANCE = new WatchdogService();
+  }
+
+  /**
+   * A scheduled action, which can be cancelled until it has run.
+   */
+  public static final class Timeout {
+    private final Runnable action;
+    private long rounds;
+    private int bucket;
+    private Timeout prev;
+    private Timeout next;
+    /**
+     * PENDING, CANCELLED or EXPIRED
+     */
+    private int state = PENDING;
+
+    private final WatchdogService service;
+
+    private Timeout(WatchdogService service, Runnable action) {
+      this.service = service;
+      this.action = action;
+    }
+
+    /**
+     * @return true if the action will now not run; false if it has already run
+     * or been cancelled
+     */
+    public boolean cancel() {
+      return service.cancel(this);
+    }
+
+    public boolean isCancelled() {
+      synchronized (service) {
+        return state == CANCELLED;
+      }
+    }
+
+    public boolean isExpired() {
+      synchronized (service) {
+        return state == EXPIRED;
+      }
+    }
+  }
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private final long tickNanos;
+
+  private final int mask;
+
+  /**
+   * sentinel heads of the circular bucket lists
+   */
+  private final Timeout[] wheel;
+
+  private final Thread worker;
+
+  /**
+   * when tick 0 was (or would have been) due
+   */
+  private long startNanos;
+
+  /**
+   * the next tick to process
+   */
+  private long tick = 0;
+
+  private int registered = 0;
+  private long timedOutCount = 0;
+  private long cancelledCount = 0;
+  private boolean shutdown = false;
+
+  /**
+   * @return the service shared by everything that does not need its own
+   */
+  public static WatchdogService getShared() {
+    return SharedHolder.INSTANCE;
+  }
+
+  public WatchdogService() {
+    this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * @param tickMillis the timer resolution
+   * @param wheelSize  the number of buckets, rounded up to a power of two; timeouts
+   *                   longer than tickMillis * wheelSize go round the wheel more than once
+   */
+  public WatchdogService(final long tickMillis, final int wheelSize) {
+    if (tickMillis < 1) {
+      throw new IllegalArgumentException("tickMillis must not be less than 1.");
+    }
+    if (wheelSize < 1 || wheelSize > (1 << 20)) {
+      throw new IllegalArgumentException("wheelSize must be between 1 and 2^20.");
+    }
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.wheel = new Timeout[size];
+    for (int i = 0; i < size; ++i) {
+      Timeout head = new Timeout(this, null);
+      head.prev = head;
+      head.next = head;
+      wheel[i] = head;
+    }
+    this.startNanos = System.nanoTime();
+    this.worker = new Thread(new Runnable() {
+      public void run() {
+        runWheel();
+      }
+    }, "WATCHDOG SERVICE");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  /**
+   * Run the action once the delay has passed, unless it is cancelled first.
+   *
+   * @param delay  the delay; 0 or less runs the action at the next tick
+   * @param unit   the unit of the delay
+   * @param action what to run, on the service thread
+   * @return the handle for cancelling the action
+   * @throws IllegalStateException if the service has been shut down
+   */
+  public Timeout schedule(final long delay, final TimeUnit unit, final Runnable action) {
+    if (action == null) {
+      throw new NullPointerException("action is null.");
+    }
+    final Timeout timeout = new Timeout(this, action);
+    final long now = System.nanoTime();
+    synchronized (this) {
+      if (shutdown) {
+        throw new IllegalStateException("WatchdogService has been shut down.");
+      }
+      if (registered == 0) {
+        // the wheel is idle (and empty); make the next tick due now
+        startNanos = now - tick * tickNanos;
+      }
+      final long deadline = now + Math.max(0L, unit.toNanos(delay));
+      long due = (deadline - startNanos + tickNanos - 1) / tickNanos;
+      if (due < tick) {
+        due = tick;
+      }
+      timeout.rounds = (due - tick) / wheel.length;
+      timeout.bucket = (int) (due & mask);
+      final Timeout head = wheel[timeout.bucket];
+      timeout.prev = head.prev;
+      timeout.next = head;
+      head.prev.next = timeout;
+      head.prev = timeout;
+      if (++registered == 1) {
+        notifyAll();
+      }
+    }
+    return timeout;
+  }
+
+  private synchronized boolean cancel(final Timeout timeout) {
+    if (timeout.state != PENDING) {
+      return false;
+    }
+    timeout.state = CANCELLED;
+    unlink(timeout);
+    ++cancelledCount;
+    return true;
+  }
+
+  private void unlink(final Timeout timeout) {
+    timeout.prev.next = timeout.next;
+    timeout.next.prev = timeout.prev;
+    timeout.prev = null;
+    timeout.next = null;
+    --registered;
+  }
+
+  /**
+   * @return the number of timeouts scheduled and not yet run or cancelled
+   */
+  public synchronized int getRegisteredCount() {
+    return registered;
+  }
+
+  /**
+   * @return the number of timeouts that have run
+   */
+  public synchronized long getTimedOutCount() {
+    return timedOutCount;
+  }
+
+  public synchronized long getCancelledCount() {
+    return cancelledCount;
+  }
+
+  /**
+   * Stop the service thread. Pending timeouts are dropped without running.
+   */
+  public void shutdown() {
+    synchronized (this) {
+      shutdown = true;
+      notifyAll();
+    }
+  }
+
+  private void runWheel() {
+    final List<Timeout> expired = new ArrayList<Timeout>();
+    for (; ; ) {
+      synchronized (this) {
+        for (; ; ) {
+          if (shutdown) {
+            return;
+          }
+          if (registered == 0) {
+            try {
+              wait();
+            } catch (final InterruptedException e) {
+              // check again
+            }
+            continue;
+          }
+          final long wait = startNanos + tick * tickNanos - System.nanoTime();
+          if (wait <= 0) {
+            break;
+          }
+          try {
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+          } catch (final InterruptedException e) {
+            // check again
+          }
+        }
+        final Timeout head = wheel[(int) (tick & mask)];
+        for (Timeout t = head.next; t != head; ) {
+          final Timeout next = t.next;
+          if (t.rounds <= 0) {
+            t.state = EXPIRED;
+            unlink(t);
+            ++timedOutCount;
+            expired.add(t);
+          } else {
+            --t.rounds;
+          }
+          t = next;
+        }
+        ++tick;
+      }
+      // run the actions outside of the lock (see EXEC-60)
+      for (final Timeout t : expired) {
+        try {
+          t.action.run();
+        } catch (final RuntimeException e) {
+          // keep the wheel running for everyone else
+          if (DebugUtils.isDebugEnabled()) {
+            System.err.println("Watchdog timeout action failed");
+            e.printStackTrace();
+          }
+        }
+      }
+      expired.clear();
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.appengine.updater.exec.extended;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A log file written in the background: writes only copy the bytes into a
+ * pending batch, and a single daemon thread, shared by all these streams,
+ * writes each batch to the file at once. flush() therefore does not wait for
+ * the disk; close() returns at once too, and {@link #awaitClosed} waits for
+ * everything written to be in the file.
+ * <p>
+ * Once the file has reached the maximum size, it is rotated: it becomes
+ * {@code name.1} (gzipped to {@code name.1.gz} if compression is on), the older
+ * backups move up by one, the oldest is deleted, and a new file is started. A
+ * file may exceed the maximum by the size of the batch that filled it.
+ * <p>
+ * If the writer falls more than {@link #MAX_PENDING_BYTES} behind, writes wait
+ * for it. If the file cannot be written, the next write or flush throws. Files
+ * still open when the VM exits are written out and closed by a shutdown hook.
+ */
+public class AsyncRotatingFileOutputStream extends OutputStream {
+
+  public static final long DEFAULT_MAX_FILE_SIZE = 10L * 1024 * 1024;
+
+  public static final int DEFAULT_MAX_BACKUPS = 3;
+
+  public static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+  private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "Exec Log Writer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+  private static final Set<AsyncRotatingFileOutputStream> OPEN = ConcurrentHashMap.newKeySet();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(AsyncRotatingFileOutputStream::closeAll,
+        "Exec Log Writer Shutdown"));
+  }
+
+  private final File file;
+  private final long maxFileSize;
+  private final int maxBackups;
+  private final boolean compress;
+
+  // guarded by this
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+  private ByteArrayOutputStream spare = new ByteArrayOutputStream(8192);
+  private boolean drainScheduled = false;
+  private boolean closed = false;
+  private IOException failure = null;
+
+  // only used on the writer thread
+  private FileOutputStream out;
+  private long fileSize = 0;
+  private int rotations = 0;
+
+  private final CountDownLatch fileClosed = new CountDownLatch(1);
+
+  /**
+   * Start a log file of at most DEFAULT_MAX_FILE_SIZE bytes, with
+   * DEFAULT_MAX_BACKUPS gzipped backups.
+   *
+   * @param file the log file; any existing content is discarded
+   * @throws FileNotFoundException if the file cannot be opened for writing
+   */
+  public AsyncRotatingFileOutputStream(File file) throws FileNotFoundException {
+    this(file, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_BACKUPS, true);
+  }
+
+  /**
+   * @param file        the log file; any existing content is discarded
+   * @param maxFileSize the size at which the file is rotated
+   * @param maxBackups  the number of rotated files kept; 0 to start the file
+   *                    over instead
+   * @param compress    whether to gzip rotated files
+   * @throws FileNotFoundException if the file cannot be opened for writing
+   */
+  public AsyncRotatingFileOutputStream(File file, long maxFileSize, int maxBackups, boolean compress)
+      throws FileNotFoundException {
+    if (maxFileSize <= 0) {
+      throw new IllegalArgumentException("maxFileSize must be positive");
+    }
+    if (maxBackups < 0) {
+      throw new IllegalArgumentException("maxBackups may not be negative");
+    }
+    this.file = file;
+    this.maxFileSize = maxFileSize;
+    this.maxBackups = maxBackups;
+    this.compress = compress;
+    // opened here, so that a bad path is reported to the caller
+    this.out = new FileOutputStream(file, false);
+    OPEN.add(this);
+  }
+
+  private static void closeAll() {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_WAIT_MILLIS);
+    for (AsyncRotatingFileOutputStream s : OPEN) {
+      s.close();
+    }
+    try {
+      for (AsyncRotatingFileOutputStream s : OPEN) {
+        s.awaitClosed(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+    } catch (InterruptedException e) {
+      // exiting anyway
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @param index 1 for the most recent backup
+   * @return the name of that backup
+   */
+  public File getBackupFile(int index) {
+    return new File(file.getPath() + "." + index + (compress ? ".gz" : ""));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    while (pending.size() >= MAX_PENDING_BYTES && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting to write " + file);
+      }
+    }
+    checkOpen();
+    pending.write(b, off, len);
+    scheduleDrain();
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (failure != null) {
+      throw new IOException("Failed to write " + file, failure);
+    }
+  }
+
+  private void scheduleDrain() {
+    if (!drainScheduled) {
+      drainScheduled = true;
+      WRITER.execute(this::drain);
+    }
+  }
+
+  /**
+   * Reports a failure of the writer; the bytes are written in the background
+   * whether or not this is called.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    checkOpen();
+  }
+
+  /**
+   * Write what is pending, then close the file, in the background.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    scheduleDrain();
+  }
+
+  /**
+   * Wait for the file to be closed, after everything written has gone to it.
+   *
+   * @return false if the wait timed out
+   * @throws InterruptedException if the current thread was interrupted
+   */
+  public boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+    return fileClosed.await(timeout, unit);
+  }
+
+  /**
+   * @return the number of times the file has been rotated
+   */
+  public synchronized int getRotationCount() {
+    return rotations;
+  }
+
+  /**
+   * Runs on the writer thread until nothing is pending.
+   */
+  private void drain() {
+    for (; ; ) {
+      ByteArrayOutputStream batch;
+      synchronized (this) {
+        if (pending.size() == 0 || failure != null) {
+          pending.reset();
+          drainScheduled = false;
+          if (closed) {
+            closeFile();
+          }
+          notifyAll();
+          return;
+        }
+        batch = pending;
+        pending = spare;
+        spare = null;
+        // make room for writers waiting on a full batch
+        notifyAll();
+      }
+      IOException caught = null;
+      try {
+        batch.writeTo(out);
+        fileSize += batch.size();
+        if (fileSize >= maxFileSize) {
+          rotate();
+        }
+      } catch (IOException e) {
+        caught = e;
+      }
+      synchronized (this) {
+        batch.reset();
+        spare = batch;
+        if (caught != null) {
+          failure = caught;
+        }
+      }
+    }
+  }
+
+  private void closeFile() {
+    try {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+    OPEN.remove(this);
+    fileClosed.countDown();
+  }
+
+  private void rotate() throws IOException {
+    out.close();
+    out = null;
+    if (maxBackups > 0) {
+      Files.deleteIfExists(getBackupFile(maxBackups).toPath());
+      for (int i = maxBackups - 1; i >= 1; --i) {
+        File backup = getBackupFile(i);
+        if (backup.exists()) {
+          Files.move(backup.toPath(), getBackupFile(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      if (compress) {
+        gzip(file, getBackupFile(1));
+        Files.delete(file.toPath());
+      } else {
+        Files.move(file.toPath(), getBackupFile(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    out = new FileOutputStream(file, false);
+    fileSize = 0;
+    synchronized (this) {
+      ++rotations;
+    }
+  }
+
+  private static void gzip(File from, File to) throws IOException {
+    try (InputStream in = new FileInputStream(from);
+         OutputStream gz = new GZIPOutputStream(new FileOutputStream(to), 65536)) {
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        gz.write(buffer, 0, n);
+      }
+    }
+  }
+}
@@ -17,16 +17,18 @@
 package org.opendatakit.appengine.updater.exec.extended;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.bushe.swing.event.EventBus;
 import org.opendatakit.apache.commons.exec.AbstractLineBufferingCharacterStreamPumper;
 import org.opendatakit.apache.commons.exec.AbstractPumpStreamHandler;
 import org.opendatakit.apache.commons.exec.AbstractStreamPumper;
 import org.opendatakit.apache.commons.exec.StreamPumperBuilder;
 import org.opendatakit.apache.commons.exec.StreamPumperBuilder.StreamType;
+import org.opendatakit.apache.commons.exec.TriggerRegistry;
 import org.opendatakit.appengine.updater.AppCfgActions;
 import org.opendatakit.appengine.updater.PublishOutputEvent;
 import org.opendatakit.appengine.updater.TokenRequestEvent;
@@ -39,19 +41,30 @@ import org.opendatakit.appengine.updater.TokenRequestEvent;
  * The PumpStreamHandler class didn't have the necessary hooks to preclude
  * wholesale copying of its implementation.
  * <p>
- * Copies standard output and error of sub-processes to standard output and
- * error of the parent process. If output or error stream are set to null, any
- * feedback from that stream will be lost.
+ * Copies standard output and error of sub-processes to log files, written in the
+ * background and rotated once they reach AsyncRotatingFileOutputStream's maximum
+ * size, and keeps the last TAIL_SIZE bytes of each in memory.
  *
  * @version $Id: PumpStreamHandler.java 1557263 2014-01-10 21:18:09Z ggregory $
  */
 public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
 
+  public static final int TAIL_SIZE = 1024 * 1024;
+
+  /**
+   * AppCfg's request for the code from the OAuth2 token granting page
+   */
+  public static final String TOKEN_PROMPT = "Please enter code:";
+
   private AppCfgActions action;
   private String startingToken;
   private boolean tokenSent = false;
-  private FileOutputStream outs;
-  private FileOutputStream errs;
+  private AsyncRotatingFileOutputStream outs;
+  private AsyncRotatingFileOutputStream errs;
+  private final RingBufferOutputStream outTail = new RingBufferOutputStream(TAIL_SIZE);
+  private final RingBufferOutputStream errTail = new RingBufferOutputStream(TAIL_SIZE);
+  private final TriggerRegistry triggers = new TriggerRegistry()
+      .addLineStart(TOKEN_PROMPT, (pattern, end) -> tokenRequested());
 
   /**
    * Construct a new <CODE>PumpStreamHandler</CODE>.
@@ -66,8 +79,8 @@ public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
     this.startingToken = startingToken;
     this.action = action;
 
-    outs = new FileOutputStream(outLogFile, false);
-    errs = new FileOutputStream(errLogFile, false);
+    outs = new AsyncRotatingFileOutputStream(outLogFile);
+    errs = new AsyncRotatingFileOutputStream(errLogFile);
 
     init(new StreamPumperBuilder() {
 
@@ -76,9 +89,9 @@ public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
         switch (type) {
           default:
           case OUT:
-            return new TriggeringStreamPumper(type, is, outs);
+            return new TriggeringStreamPumper(type, is, new TeeOutputStream(outs, outTail));
           case ERR:
-            return new TriggeringStreamPumper(type, is, errs);
+            return new TriggeringStreamPumper(type, is, new TeeOutputStream(errs, errTail));
         }
       }
     });
@@ -94,10 +107,34 @@ public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
     }
   }
 
+  private synchronized void tokenRequested() throws IOException {
+    if (tokenSent || startingToken == null) {
+      // TODO: communicate with user to get token
+      EventBus.publish(new TokenRequestEvent(this));
+    } else {
+      tokenSent = true;
+      emitToken(startingToken);
+    }
+  }
+
   public AppCfgActions getAction() {
     return action;
   }
 
+  /**
+   * @return the last TAIL_SIZE bytes (in whole lines) of standard output
+   */
+  public String getOutputTail() {
+    return outTail.toString(Charset.defaultCharset());
+  }
+
+  /**
+   * @return the last TAIL_SIZE bytes (in whole lines) of standard error
+   */
+  public String getErrorTail() {
+    return errTail.toString(Charset.defaultCharset());
+  }
+
   /**
    * consider a non-zero return value to be an error.
    */
@@ -109,6 +146,7 @@ public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
   /**
    * Buffers the input into lines and copies all data from the input stream to the
    * output stream. Allows output to be modified and additional actions to be taken.
+   * The handler's triggers (e.g., the token prompt) are matched as the output arrives.
    *
    * @version $Id: StreamPumper.java 1557263 2014-01-10 21:18:09Z ggregory $
    */
@@ -123,23 +161,13 @@ public class MonitoredPumpStreamHandler extends AbstractPumpStreamHandler {
      * @param os output stream to write data to.
      */
     public TriggeringStreamPumper(StreamType type, final InputStream is, final OutputStream os) {
-      super(is, os);
+      super(is, os, Charset.defaultCharset(), triggers);
       this.type = type;
     }
 
     @Override
     protected String processLineSoFar(String line, boolean hasNewLine) throws IOException {
 
-      if (line.trim().equals("Please enter code:")) {
-        if (tokenSent || startingToken == null) {
-          // TODO: communicate with user to get token
-          EventBus.publish(new TokenRequestEvent(MonitoredPumpStreamHandler.this));
-        } else {
-          tokenSent = true;
-          emitToken(startingToken);
-        }
-      }
-
       if (hasNewLine) {
         EventBus.publish(new PublishOutputEvent(type, action, line));
       }
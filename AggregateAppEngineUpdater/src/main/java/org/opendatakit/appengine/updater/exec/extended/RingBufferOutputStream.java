@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 University of Washington.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.appengine.updater.exec.extended;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps the most recent bytes written, up to a fixed capacity, e.g., the tail
+ * of a process's output for display or for an error report. Older bytes are
+ * overwritten, so writes never allocate; reading the tail back through
+ * toByteArray() or toString() copies it.
+ */
+public class RingBufferOutputStream extends OutputStream {
+
+  private final byte[] buffer;
+
+  /** where the next byte goes */
+  private int next = 0;
+
+  private long totalBytesWritten = 0;
+
+  /**
+   * @param capacity the number of bytes kept
+   */
+  public RingBufferOutputStream(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.buffer = new byte[capacity];
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    buffer[next] = (byte) b;
+    next = (next + 1) % buffer.length;
+    ++totalBytesWritten;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    totalBytesWritten += len;
+    if (len >= buffer.length) {
+      // only the last capacity bytes survive
+      System.arraycopy(b, off + len - buffer.length, buffer, 0, buffer.length);
+      next = 0;
+      return;
+    }
+    int first = Math.min(len, buffer.length - next);
+    System.arraycopy(b, off, buffer, next, first);
+    System.arraycopy(b, off + first, buffer, 0, len - first);
+    next = (next + len) % buffer.length;
+  }
+
+  /**
+   * @return the number of bytes ever written, including those overwritten
+   */
+  public synchronized long getTotalBytesWritten() {
+    return totalBytesWritten;
+  }
+
+  /**
+   * @return the number of bytes kept
+   */
+  public synchronized int size() {
+    return (int) Math.min(totalBytesWritten, buffer.length);
+  }
+
+  /**
+   * @return true if bytes have been overwritten
+   */
+  public synchronized boolean isTruncated() {
+    return totalBytesWritten > buffer.length;
+  }
+
+  /**
+   * @return the bytes kept, oldest first
+   */
+  public synchronized byte[] toByteArray() {
+    byte[] result = new byte[size()];
+    if (totalBytesWritten < buffer.length) {
+      // not yet full; next is the count
+      System.arraycopy(buffer, 0, result, 0, next);
+    } else {
+      System.arraycopy(buffer, next, result, 0, buffer.length - next);
+      System.arraycopy(buffer, 0, result, buffer.length - next, next);
+    }
+    return result;
+  }
+
+  /**
+   * @param charset the encoding of the output
+   * @return the bytes kept, as text; once bytes have been overwritten, this
+   * starts after the first line break, so that it holds only whole lines (and
+   * whole characters)
+   */
+  public String toString(Charset charset) {
+    byte[] bytes;
+    boolean truncated;
+    synchronized (this) {
+      bytes = toByteArray();
+      truncated = isTruncated();
+    }
+    int start = 0;
+    if (truncated) {
+      for (int i = 0; i < bytes.length; ++i) {
+        if (bytes[i] == '\n') {
+          start = i + 1;
+          break;
+        }
+      }
+    }
+    return new String(bytes, start, bytes.length - start, charset);
+  }
+
+  @Override
+  public String toString() {
+    return toString(Charset.defaultCharset());
+  }
+
+  public synchronized void reset() {
+    next = 0;
+    totalBytesWritten = 0;
+  }
+}
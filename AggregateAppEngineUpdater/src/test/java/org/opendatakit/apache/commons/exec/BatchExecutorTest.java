@@ -0,0 +1,166 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class BatchExecutorTest {
+
+  /**
+   * Prints the value of BATCH_JOB, sleeps for the given time, then exits with
+   * the given status.
+   */
+  public static class Child {
+    public static void main(String[] args) throws Exception {
+      System.out.println(System.getenv("BATCH_JOB"));
+      System.out.flush();
+      Thread.sleep(Long.parseLong(args[0]));
+      System.exit(Integer.parseInt(args[1]));
+    }
+  }
+
+  /**
+   * Keeps track of the most processes running at once.
+   */
+  private static class CountingDestroyer implements ProcessDestroyer {
+    int running = 0;
+    int maxRunning = 0;
+
+    public synchronized boolean add(Process process) {
+      maxRunning = Math.max(maxRunning, ++running);
+      return true;
+    }
+
+    public synchronized boolean remove(Process process) {
+      --running;
+      return true;
+    }
+
+    public synchronized int size() {
+      return running;
+    }
+  }
+
+  private static BatchJob job(String name, long sleepMillis, int exitValue, final ByteArrayOutputStream out) {
+    CommandLine cmd = new CommandLine(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.addArgument("-cp");
+    cmd.addArgument(System.getProperty("java.class.path"));
+    cmd.addArgument(Child.class.getName());
+    cmd.addArgument(Long.toString(sleepMillis));
+    cmd.addArgument(Integer.toString(exitValue));
+    Map<String, String> env = new HashMap<>();
+    env.put("BATCH_JOB", name);
+    return new BatchJob(cmd)
+        .setEnvironment(env)
+        .setWorkingDirectory(new File(System.getProperty("java.io.tmpdir")))
+        .setStreamHandler(new PumpStreamHandler(new StreamPumperBuilder() {
+          @Override
+          public AbstractStreamPumper newStreamPumper(StreamType type, InputStream is) {
+            return new StreamPumper(is, (type == StreamType.OUT) ? out : new ByteArrayOutputStream());
+          }
+        }));
+  }
+
+  @Test
+  public void runs_every_job_within_the_parallelism_limit() throws Exception {
+    List<BatchJob> jobs = new ArrayList<>();
+    List<ByteArrayOutputStream> outs = new ArrayList<>();
+    for (int i = 0; i < 6; ++i) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      outs.add(out);
+      jobs.add(job("job " + i, 200, (i == 2) ? 3 : 0, out));
+    }
+    BatchExecutor executor = new BatchExecutor(2, BatchExecutor.FailurePolicy.COLLECT_ALL);
+    CountingDestroyer destroyer = new CountingDestroyer();
+    executor.setProcessDestroyer(destroyer);
+
+    BatchResult result = executor.execute(jobs);
+
+    assertThat(result.getResults().size(), is(6));
+    assertThat(result.getCount(BatchResult.Status.SUCCEEDED), is(5));
+    assertThat(result.isSuccess(), is(false));
+    BatchResult.JobResult failed = result.getFailures().get(0);
+    assertThat(failed.getJob(), is(jobs.get(2)));
+    assertThat(failed.getStatus(), is(BatchResult.Status.FAILED));
+    assertThat(failed.getExitValue(), is(3));
+    for (int i = 0; i < 6; ++i) {
+      assertThat(result.getResults().get(i).getJob(), is(jobs.get(i)));
+      assertThat(result.getResults().get(i).getDurationMillis() >= 200, is(true));
+      assertThat(outs.get(i).toString().trim(), is("job " + i));
+    }
+    assertThat(destroyer.maxRunning, is(2));
+    assertThat(destroyer.running, is(0));
+  }
+
+  @Test
+  public void fail_fast_stops_the_batch_at_the_first_failure() throws Exception {
+    List<BatchJob> jobs = new ArrayList<>();
+    jobs.add(job("fails", 1000, 1, new ByteArrayOutputStream()));
+    for (int i = 0; i < 3; ++i) {
+      jobs.add(job("job " + i, 30000, 0, new ByteArrayOutputStream()));
+    }
+    BatchExecutor executor = new BatchExecutor(2, BatchExecutor.FailurePolicy.FAIL_FAST);
+
+    BatchResult result = executor.execute(jobs);
+
+    assertThat(result.getResults().get(0).getStatus(), is(BatchResult.Status.FAILED));
+    assertThat(result.getResults().get(1).getStatus(), is(BatchResult.Status.ABORTED));
+    assertThat(result.getResults().get(2).getStatus(), is(BatchResult.Status.NOT_STARTED));
+    assertThat(result.getResults().get(3).getStatus(), is(BatchResult.Status.NOT_STARTED));
+    assertThat(result.getElapsedMillis(), lessThan(20000L));
+  }
+
+  @Test
+  public void times_out_jobs_on_a_stream_pump_service() throws Exception {
+    StreamPumpService service = new StreamPumpService(1);
+    try {
+      BatchExecutor executor = new BatchExecutor(4, BatchExecutor.FailurePolicy.COLLECT_ALL);
+      executor.setStreamPumpService(service);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      BatchResult result = executor.execute(Collections.singletonList(
+          job("slow", 30000, 0, out).setTimeout(1000)));
+
+      BatchResult.JobResult r = result.getResults().get(0);
+      assertThat(r.getStatus(), is(BatchResult.Status.TIMED_OUT));
+      assertThat(r.getDurationMillis(), lessThanOrEqualTo(20000L));
+      assertThat(out.toString().trim(), is("slow"));
+    } finally {
+      service.shutdown();
+    }
+  }
+
+  @Test
+  public void an_empty_batch_completes_at_once() throws Exception {
+    BatchResult result = new BatchExecutor().executeAsync(Collections.<BatchJob>emptyList()).get();
+
+    assertThat(result.getResults().size(), is(0));
+    assertThat(result.isSuccess(), is(true));
+  }
+
+  @Test(timeout = 60000)
+  public void many_jobs_that_fail_to_launch_complete_the_batch() throws Exception {
+    File missing = new File(System.getProperty("java.io.tmpdir"), "no-such-directory-" + System.nanoTime());
+    List<BatchJob> jobs = new ArrayList<>();
+    for (int i = 0; i < 3000; ++i) {
+      jobs.add(job("job " + i, 0, 0, new ByteArrayOutputStream()).setWorkingDirectory(missing));
+    }
+    BatchExecutor executor = new BatchExecutor(4, BatchExecutor.FailurePolicy.COLLECT_ALL);
+
+    BatchResult result = executor.execute(jobs);
+
+    assertThat(result.getCount(BatchResult.Status.FAILED), is(3000));
+    assertThat(result.getResults().get(2999).getException() != null, is(true));
+  }
+}
@@ -0,0 +1,149 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DefaultExecuteResultHandlerTest {
+
+  private static void completeLater(DefaultExecuteResultHandler handler, long delayMillis, int exitValue) {
+    Thread t = new Thread(() -> {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        // complete early
+      }
+      handler.onProcessComplete(exitValue);
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
+  @Test
+  public void wait_ends_when_the_process_completes() throws InterruptedException {
+    DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+    completeLater(handler, 100, 3);
+
+    long start = System.nanoTime();
+    handler.waitFor(10000);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(5000L));
+    assertThat(handler.hasResult(), is(true));
+    assertThat(handler.getExitValue(), is(3));
+    assertThat(handler.getException() == null, is(true));
+  }
+
+  @Test
+  public void timed_wait_returns_without_a_result() throws InterruptedException {
+    DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+
+    handler.waitFor(20);
+
+    assertThat(handler.hasResult(), is(false));
+  }
+
+  @Test
+  public void failure_is_reported_by_the_future() throws InterruptedException {
+    DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+    ExecuteException failure = new ExecuteException("boom", 2);
+    handler.onProcessFailed(failure);
+
+    handler.waitFor();
+
+    assertThat(handler.getException(), is(sameInstance(failure)));
+    assertThat(handler.getExitValue(), is(2));
+    assertThat(handler.getFuture().isCompletedExceptionally(), is(true));
+  }
+
+  @Test
+  public void chained_steps_launch_in_order_once_each_succeeds() throws InterruptedException {
+    List<String> launched = new CopyOnWriteArrayList<>();
+    DefaultExecuteResultHandler first = new DefaultExecuteResultHandler();
+
+    DefaultExecuteResultHandler last = first
+        .thenLaunch(h -> {
+          launched.add("update");
+          completeLater(h, 10, 0);
+        })
+        .thenLaunch(h -> {
+          launched.add("cleanup");
+          completeLater(h, 10, 7);
+        });
+    assertThat(launched, is(empty()));
+
+    first.onProcessComplete(0);
+    last.waitFor(10000);
+
+    assertThat(launched, contains("update", "cleanup"));
+    assertThat(last.getExitValue(), is(7));
+  }
+
+  @Test
+  public void a_failed_step_fails_the_rest_of_the_chain_without_launching_it() throws InterruptedException {
+    List<String> launched = new CopyOnWriteArrayList<>();
+    DefaultExecuteResultHandler first = new DefaultExecuteResultHandler();
+    DefaultExecuteResultHandler last = first
+        .thenLaunch(h -> launched.add("update"))
+        .thenLaunch(h -> launched.add("cleanup"));
+
+    ExecuteException failure = new ExecuteException("token rejected", 1);
+    first.onProcessFailed(failure);
+    last.waitFor(10000);
+
+    assertThat(launched, is(empty()));
+    assertThat(last.getException(), is(sameInstance(failure)));
+  }
+
+  @Test
+  public void the_first_result_wins_and_the_getters_follow_the_future() throws Exception {
+    for (int i = 0; i < 200; ++i) {
+      DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+      ExecuteException failure = new ExecuteException("killed", 143);
+      Thread failer = new Thread(() -> handler.onProcessFailed(failure));
+      failer.start();
+      handler.onProcessComplete(0);
+      failer.join();
+
+      if (handler.getFuture().isCompletedExceptionally()) {
+        assertThat(handler.getException(), is(sameInstance(failure)));
+        assertThat(handler.getExitValue(), is(143));
+      } else {
+        assertThat(handler.getException() == null, is(true));
+        assertThat(handler.getExitValue(), is(0));
+        assertThat(handler.getFuture().getNow(-1), is(0));
+      }
+    }
+  }
+
+  @Test
+  public void a_result_set_through_the_future_is_reported() {
+    DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+    handler.getFuture().complete(5);
+    handler.onProcessFailed(new ExecuteException("too late", 1));
+
+    assertThat(handler.getExitValue(), is(5));
+    assertThat(handler.getException() == null, is(true));
+  }
+
+  @Test
+  public void cancelling_the_future_ends_the_wait_with_a_failure() throws InterruptedException {
+    DefaultExecuteResultHandler handler = new DefaultExecuteResultHandler();
+    handler.getFuture().cancel(false);
+
+    handler.waitFor();
+    handler.waitFor(10);
+
+    assertThat(handler.hasResult(), is(true));
+    assertThat(handler.getException().getCause() instanceof CancellationException, is(true));
+    assertThat(handler.getExitValue(), is(Executor.INVALID_EXITVALUE));
+  }
+}
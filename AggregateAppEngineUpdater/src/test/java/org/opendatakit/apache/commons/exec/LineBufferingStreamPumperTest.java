@@ -0,0 +1,146 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LineBufferingStreamPumperTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Returns one scripted chunk per read, as a process writing in bursts would.
+   */
+  private static class ChunkedInputStream extends InputStream {
+    private final List<byte[]> chunks;
+    private int next = 0;
+
+    ChunkedInputStream(byte[]... chunks) {
+      this.chunks = Arrays.asList(chunks);
+    }
+
+    @Override
+    public int read() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (next == chunks.size()) {
+        return -1;
+      }
+      byte[] chunk = chunks.get(next++);
+      System.arraycopy(chunk, 0, b, off, chunk.length);
+      return chunk.length;
+    }
+  }
+
+  private static class RecordingPumper extends AbstractLineBufferingCharacterStreamPumper {
+    final List<String> calls = new ArrayList<>();
+
+    RecordingPumper(InputStream is, OutputStream os) {
+      this(is, os, null);
+    }
+
+    RecordingPumper(InputStream is, OutputStream os, TriggerRegistry triggers) {
+      super(is, os, UTF_8, triggers);
+    }
+
+    @Override
+    protected String processLineSoFar(String line, boolean hasNewLine) {
+      calls.add((hasNewLine ? "line:" : "partial:") + line);
+      return line.startsWith("secret") ? null : line.toUpperCase();
+    }
+  }
+
+  private static List<String> pump(ByteArrayOutputStream out, byte[]... chunks) {
+    RecordingPumper pumper = new RecordingPumper(new ChunkedInputStream(chunks), out);
+    pumper.start();
+    pumper.waitFor();
+    return pumper.calls;
+  }
+
+  @Test
+  public void reports_each_complete_line_and_writes_what_is_returned() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<String> calls = pump(out, "one\r\ntwo\nsecret\nthree\n".getBytes(UTF_8));
+
+    assertThat(calls, contains("line:one", "line:two", "line:secret", "line:three"));
+    String nl = System.lineSeparator();
+    assertThat(out.toString("UTF-8"), is("ONE" + nl + "TWO" + nl + "THREE" + nl));
+  }
+
+  @Test
+  public void reports_a_prompt_without_a_newline_as_soon_as_it_arrives() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<String> calls = pump(out,
+        "Go to the following link:\nPlease ".getBytes(UTF_8),
+        "enter code: ".getBytes(UTF_8),
+        "\nUpdating\n".getBytes(UTF_8));
+
+    assertThat(calls, contains(
+        "line:Go to the following link:",
+        "partial:Please ",
+        "partial:Please enter code: ",
+        "line:Please enter code: ",
+        "line:Updating"));
+  }
+
+  @Test
+  public void decodes_characters_split_across_reads() throws IOException {
+    byte[] text = "café €\n".getBytes(UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // the euro sign is three bytes; split it between reads
+    List<String> calls = pump(out, Arrays.copyOfRange(text, 0, 7), Arrays.copyOfRange(text, 7, text.length));
+
+    assertThat(calls, contains("partial:café ", "line:café €"));
+    assertThat(out.toString("UTF-8"), is("CAFÉ €" + System.lineSeparator()));
+  }
+
+  @Test
+  public void writes_an_unterminated_last_line() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<String> calls = pump(out, "done".getBytes(UTF_8));
+
+    assertThat(calls, contains("partial:done", "partial:done"));
+    assertThat(out.toString("UTF-8"), is("DONE"));
+  }
+
+  @Test
+  public void fires_triggers_as_the_characters_arrive() {
+    final List<String> events = new ArrayList<>();
+    TriggerRegistry triggers = new TriggerRegistry()
+        .addLineStart("Please enter code:", (pattern, end) -> events.add("prompt"));
+    RecordingPumper pumper = new RecordingPumper(new ChunkedInputStream(
+        "Go to the following link:\nPlease ".getBytes(UTF_8),
+        "enter code: ".getBytes(UTF_8),
+        "\nUpdating\n".getBytes(UTF_8)), new ByteArrayOutputStream(), triggers) {
+      @Override
+      protected String processLineSoFar(String line, boolean hasNewLine) {
+        events.add(line);
+        return line;
+      }
+    };
+    pumper.start();
+    pumper.waitFor();
+
+    // the prompt is matched across the reads, before the partial line is reported
+    assertThat(events, contains(
+        "Go to the following link:",
+        "Please ",
+        "prompt",
+        "Please enter code: ",
+        "Please enter code: ",
+        "Updating"));
+  }
+}
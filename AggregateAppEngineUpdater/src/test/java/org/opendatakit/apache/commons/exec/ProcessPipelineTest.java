@@ -0,0 +1,140 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import org.junit.Test;
+
+public class ProcessPipelineTest {
+
+  /**
+   * emit n: writes n numbered lines; upper: copies its input in upper case,
+   * then reports the line count on standard error; sleep ms. Exits with the
+   * status given last.
+   */
+  public static class Child {
+    public static void main(String[] args) throws Exception {
+      if (args[0].equals("emit")) {
+        int lines = Integer.parseInt(args[1]);
+        for (int i = 0; i < lines; ++i) {
+          System.out.println("line " + i);
+        }
+        System.err.println("emitted");
+      } else if (args[0].equals("upper")) {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        int count = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+          System.out.println(line.toUpperCase());
+          ++count;
+        }
+        System.err.println(count + " lines");
+      } else if (args[0].equals("sleep")) {
+        Thread.sleep(Long.parseLong(args[1]));
+      }
+      System.out.flush();
+      System.exit(Integer.parseInt(args[args.length - 1]));
+    }
+  }
+
+  private static CommandLine child(String... args) {
+    CommandLine cmd = new CommandLine(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.addArgument("-cp");
+    cmd.addArgument(System.getProperty("java.class.path"));
+    cmd.addArgument(Child.class.getName());
+    for (String arg : args) {
+      cmd.addArgument(arg);
+    }
+    return cmd;
+  }
+
+  private static PumpStreamHandler capture(final OutputStream out, final OutputStream err) {
+    return new PumpStreamHandler(new StreamPumperBuilder() {
+      @Override
+      public AbstractStreamPumper newStreamPumper(StreamType type, InputStream is) {
+        return new StreamPumper(is, (type == StreamType.OUT) ? out : err);
+      }
+    });
+  }
+
+  @Test
+  public void connects_the_stages_and_attaches_only_the_last() throws Exception {
+    File stageErrors = File.createTempFile("stage", ".err");
+    try {
+      ProcessPipeline pipeline = new ProcessPipeline(child("emit", "3", "0"))
+          .pipeTo(child("upper", "0"));
+      pipeline.setStageErrorFile(stageErrors);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      DefaultExecutor executor = new DefaultExecutor();
+      executor.setStreamHandler(capture(out, err));
+
+      int exitValue = executor.execute(pipeline, new HashMap<String, String>());
+
+      String nl = System.lineSeparator();
+      assertThat(exitValue, is(0));
+      assertThat(out.toString(), is("LINE 0" + nl + "LINE 1" + nl + "LINE 2" + nl));
+      assertThat(err.toString(), is("3 lines" + nl));
+      assertThat(new String(Files.readAllBytes(stageErrors.toPath()), "UTF-8"), is("emitted" + nl));
+    } finally {
+      stageErrors.delete();
+    }
+  }
+
+  @Test
+  public void reports_the_exit_value_of_the_last_stage() throws Exception {
+    ProcessPipeline pipeline = new ProcessPipeline(child("emit", "1000", "0"))
+        .pipeTo(child("upper", "0"))
+        .pipeTo(child("upper", "4"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DefaultExecutor executor = new DefaultExecutor();
+    executor.setStreamHandler(capture(out, new ByteArrayOutputStream()));
+    StreamPumpService service = new StreamPumpService(1);
+    executor.setStreamPumpService(service);
+    DefaultExecuteResultHandler result = new DefaultExecuteResultHandler();
+    try {
+      executor.execute(pipeline, new HashMap<String, String>(), result);
+      result.waitFor(60000);
+    } finally {
+      service.shutdown();
+    }
+
+    assertThat(result.getExitValue(), is(4));
+    assertThat(out.toString().split("\\R").length, is(1000));
+  }
+
+  @Test
+  public void a_watchdog_destroys_the_pipeline() throws Exception {
+    ProcessPipeline pipeline = new ProcessPipeline(child("emit", "1", "0"))
+        .pipeTo(child("sleep", "60000", "0"));
+    DefaultExecutor executor = new DefaultExecutor();
+    executor.setStreamHandler(capture(new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+    ExecuteWatchdog watchdog = new ExecuteWatchdog(1000);
+    executor.setWatchdog(watchdog);
+    DefaultExecuteResultHandler result = new DefaultExecuteResultHandler();
+
+    long start = System.nanoTime();
+    executor.execute(pipeline, new HashMap<String, String>(), result);
+    result.waitFor(60000);
+
+    assertThat(result.hasResult(), is(true));
+    assertThat(watchdog.killedProcess(), is(true));
+    assertThat((System.nanoTime() - start) / 1000000L, lessThan(30000L));
+  }
+
+  @Test
+  public void quotes_arguments_for_the_shell() throws Exception {
+    ProcessPipeline pipeline = new ProcessPipeline(new CommandLine("echo").addArgument("it's $HOME"));
+
+    assertThat(pipeline.toShellScript().contains("'echo' 'it'\\''s $HOME' <&3 3<&- &"), is(true));
+  }
+}
@@ -0,0 +1,179 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+public class StreamPumpServiceTest {
+
+  private final StreamPumpService service = new StreamPumpService(1);
+
+  @After
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  /**
+   * Writes numbered lines to standard output and one line to standard error,
+   * then exits with the given status.
+   */
+  public static class Child {
+    public static void main(String[] args) throws Exception {
+      int lines = Integer.parseInt(args[0]);
+      for (int i = 0; i < lines; ++i) {
+        System.out.println("line " + i);
+        if (i % 500 == 0) {
+          Thread.sleep(5);
+        }
+      }
+      System.out.flush();
+      System.err.println("done");
+      System.exit(Integer.parseInt(args[1]));
+    }
+  }
+
+  private static CommandLine child(int lines, int exitValue) {
+    CommandLine cmd = new CommandLine(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.addArgument("-cp");
+    cmd.addArgument(System.getProperty("java.class.path"));
+    cmd.addArgument(Child.class.getName());
+    cmd.addArgument(Integer.toString(lines));
+    cmd.addArgument(Integer.toString(exitValue));
+    return cmd;
+  }
+
+  private static class Run {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final DefaultExecuteResultHandler result = new DefaultExecuteResultHandler();
+  }
+
+  /**
+   * Implements only the blocking pumping, one byte at a time.
+   */
+  private static class ThreadOnlyPumper extends AbstractStreamPumper {
+    ThreadOnlyPumper(InputStream is, OutputStream os) {
+      super(is, os);
+    }
+
+    @Override
+    protected void attemptProcessInputStreamBytes(InputStream is, OutputStream os) throws IOException {
+      int b = is.read();
+      if (b == -1) {
+        signalShouldClose();
+      } else {
+        os.write(b);
+      }
+    }
+  }
+
+  private Run start(int lines, int exitValue) throws IOException {
+    return start(lines, exitValue, false);
+  }
+
+  private Run start(int lines, int exitValue, final boolean threadOnly) throws IOException {
+    final Run run = new Run();
+    DefaultExecutor executor = new DefaultExecutor();
+    executor.setStreamPumpService(service);
+    executor.setStreamHandler(new PumpStreamHandler(new StreamPumperBuilder() {
+      @Override
+      public AbstractStreamPumper newStreamPumper(StreamType type, InputStream is) {
+        OutputStream os = (type == StreamType.OUT) ? run.out : run.err;
+        return threadOnly ? new ThreadOnlyPumper(is, os) : new StreamPumper(is, os);
+      }
+    }));
+    executor.execute(child(lines, exitValue), new HashMap<String, String>(), run.result);
+    return run;
+  }
+
+  private static int countThreads(String name) {
+    int count = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals(name)) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void pumps_many_processes_to_completion_on_one_thread() throws Exception {
+    List<Run> runs = new ArrayList<>();
+    for (int i = 0; i < 6; ++i) {
+      runs.add(start(2000, 0));
+    }
+
+    assertThat(countThreads("Exec Default Executor"), is(0));
+    assertThat(countThreads("Exec Stream Pumper"), is(0));
+
+    String nl = System.lineSeparator();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      expected.append("line ").append(i).append(nl);
+    }
+    for (Run run : runs) {
+      run.result.waitFor(60000);
+      assertThat(run.result.hasResult(), is(true));
+      assertThat(run.result.getExitValue(), is(0));
+      assertThat(run.out.toString(), is(expected.toString()));
+      assertThat(run.err.toString(), is("done" + nl));
+    }
+    assertThat(service.getPumperCount(), is(0));
+    assertThat(service.getWatchCount(), is(0));
+  }
+
+  @Test
+  public void reports_a_failing_exit_value() throws Exception {
+    Run run = start(10, 3);
+
+    run.result.waitFor(60000);
+
+    assertThat(run.result.getException() != null, is(true));
+    assertThat(run.result.getExitValue(), is(3));
+  }
+
+  @Test
+  public void pumpers_that_cannot_be_polled_get_their_own_thread() throws Exception {
+    Run run = start(100, 0, true);
+
+    run.result.waitFor(60000);
+
+    assertThat(run.result.getExitValue(), is(0));
+    String nl = System.lineSeparator();
+    assertThat(run.out.toString().endsWith("line 99" + nl), is(true));
+    assertThat(run.err.toString(), is("done" + nl));
+    assertThat(service.getPumperCount(), is(0));
+  }
+
+  @Test
+  public void registrations_refused_after_shutdown_are_not_counted() throws Exception {
+    service.shutdown();
+    try {
+      service.register(new StreamPumper(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()));
+      fail("expected the shut down service to refuse the pumper");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      service.watch(() -> true, () -> { });
+      fail("expected the shut down service to refuse the watch");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertThat(service.getPumperCount(), is(0));
+    assertThat(service.getWatchCount(), is(0));
+  }
+}
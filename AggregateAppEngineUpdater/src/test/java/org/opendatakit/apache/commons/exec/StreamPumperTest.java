@@ -0,0 +1,51 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class StreamPumperTest {
+
+  @Test
+  public void copies_the_whole_stream_in_order() {
+    byte[] data = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(data);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    StreamPumper pumper = new StreamPumper(new ByteArrayInputStream(data), out, 4096);
+    pumper.start();
+    pumper.waitFor();
+
+    assertThat(Arrays.equals(out.toByteArray(), data), is(true));
+  }
+
+  @Test
+  public void forwards_output_as_soon_as_it_arrives() throws IOException, InterruptedException {
+    PipedOutputStream process = new PipedOutputStream();
+    InputStream is = new PipedInputStream(process);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    StreamPumper pumper = new StreamPumper(is, out);
+    pumper.start();
+    process.write("Please enter code: ".getBytes("UTF-8"));
+    process.flush();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (out.size() < 19 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(out.toString("UTF-8"), is("Please enter code: "));
+
+    process.close();
+    pumper.waitFor();
+    assertThat(pumper.isFinished(), is(true));
+  }
+}
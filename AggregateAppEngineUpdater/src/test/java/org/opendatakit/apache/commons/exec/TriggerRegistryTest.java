@@ -0,0 +1,83 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TriggerRegistryTest {
+
+  private final List<String> found = new ArrayList<>();
+
+  private final TriggerRegistry.Callback record = (pattern, end) -> found.add(pattern + "@" + end);
+
+  @Test
+  public void finds_overlapping_patterns_in_one_pass() throws Exception {
+    TriggerRegistry registry = new TriggerRegistry()
+        .addLiteral("he", record)
+        .addLiteral("she", record)
+        .addLiteral("his", record)
+        .addLiteral("hers", record);
+
+    registry.newMatcher().feed("ushers");
+
+    assertThat(found, contains("she@4", "he@4", "hers@6"));
+  }
+
+  @Test
+  public void finds_patterns_split_across_chunks() throws Exception {
+    TriggerRegistry registry = new TriggerRegistry()
+        .addLiteral("ERROR", record)
+        .addLiteral("100%", record);
+    TriggerRegistry.Matcher matcher = registry.newMatcher();
+
+    char[] text = "upload 50%... 100%\nERROR: quota\n".toCharArray();
+    for (int i = 0; i < text.length; i += 3) {
+      matcher.feed(text, i, Math.min(3, text.length - i));
+    }
+
+    assertThat(found, contains("100%@18", "ERROR@24"));
+    assertThat(matcher.getPosition(), is((long) text.length));
+  }
+
+  @Test
+  public void anchored_patterns_only_match_at_the_start_of_a_line() throws Exception {
+    TriggerRegistry registry = new TriggerRegistry()
+        .addLineStart("Please enter code:", record);
+    TriggerRegistry.Matcher matcher = registry.newMatcher();
+
+    matcher.feed("Please enter code: ");
+    matcher.feed("x\nthen Please enter code: again\nPlease");
+    assertThat(found, contains("Please enter code:@18"));
+
+    matcher.feed(" enter code:");
+    assertThat(found.size(), is(2));
+  }
+
+  @Test
+  public void matchers_follow_their_streams_independently() throws Exception {
+    TriggerRegistry registry = new TriggerRegistry().addLiteral("done", record);
+    TriggerRegistry.Matcher out = registry.newMatcher();
+    TriggerRegistry.Matcher err = registry.newMatcher();
+
+    out.feed("do");
+    err.feed("ne");
+    assertThat(found, is(empty()));
+
+    out.feed("ne");
+    assertThat(found, contains("done@4"));
+  }
+
+  @Test
+  public void handles_characters_outside_ascii() throws Exception {
+    TriggerRegistry registry = new TriggerRegistry().addLiteral("caf\u00e9", record);
+
+    registry.newMatcher().feed("un caf\u00e9, deux caf\u00e9s");
+
+    assertThat(found, contains("caf\u00e9@7", "caf\u00e9@18"));
+  }
+}
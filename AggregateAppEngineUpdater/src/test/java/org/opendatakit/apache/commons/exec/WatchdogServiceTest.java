@@ -0,0 +1,93 @@
+package org.opendatakit.apache.commons.exec;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class WatchdogServiceTest {
+
+  private final WatchdogService service = new WatchdogService(5, 16);
+
+  @After
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  @Test
+  public void fires_no_earlier_than_the_delay_even_after_several_turns_of_the_wheel() throws InterruptedException {
+    CountDownLatch fired = new CountDownLatch(1);
+    long start = System.nanoTime();
+    // 16 buckets of 5 ms are one turn every 80 ms
+    service.schedule(300, TimeUnit.MILLISECONDS, fired::countDown);
+
+    assertThat(fired.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(300L));
+    assertThat(service.getTimedOutCount(), is(1L));
+    assertThat(service.getRegisteredCount(), is(0));
+  }
+
+  @Test
+  public void a_cancelled_timeout_does_not_fire() throws InterruptedException {
+    AtomicInteger fired = new AtomicInteger();
+    WatchdogService.Timeout timeout = service.schedule(50, TimeUnit.MILLISECONDS, fired::incrementAndGet);
+    assertThat(service.getRegisteredCount(), is(1));
+
+    assertThat(timeout.cancel(), is(true));
+    assertThat(timeout.cancel(), is(false));
+    Thread.sleep(150);
+
+    assertThat(fired.get(), is(0));
+    assertThat(timeout.isCancelled(), is(true));
+    assertThat(service.getRegisteredCount(), is(0));
+    assertThat(service.getCancelledCount(), is(1L));
+  }
+
+  @Test
+  public void handles_thousands_of_timeouts_on_one_thread() throws InterruptedException {
+    Random random = new Random(42);
+    CountDownLatch fired = new CountDownLatch(2500);
+    List<WatchdogService.Timeout> toCancel = new ArrayList<>();
+    // long enough for none to fire before they are all scheduled and half cancelled
+    for (int i = 0; i < 5000; ++i) {
+      WatchdogService.Timeout t = service.schedule(500 + random.nextInt(200), TimeUnit.MILLISECONDS, fired::countDown);
+      if (i % 2 == 1) {
+        toCancel.add(t);
+      }
+    }
+    for (WatchdogService.Timeout t : toCancel) {
+      t.cancel();
+    }
+
+    assertThat(fired.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(service.getTimedOutCount(), is(2500L));
+    assertThat(service.getCancelledCount(), is(2500L));
+    assertThat(service.getRegisteredCount(), is(0));
+  }
+
+  @Test
+  public void a_stopped_watchdog_does_not_notify_its_observers() throws InterruptedException {
+    AtomicInteger timeouts = new AtomicInteger();
+    Watchdog stopped = new Watchdog(30, service);
+    stopped.addTimeoutObserver(w -> timeouts.incrementAndGet());
+    Watchdog running = new Watchdog(30, service);
+    CountDownLatch fired = new CountDownLatch(1);
+    running.addTimeoutObserver(w -> fired.countDown());
+
+    stopped.start();
+    running.start();
+    stopped.stop();
+
+    assertThat(fired.await(5, TimeUnit.SECONDS), is(true));
+    Thread.sleep(50);
+    assertThat(timeouts.get(), is(0));
+  }
+}
@@ -0,0 +1,121 @@
+package org.opendatakit.appengine.updater.exec.extended;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncRotatingFileOutputStreamTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("logs").toFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private static String read(File f) throws IOException {
+    return new String(Files.readAllBytes(f.toPath()), UTF_8);
+  }
+
+  private static String gunzip(File f) throws IOException {
+    try (InputStream in = new GZIPInputStream(new FileInputStream(f))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), UTF_8);
+    }
+  }
+
+  @Test
+  public void writes_everything_by_the_time_it_is_closed() throws Exception {
+    File log = new File(dir, "update.stdout.log");
+    AsyncRotatingFileOutputStream out = new AsyncRotatingFileOutputStream(log);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 10000; ++i) {
+      String line = "line " + i + "\n";
+      expected.append(line);
+      out.write(line.getBytes(UTF_8));
+      out.flush();
+    }
+    out.close();
+
+    assertThat(out.awaitClosed(10, TimeUnit.SECONDS), is(true));
+    assertThat(read(log), is(expected.toString()));
+    assertThat(out.getRotationCount(), is(0));
+  }
+
+  @Test
+  public void rotates_and_compresses_full_files() throws Exception {
+    File log = new File(dir, "update.stdout.log");
+    AsyncRotatingFileOutputStream out = new AsyncRotatingFileOutputStream(log, 100, 2, true);
+    for (int i = 0; i < 5; ++i) {
+      out.write(line(i).getBytes(UTF_8));
+      // each line fills a file by itself
+      waitForRotations(out, i + 1);
+    }
+    out.write("tail\n".getBytes(UTF_8));
+    out.close();
+    assertThat(out.awaitClosed(10, TimeUnit.SECONDS), is(true));
+
+    assertThat(out.getRotationCount(), is(5));
+    assertThat(read(log), is("tail\n"));
+    assertThat(gunzip(out.getBackupFile(1)), is(line(4)));
+    assertThat(gunzip(out.getBackupFile(2)), is(line(3)));
+    assertThat(out.getBackupFile(3).exists(), is(false));
+  }
+
+  @Test
+  public void without_backups_the_file_starts_over() throws Exception {
+    File log = new File(dir, "update.stderr.log");
+    AsyncRotatingFileOutputStream out = new AsyncRotatingFileOutputStream(log, 100, 0, false);
+    out.write(line(0).getBytes(UTF_8));
+    waitForRotations(out, 1);
+    out.write("tail\n".getBytes(UTF_8));
+    out.close();
+    assertThat(out.awaitClosed(10, TimeUnit.SECONDS), is(true));
+
+    assertThat(read(log), is("tail\n"));
+    assertThat(dir.list().length, is(1));
+  }
+
+  /** a line of over 100 bytes, which fills a file by itself */
+  private static String line(int i) {
+    StringBuilder b = new StringBuilder();
+    while (b.length() < 120) {
+      b.append(i);
+    }
+    return b.append('\n').toString();
+  }
+
+  private static void waitForRotations(AsyncRotatingFileOutputStream out, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (out.getRotationCount() < count) {
+      assertThat(System.nanoTime(), lessThan(deadline));
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package org.opendatakit.appengine.updater.exec.extended;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.Charset;
+import org.junit.Test;
+
+public class RingBufferOutputStreamTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void keeps_everything_until_full() throws Exception {
+    RingBufferOutputStream ring = new RingBufferOutputStream(16);
+    ring.write("abc\n".getBytes(UTF_8));
+    ring.write('d');
+
+    assertThat(ring.size(), is(5));
+    assertThat(ring.isTruncated(), is(false));
+    assertThat(ring.toString(UTF_8), is("abc\nd"));
+  }
+
+  @Test
+  public void keeps_the_last_bytes_across_the_wrap() throws Exception {
+    RingBufferOutputStream ring = new RingBufferOutputStream(10);
+    ring.write("line 1\nline 2\n".getBytes(UTF_8));
+    ring.write("line 3\n".getBytes(UTF_8));
+
+    assertThat(ring.getTotalBytesWritten(), is(21L));
+    assertThat(new String(ring.toByteArray(), UTF_8), is(" 2\nline 3\n"));
+    // starts at a line boundary
+    assertThat(ring.toString(UTF_8), is("line 3\n"));
+  }
+
+  @Test
+  public void a_write_larger_than_the_capacity_keeps_its_end() throws Exception {
+    RingBufferOutputStream ring = new RingBufferOutputStream(4);
+    ring.write('x');
+    ring.write("0123456789".getBytes(UTF_8), 1, 8);
+
+    assertThat(new String(ring.toByteArray(), UTF_8), is("5678"));
+    ring.write('9');
+    assertThat(new String(ring.toByteArray(), UTF_8), is("6789"));
+  }
+
+  @Test
+  public void keeps_everything_when_exactly_full() throws Exception {
+    RingBufferOutputStream ring = new RingBufferOutputStream(4);
+    ring.write("abcd".getBytes(UTF_8));
+
+    assertThat(ring.size(), is(4));
+    assertThat(ring.isTruncated(), is(false));
+    assertThat(new String(ring.toByteArray(), UTF_8), is("abcd"));
+
+    ring.reset();
+    ring.write("ab".getBytes(UTF_8));
+    ring.write('c');
+    ring.write('d');
+    assertThat(new String(ring.toByteArray(), UTF_8), is("abcd"));
+  }
+}
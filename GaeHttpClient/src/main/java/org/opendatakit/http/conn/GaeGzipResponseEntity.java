@@ -0,0 +1,152 @@
+package org.opendatakit.http.conn;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.opendatakit.http.conn.transport.SpilledContent;
+
+/**
+ * Response entity that inflates a gzip body returned by URLFetch as it is
+ * read, so the uncompressed body never has to be held in memory.
+ *
+ * Each call to {@link #getContent()} starts a new inflater over the same
+ * compressed bytes, so the entity is repeatable; its length is unknown.
+ * A body that was spilled to disk is the exception: like
+ * {@link GaeMappedResponseEntity}, the entity is then streaming and
+ * releases the file when its content stream is closed.
+ */
+class GaeGzipResponseEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/** the compressed body; exactly one of these is set */
+	private final byte[] compressed;
+	private final SpilledContentHold spilled;
+
+	private final GaeHttpCompression compression;
+
+	private boolean recorded = false;
+
+	GaeGzipResponseEntity(byte[] compressed, Header contentType, GaeHttpCompression compression) {
+		if ( compressed == null ) {
+			throw new IllegalArgumentException("Content may not be null");
+		}
+		this.compressed = compressed;
+		this.spilled = null;
+		this.compression = compression;
+		setContentType(contentType);
+	}
+
+	GaeGzipResponseEntity(SpilledContent compressed, Header contentType, GaeHttpCompression compression) {
+		if ( compressed == null ) {
+			throw new IllegalArgumentException("Content may not be null");
+		}
+		this.compressed = null;
+		this.spilled = new SpilledContentHold(compressed);
+		this.compression = compression;
+		setContentType(contentType);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return spilled == null;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream source = (spilled != null) ? spilled.openStream() : new ByteArrayInputStream(compressed);
+		try {
+			return new CountingInputStream(new GZIPInputStream(source, BUFFER_SIZE));
+		} catch (IOException e) {
+			// not gzip after all; let a spilled body go
+			source.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if ( outstream == null ) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream in = getContent();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) {
+				outstream.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		outstream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return spilled != null && !spilled.isReleased();
+	}
+
+	/**
+	 * Only the first complete read of the body is counted.
+	 */
+	private synchronized void recordOnce(long decompressedBytes) {
+		if ( !recorded ) {
+			recorded = true;
+			compression.recordResponse((spilled != null) ? spilled.getLength() : compressed.length, decompressedBytes);
+		}
+	}
+
+	private final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if ( b == -1 ) {
+				recordOnce(count);
+			} else {
+				++count;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if ( n == -1 ) {
+				recordOnce(count);
+			} else {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
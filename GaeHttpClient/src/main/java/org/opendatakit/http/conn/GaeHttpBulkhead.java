@@ -0,0 +1,209 @@
+package org.opendatakit.http.conn;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit on the number of requests in flight, for one route or for all the
+ * routes of a {@link GaeHttpClientConnectionManager}.
+ *
+ * A permit is taken when HttpClient obtains a connection and given back
+ * when the connection is released. Taking a free permit is a single
+ * compare-and-set; callers only queue once the limit is reached. The
+ * queue depth and wait times show how often, and for how long, a route is
+ * saturated.
+ *
+ * A permit held by a request that has finished without anyone noticing
+ * (an async fetch whose future is never read) is given back by the
+ * reclaimer, which callers run while they wait.
+ */
+public class GaeHttpBulkhead {
+
+	/** Limit meaning "no limit" */
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private final ResizableSemaphore permits;
+
+	private volatile int limit;
+
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicLong acquiredCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	private final LatencyHistogram waitLatency = new LatencyHistogram();
+
+	/** how long a waiting caller blocks before running the reclaimer again */
+	private static final long RECLAIM_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+	/** gives back the permits of finished requests; null if there is none */
+	private volatile Runnable reclaimer = null;
+
+	public GaeHttpBulkhead(int limit) {
+		checkLimit(limit);
+		this.limit = limit;
+		// fair, so that a saturated route serves its callers in order
+		this.permits = new ResizableSemaphore(limit);
+	}
+
+	private static void checkLimit(int limit) {
+		if ( limit <= 0 ) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Change the limit. Requests already in flight keep their permits; if
+	 * the limit is lowered below the number in flight, no new request is
+	 * admitted until enough of them have finished.
+	 *
+	 * @param limit the new limit, or {@link #UNLIMITED}
+	 */
+	public synchronized void setLimit(int limit) {
+		checkLimit(limit);
+		int delta = limit - this.limit;
+		if ( delta > 0 ) {
+			permits.release(delta);
+		} else if ( delta < 0 ) {
+			permits.reduce(-delta);
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * @param reclaimer run whenever a caller finds no free permit, and
+	 * periodically while it waits
+	 */
+	void setReclaimer(Runnable reclaimer) {
+		this.reclaimer = reclaimer;
+	}
+
+	/** @return the number of requests currently holding a permit */
+	public int getInUse() {
+		return Math.max(0, limit - permits.availablePermits());
+	}
+
+	/** @return the number of callers currently waiting for a permit */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getAcquiredCount() {
+		return acquiredCount.get();
+	}
+
+	/** @return the number of callers that gave up waiting for a permit */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/** @return the time callers spent obtaining a permit, including those that timed out */
+	public LatencyHistogram getWaitLatency() {
+		return waitLatency;
+	}
+
+	/**
+	 * Take a permit, waiting at most the given time for one to free up.
+	 *
+	 * @param timeout the maximum wait; 0 or less to wait indefinitely
+	 * @param unit
+	 * @return true if a permit was taken; false if the wait timed out
+	 * @throws InterruptedException
+	 */
+	boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+		if ( permits.tryAcquire() ) {
+			acquiredCount.incrementAndGet();
+			waitLatency.record(0L);
+			return true;
+		}
+		long start = System.nanoTime();
+		int depth = queueDepth.incrementAndGet();
+		int max;
+		while ( (max = maxQueueDepth.get()) < depth && !maxQueueDepth.compareAndSet(max, depth) ) {
+			// retry
+		}
+		boolean acquired = false;
+		try {
+			Runnable r = reclaimer;
+			if ( r != null ) {
+				acquired = awaitReclaiming(r, (timeout > 0) ? start + unit.toNanos(timeout) : 0L);
+			} else if ( timeout > 0 ) {
+				acquired = permits.tryAcquire(timeout, unit);
+			} else {
+				permits.acquire();
+				acquired = true;
+			}
+		} finally {
+			queueDepth.decrementAndGet();
+			waitLatency.record(System.nanoTime() - start);
+		}
+		if ( acquired ) {
+			acquiredCount.incrementAndGet();
+		} else {
+			timeoutCount.incrementAndGet();
+		}
+		return acquired;
+	}
+
+	/**
+	 * Wait for a permit in short slices, running the reclaimer before each.
+	 *
+	 * @param deadline System.nanoTime() at which to give up; 0 to wait indefinitely
+	 */
+	private boolean awaitReclaiming(Runnable r, long deadline) throws InterruptedException {
+		for ( ;; ) {
+			r.run();
+			long wait = RECLAIM_INTERVAL_NANOS;
+			if ( deadline != 0L ) {
+				long remaining = deadline - System.nanoTime();
+				if ( remaining <= 0L ) {
+					return false;
+				}
+				wait = Math.min(wait, remaining);
+			}
+			if ( permits.tryAcquire(wait, TimeUnit.NANOSECONDS) ) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		permits.release();
+	}
+
+	@Override
+	public String toString() {
+		return "limit=" + ((limit == UNLIMITED) ? "unlimited" : Integer.toString(limit)) +
+				" inUse=" + getInUse() +
+				" queued=" + getQueueDepth() +
+				" maxQueued=" + getMaxQueueDepth() +
+				" timeouts=" + getTimeoutCount() +
+				" wait: " + waitLatency;
+	}
+
+	/**
+	 * Exposes {@link Semaphore#reducePermits(int)} so that the limit can be
+	 * lowered without waiting for permits to be returned.
+	 */
+	private static final class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package org.opendatakit.http.conn;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,32 +16,31 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.ProtocolVersion;
 import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.routing.HttpRoute;
-import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
-
-import com.google.appengine.api.urlfetch.HTTPMethod;
-import com.google.appengine.api.urlfetch.URLFetchService;
-import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import org.opendatakit.http.conn.transport.HeaderNames;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.SpilledContent;
+import org.opendatakit.http.conn.transport.TransportRequest;
+import org.opendatakit.http.conn.transport.TransportResponse;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
 
 public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 
     private static final Log logger = LogFactory.getLog(GaeHttpClientConnectionImpl.class);
+    
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
 	
 	/** The state object associated with this connection (unused) */
 	@SuppressWarnings("unused")
 	private Object state;
 	
-	/** The route of this connection (unused). */
-	@SuppressWarnings("unused")
+	/** The route of this connection (used when recycling it). */
 	private HttpRoute route;
 	
 	/** The context for the open() request (unused) */
@@ -57,6 +57,28 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 	/** The target host of this connection. */
 	private HttpHost targetHost;
 	
+	/** The transport used to issue the requests (URLFetch on AppEngine) */
+	private final HttpTransport transport;
+	
+	/** Optional cache for GET responses */
+	private GaeHttpResponseCache responseCache = null;
+	
+	/** Optional cache of the URLs resolved against the target host */
+	private ResolvedUrlCache urlCache = null;
+	
+	/** Optional gzip compression of request and response bodies */
+	private GaeHttpCompression compression = null;
+	
+	/** The bulkheads whose permits this connection holds until it is released */
+	private GaeHttpBulkhead routePermit = null;
+	private GaeHttpBulkhead totalPermit = null;
+	
+	/** Counters and latencies of the requests sent over this connection */
+	private final GaeHttpConnectionMetrics metrics;
+	
+	/** When the pending asynchronous fetch was issued */
+	private long fetchStartNanos;
+	
 	/** The request to send */
 	private HttpRequest request = null;
 
@@ -64,7 +86,13 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 	private Header[] expectContinueHeaders = null;
 	
 	/** The returned response */
-	private com.google.appengine.api.urlfetch.HTTPResponse response = null;
+	private TransportResponse response = null;
+	
+	/** The translated response and the entity headers found while translating it */
+	private HttpResponse translatedResponse = null;
+	private Header responseContentType = null;
+	private Header responseContentEncoding = null;
+	private boolean inflateResponse = false;
 	
 	/** The communications are in a reusable state (i.e., not open) */
 	private boolean reusable = true;
@@ -77,6 +105,10 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
     	request = null;
     	expectContinueHeaders = null;
     	response = null;
+    	translatedResponse = null;
+    	responseContentType = null;
+    	responseContentEncoding = null;
+    	inflateResponse = false;
     	reusable = true;
     	broken = false;
     }
@@ -108,6 +140,20 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 	}
 
 	public GaeHttpClientConnectionImpl(HttpRoute route, Object state) {
+		this(route, state, new UrlFetchTransport());
+	}
+
+	public GaeHttpClientConnectionImpl(HttpRoute route, Object state, HttpTransport transport) {
+		this(route, state, transport, null);
+	}
+
+	/**
+	 * @param routeMetrics the metrics that this connection's metrics are rolled up into; may be null
+	 */
+	GaeHttpClientConnectionImpl(HttpRoute route, Object state, HttpTransport transport, GaeHttpConnectionMetrics routeMetrics) {
+		if ( transport == null ) {
+			throw new IllegalArgumentException("HttpTransport may not be null.");
+		}
 		this.route = route;
 		if ( route != null ) {
 			this.targetHost = route.getTargetHost();
@@ -115,6 +161,68 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 			this.targetHost = null;
 		}
 		this.state = state;
+		this.transport = transport;
+		this.metrics = new GaeHttpConnectionMetrics(routeMetrics);
+	}
+
+	HttpRoute getRoute() {
+		return route;
+	}
+
+	void setState(Object state) {
+		this.state = state;
+	}
+
+	void setResponseCache(GaeHttpResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	void setUrlCache(ResolvedUrlCache urlCache) {
+		this.urlCache = urlCache;
+	}
+
+	void setCompression(GaeHttpCompression compression) {
+		this.compression = compression;
+	}
+
+	void holdPermits(GaeHttpBulkhead routePermit, GaeHttpBulkhead totalPermit) {
+		this.routePermit = routePermit;
+		this.totalPermit = totalPermit;
+	}
+
+	/**
+	 * Give back the permits taken when this connection was handed out; safe
+	 * to call more than once.
+	 */
+	void releasePermits() {
+		GaeHttpBulkhead route = routePermit;
+		GaeHttpBulkhead total = totalPermit;
+		routePermit = null;
+		totalPermit = null;
+		if ( total != null ) {
+			total.release();
+		}
+		if ( route != null ) {
+			route.release();
+		}
+	}
+
+	/**
+	 * Prepare this connection for reuse by another request on the same route.
+	 * The per-connection metrics start over; the route and manager rollups
+	 * keep what was recorded.
+	 * 
+	 * @param newState the state object to associate with the connection
+	 * @return false if the connection was shut down and should be discarded
+	 */
+	boolean recycle(Object newState) {
+		if ( broken ) {
+			return false;
+		}
+		reset();
+		metrics.reset();
+		this.state = newState;
+		return true;
 	}
 
 	@Override
@@ -124,8 +232,7 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 
 	@Override
 	public HttpConnectionMetrics getMetrics() {
-		// none available...
-		return null;
+		return metrics;
 	}
 
 	@Override
@@ -161,26 +268,64 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 		// org.apache.http.protocol.HttpRequestExecutor.doSendRequest
 		
 		// Build and issue the URLFetch request here.
-		URLFetchService service = URLFetchServiceFactory.getURLFetchService();
+		TransportRequest req = buildFetchRequest();
+		long start = System.nanoTime();
+		if ( responseCache != null ) {
+			response = responseCache.fetch(transport, req);
+		} else {
+			response = transport.fetch(req);
+		}
+		metrics.recordFetch(System.nanoTime() - start);
+	}
+
+	/**
+	 * Issue the URLFetch request without waiting for it to complete.
+	 * The deadline is derived exactly as in {@link #flush()}.
+	 * 
+	 * @return the pending URLFetch response
+	 * @throws IOException
+	 */
+	Future<TransportResponse> flushAsync() throws IOException {
+		TransportRequest req = buildFetchRequest();
+		fetchStartNanos = System.nanoTime();
+		if ( responseCache != null ) {
+			return responseCache.fetchAsync(transport, req);
+		}
+		return transport.fetchAsync(req);
+	}
+
+	/**
+	 * Translate a completed URLFetch response into an HttpCore response
+	 * (headers and entity) and close this connection.
+	 * 
+	 * The recorded fetch latency runs until the response is first retrieved
+	 * from the future, so it includes any delay on the caller's side.
+	 * 
+	 * @param fetched the response returned by the transport
+	 * @return the translated response
+	 * @throws HttpException
+	 * @throws IOException
+	 */
+	HttpResponse completeAsync(TransportResponse fetched) throws HttpException, IOException {
+		metrics.recordFetch(System.nanoTime() - fetchStartNanos);
+		try {
+			response = fetched;
+			HttpResponse resp = receiveResponseHeader();
+			receiveResponseEntity(resp);
+			return resp;
+		} finally {
+			close();
+		}
+	}
+
+	private TransportRequest buildFetchRequest() throws IOException {
+		long start = System.nanoTime();
 		
 		boolean redirect = requestConfig.isRedirectsEnabled();
 		@SuppressWarnings("unused")
         boolean authenticate = requestConfig.isAuthenticationEnabled();
 		// TODO: verify that authentication is handled by URLFetchService...
 		
-		// default is to throw an exception on a overly-large request
-		// follow redirects (e.g., to https), and to validate server
-		// certificates.
-		com.google.appengine.api.urlfetch.FetchOptions f = 
-			com.google.appengine.api.urlfetch.FetchOptions.Builder.withDefaults();
-		f.disallowTruncate();
-		f.validateCertificate();
-		if ( redirect ) {
-			f.followRedirects();
-		} else {
-			f.doNotFollowRedirects();
-		}
-		
 		// set a deadline if we have a wait-for-continue limit
 		// in an expectContinue situation 
 		// or a timeout value set on the connection.
@@ -200,52 +345,68 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 		
 		if ( deadline > 0 ) {
 			logger.info("URLFetch timeout (socket + connection) (ms): " + deadline);
-			f.setDeadline(new Double(0.001 * (double) deadline));
 		}
-		f.validateCertificate();
 
-		com.google.appengine.api.urlfetch.HTTPMethod method;
-		if ( request instanceof HttpUriRequest ) {
-			String name = ((HttpUriRequest) request).getMethod();
-			method = HTTPMethod.valueOf(name);
-		} else {
-			throw new IllegalStateException("Unrecognized Http request method");
-		}
-		
-		
 		// we need to construct the URL for the request
 		// to the target host.  The request line, for, e.g., 
 		// a get, needs to be added to the URL.
-		URL url = new URL( targetHost.getSchemeName(),
+		// Requests issued outside of HttpClient (e.g., asynchronously)
+		// may carry an absolute URI in their request line.
+		String uri = request.getRequestLine().getUri();
+		URL url;
+		if ( isAbsoluteUri(uri) ) {
+			url = new URL(uri);
+		} else if ( urlCache != null && urlCache.getHost().equals(targetHost) ) {
+			url = urlCache.resolve(uri);
+		} else {
+			url = new URL( targetHost.getSchemeName(),
 							targetHost.getHostName(), 
 							targetHost.getPort(),
-							request.getRequestLine().getUri());
+							uri);
+		}
 		
-		com.google.appengine.api.urlfetch.HTTPRequest req =
-			new com.google.appengine.api.urlfetch.HTTPRequest(url, method, f);
+		TransportRequest req = new TransportRequest(url, request.getRequestLine().getMethod());
+		req.setFollowRedirects(redirect);
+		req.setDeadlineMillis(deadline);
 
-		Header[] headers = request.getAllHeaders();
-		for ( Header h : headers ) {
-			req.addHeader(new com.google.appengine.api.urlfetch.HTTPHeader(h.getName(), h.getValue()));
-		}
+		req.addHeaders(request.getAllHeaders());
 		// restore the expect-continue header
 		if ( expectContinueHeaders != null ) {
 			for ( Header h : expectContinueHeaders ) {
-				req.addHeader(new com.google.appengine.api.urlfetch.HTTPHeader(h.getName(), h.getValue()));
+				req.addHeader(h);
 			}
 		}
+		if ( compression != null && req.getFirstHeader(ACCEPT_ENCODING) == null ) {
+			req.addHeader(new BasicHeader(ACCEPT_ENCODING, GaeHttpCompression.GZIP));
+		}
 
 		// see if we need to copy entity body over...
+		long payloadLength = 0;
 		if ( request instanceof HttpEntityEnclosingRequest) {
 			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
 			if ( entity != null ) {
-				ByteArrayOutputStream blobStream = new ByteArrayOutputStream();
-				entity.writeTo(blobStream);
-				req.setPayload(blobStream.toByteArray());
+				byte[] payload = null;
+				if ( compression != null && compression.shouldCompress(entity) ) {
+					payload = compression.compress(entity);
+					if ( payload != null ) {
+						req.setHeader(new BasicHeader(HTTP.CONTENT_ENCODING, GaeHttpCompression.GZIP));
+						req.setHeader(new BasicHeader(HTTP.CONTENT_LEN, Integer.toString(payload.length)));
+					}
+				}
+				if ( payload == null ) {
+					payload = PayloadOutputStream.toPayload(entity);
+				}
+				req.setPayload(payload);
+				payloadLength = payload.length;
 			}
 		}
+		metrics.recordRequest(payloadLength, System.nanoTime() - start);
+		return req;
+	}
 
-		response = service.fetch(req);
+	private static boolean isAbsoluteUri(String uri) {
+		return uri.regionMatches(true, 0, "http://", 0, 7) ||
+				uri.regionMatches(true, 0, "https://", 0, 8);
 	}
 
 	@Override
@@ -262,19 +423,27 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 			throw new IllegalStateException("no response avaliable");
 		}
 	
-		byte[] byteArray = response.getContent();
-		if ( byteArray != null ) {
-			Header[] headers = resp.getAllHeaders();
-			ByteArrayEntity entity = new ByteArrayEntity(response.getContent());
-			for ( Header h : headers ) {
-				if ( h.getName().equalsIgnoreCase(HTTP.CONTENT_TYPE) ) {
-					entity.setContentType(h.getValue());
-				}
-				if ( h.getName().equalsIgnoreCase(HTTP.CONTENT_ENCODING) ) {
-					entity.setContentEncoding(h.getValue());
-				}
+		byte[] content = response.getContent();
+		SpilledContent spilled = response.getSpilledContent();
+		if ( content != null || spilled != null ) {
+			Header contentType;
+			Header contentEncoding;
+			if ( resp == translatedResponse ) {
+				contentType = responseContentType;
+				contentEncoding = responseContentEncoding;
+			} else {
+				contentType = resp.getLastHeader(HTTP.CONTENT_TYPE);
+				contentEncoding = resp.getLastHeader(HTTP.CONTENT_ENCODING);
+			}
+			if ( resp == translatedResponse && inflateResponse ) {
+				resp.setEntity((spilled != null) ?
+						new GaeGzipResponseEntity(spilled, contentType, compression) :
+						new GaeGzipResponseEntity(content, contentType, compression));
+			} else if ( spilled != null ) {
+				resp.setEntity(new GaeMappedResponseEntity(spilled, contentType, contentEncoding));
+			} else {
+				resp.setEntity(new GaeResponseEntity(content, contentType, contentEncoding));
 			}
-			resp.setEntity(entity);
 		}
 	}
 
@@ -283,16 +452,36 @@ public class GaeHttpClientConnectionImpl implements HttpClientConnection {
 		if ( response == null ) {
 			throw new IllegalStateException("no response avaliable");
 		}
-		// we don't have access to the protocol version, so assume it is Http 1.1
-		HttpResponse resp = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
-				response.getResponseCode(), null);
+		long start = System.nanoTime();
+		// the headers are translated only as they are asked for
+		List<Header> headers = response.getHeaders();
+		HttpResponse resp = new GaeHttpResponse(response.getResponseCode(), headers);
 		
-		for ( com.google.appengine.api.urlfetch.HTTPHeader h : response.getHeaders() ) {
-			final String name = h.getName();
-			final String value = h.getValue();
-			resp.addHeader(new BasicHeader(name, value));
+		Header contentType = null;
+		Header contentEncoding = null;
+		for ( int i = 0 ; i < headers.size() ; ++i ) {
+			final String name = HeaderNames.nameAt(headers, i);
+			if ( name.equalsIgnoreCase(HTTP.CONTENT_TYPE) ) {
+				contentType = headers.get(i);
+			} else if ( name.equalsIgnoreCase(HTTP.CONTENT_ENCODING) ) {
+				contentEncoding = headers.get(i);
+			}
+		}
+		boolean hasBody = response.getContent() != null || response.getSpilledContent() != null;
+		if ( compression != null && hasBody && GaeHttpCompression.isGzip(contentEncoding) ) {
+			// the entity will be inflated; the headers describe what was sent
+			inflateResponse = true;
+			contentEncoding = null;
+			resp.removeHeaders(HTTP.CONTENT_ENCODING);
+			resp.removeHeaders(HTTP.CONTENT_LEN);
 		}
+		translatedResponse = resp;
+		responseContentType = contentType;
+		responseContentEncoding = contentEncoding;
 
+		// wrapping the content in receiveResponseEntity is constant-time,
+		// so the header translation is the whole response translation cost
+		metrics.recordResponse(response.getContentLength(), System.nanoTime() - start);
 		return resp;
 	}
 
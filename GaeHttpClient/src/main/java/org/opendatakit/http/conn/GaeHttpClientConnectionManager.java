@@ -1,24 +1,51 @@
 package org.opendatakit.http.conn;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.ConnectionRequest;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
 import org.apache.http.protocol.HttpContext;
 
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+
 public class GaeHttpClientConnectionManager implements HttpClientConnectionManager {
 
-    /** URLFetchService handles all lifetime management */
+    /** The transport (URLFetchService on AppEngine) handles all lifetime management */
 
     /** Indicates whether this connection manager is shut down. */
     protected volatile boolean isShutDown;
@@ -31,10 +58,121 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
     
     private RequestConfig defaultRequestConfig;
     
+    private final HttpTransport transport;
+    
+    private final HttpRoutePlanner routePlanner = new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE);
+    
+    /** Metrics of all connections handed out by this manager */
+    private final GaeHttpConnectionMetrics totalMetrics = new GaeHttpConnectionMetrics();
+    
+    /** Per-route metrics and recycled connections */
+    private final ConcurrentMap<HttpRoute, RouteState> routes =
+    		new ConcurrentHashMap<HttpRoute, RouteState>();
+    
+    /** Optional cache for GET responses; null if caching is off */
+    private volatile GaeHttpResponseCache responseCache = null;
+    
+    /** Optional gzip compression; applied to connections as they are handed out */
+    private volatile GaeHttpCompression compression = null;
+    
+    /** Maximum number of released connection objects kept for reuse, per route */
+    private volatile int maxIdlePerRoute = DEFAULT_MAX_IDLE_PER_ROUTE;
+    
+    public static final int DEFAULT_MAX_IDLE_PER_ROUTE = 20;
+    
+    /** Limit on the requests in flight over all routes; unlimited by default */
+    private final GaeHttpBulkhead totalBulkhead = new GaeHttpBulkhead(GaeHttpBulkhead.UNLIMITED);
+    
+    /** Limit on the requests in flight for routes without their own limit */
+    private volatile int defaultMaxPerRoute = GaeHttpBulkhead.UNLIMITED;
+    
+    /**
+     * Everything the manager tracks for a route. Connection objects hold no
+     * sockets, so recycling them only saves the allocation; the queue is
+     * lock-free so that no global monitor is taken on the request path.
+     */
+    private final class RouteState {
+    	final GaeHttpConnectionMetrics metrics = new GaeHttpConnectionMetrics(totalMetrics);
+    	final ResolvedUrlCache urls;
+    	final GaeHttpBulkhead bulkhead = new GaeHttpBulkhead(defaultMaxPerRoute);
+    	/** set once the route has been given its own limit */
+    	volatile boolean customLimit = false;
+    	final ConcurrentLinkedQueue<GaeHttpClientConnectionImpl> idle =
+    			new ConcurrentLinkedQueue<GaeHttpClientConnectionImpl>();
+    	final AtomicInteger idleCount = new AtomicInteger();
+    	/** async requests that may still hold permits */
+    	final Set<GaeHttpResponseFuture> holdingPermits =
+    			Collections.newSetFromMap(new ConcurrentHashMap<GaeHttpResponseFuture, Boolean>());
+    	
+    	RouteState(HttpRoute route) {
+    		urls = new ResolvedUrlCache(route.getTargetHost());
+    		bulkhead.setReclaimer(new Runnable() {
+    			@Override
+    			public void run() {
+    				reclaimCompleted();
+    			}
+    		});
+    	}
+    	
+    	/**
+    	 * Give back the permits of async fetches that are done but whose
+    	 * futures have not been read (and may never be).
+    	 */
+    	void reclaimCompleted() {
+    		for (GaeHttpResponseFuture pending : holdingPermits) {
+    			pending.reclaimIfDone();
+    		}
+    	}
+    	
+    	GaeHttpClientConnectionImpl poll() {
+    		GaeHttpClientConnectionImpl conn = idle.poll();
+    		if (conn != null) {
+    			idleCount.decrementAndGet();
+    		}
+    		return conn;
+    	}
+    	
+    	void offer(GaeHttpClientConnectionImpl conn) {
+    		if (idleCount.incrementAndGet() > maxIdlePerRoute) {
+    			idleCount.decrementAndGet();
+    			return;
+    		}
+    		idle.offer(conn);
+    	}
+    	
+    	void clear() {
+    		while (poll() != null) {
+    			// drain
+    		}
+    	}
+    }
+    
     public GaeHttpClientConnectionManager(SocketConfig socketConfig, ConnectionConfig connectionConfig, RequestConfig requestConfig) {
+    	this(socketConfig, connectionConfig, requestConfig, new UrlFetchTransport());
+    }
+    
+    public GaeHttpClientConnectionManager(SocketConfig socketConfig, ConnectionConfig connectionConfig, RequestConfig requestConfig,
+    		URLFetchService fetchService) {
+    	this(socketConfig, connectionConfig, requestConfig, new UrlFetchTransport(fetchService));
+    }
+    
+    public GaeHttpClientConnectionManager(SocketConfig socketConfig, ConnectionConfig connectionConfig, RequestConfig requestConfig,
+    		HttpTransport transport) {
+    	if (transport == null) {
+    		throw new IllegalArgumentException("HttpTransport may not be null.");
+    	}
     	defaultSocketConfig = (socketConfig != null) ? socketConfig : SocketConfig.DEFAULT;
     	defaultConnectionConfig = (connectionConfig != null) ? connectionConfig : ConnectionConfig.DEFAULT;
     	defaultRequestConfig = (requestConfig != null) ? requestConfig : RequestConfig.DEFAULT;
+    	this.transport = transport;
+    	totalBulkhead.setReclaimer(new Runnable() {
+    		@Override
+    		public void run() {
+    			for (RouteState routeState : routes.values()) {
+    				routeState.reclaimCompleted();
+    			}
+    		}
+    	});
     }
     
     public void setDefaultSocketConfig(SocketConfig defaultSocketConfig) {
@@ -45,6 +183,99 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
     	this.defaultConnectionConfig = defaultConnectionConfig;
     }
     
+    public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+    	if (maxIdlePerRoute < 0) {
+    		throw new IllegalArgumentException("maxIdlePerRoute may not be negative.");
+    	}
+    	this.maxIdlePerRoute = maxIdlePerRoute;
+    }
+    
+    public int getMaxIdlePerRoute() {
+    	return maxIdlePerRoute;
+    }
+    
+    /**
+     * Limit the number of requests in flight over all routes. Requests
+     * beyond the limit wait in {@link ConnectionRequest#get} for up to the
+     * connection request timeout.
+     * 
+     * @param maxTotal the limit, or {@link GaeHttpBulkhead#UNLIMITED}
+     */
+    public void setMaxTotal(int maxTotal) {
+    	totalBulkhead.setLimit(maxTotal);
+    }
+    
+    public int getMaxTotal() {
+    	return totalBulkhead.getLimit();
+    }
+    
+    /**
+     * Limit the number of requests in flight on each route that has not been
+     * given a limit of its own, so that one slow upstream cannot take every
+     * request thread.
+     * 
+     * @param maxPerRoute the limit, or {@link GaeHttpBulkhead#UNLIMITED}
+     */
+    public void setDefaultMaxPerRoute(int maxPerRoute) {
+    	if (maxPerRoute <= 0) {
+    		throw new IllegalArgumentException("maxPerRoute must be positive.");
+    	}
+    	this.defaultMaxPerRoute = maxPerRoute;
+    	for (RouteState routeState : routes.values()) {
+    		if (!routeState.customLimit) {
+    			routeState.bulkhead.setLimit(maxPerRoute);
+    		}
+    	}
+    }
+    
+    public int getDefaultMaxPerRoute() {
+    	return defaultMaxPerRoute;
+    }
+    
+    /**
+     * Limit the number of requests in flight on one route.
+     * 
+     * @param route
+     * @param maxPerRoute the limit, or {@link GaeHttpBulkhead#UNLIMITED}
+     */
+    public void setMaxPerRoute(HttpRoute route, int maxPerRoute) {
+    	RouteState routeState = getRouteState(route);
+    	routeState.bulkhead.setLimit(maxPerRoute);
+    	routeState.customLimit = true;
+    }
+    
+    public int getMaxPerRoute(HttpRoute route) {
+    	return getRouteState(route).bulkhead.getLimit();
+    }
+    
+    /**
+     * Turn on caching of GET responses for connections handed out from now
+     * on, or turn it off by passing null.
+     * 
+     * @param responseCache
+     */
+    public void setResponseCache(GaeHttpResponseCache responseCache) {
+    	this.responseCache = responseCache;
+    }
+    
+    public GaeHttpResponseCache getResponseCache() {
+    	return responseCache;
+    }
+    
+    /**
+     * Turn on gzip compression for connections handed out from now on, or
+     * turn it off by passing null.
+     * 
+     * @param compression
+     */
+    public void setCompression(GaeHttpCompression compression) {
+    	this.compression = compression;
+    }
+    
+    public GaeHttpCompression getCompression() {
+    	return compression;
+    }
+    
     @Override
     protected void finalize() throws Throwable {
         shutdown();
@@ -63,13 +294,13 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
 	@Override
 	public void closeExpiredConnections() {
         assertStillUp();
-        // lifetimes are handled by URLFetchService
+        transport.closeExpiredConnections();
 	}
 
 	@Override
 	public void closeIdleConnections(long idleTime, TimeUnit unit) {
         assertStillUp();
-        // lifetimes are handled by URLFetchService
+        transport.closeIdleConnections(idleTime, unit);
 	}
 
 	@Override
@@ -85,8 +316,22 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
 
 	@Override
 	public void releaseConnection(HttpClientConnection conn, Object newState, long lifeTime, TimeUnit unit) {
+        if ( conn instanceof GaeHttpClientConnectionImpl ) {
+        	// the request is over, whatever becomes of the connection object
+        	((GaeHttpClientConnectionImpl) conn).releasePermits();
+        }
         assertStillUp();
-        // lifetimes are handled by URLFetchService
+        // lifetimes are handled by the transport;
+        // just recycle the connection object.
+        if ( !(conn instanceof GaeHttpClientConnectionImpl) ) {
+        	return;
+        }
+        GaeHttpClientConnectionImpl connImpl = (GaeHttpClientConnectionImpl) conn;
+        HttpRoute route = connImpl.getRoute();
+        if ( route == null || !connImpl.recycle(newState) ) {
+        	return;
+        }
+        getRouteState(route).offer(connImpl);
 	}
 
 	@Override
@@ -94,22 +339,101 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
         final HttpRoute route,
         final Object state) {
     
-		return new ConnectionRequest() {
+		return new BulkheadConnectionRequest(route, state);
+	}
+
+	/**
+	 * Waits for a permit from the route's bulkhead and then from the
+	 * manager-wide one before handing out a connection; the permits are
+	 * given back when the connection is released.
+	 */
+	private final class BulkheadConnectionRequest implements ConnectionRequest {
+		private final HttpRoute route;
+		private final Object state;
+		
+		/** the thread blocked in get(); guarded by this */
+		private Thread waiter = null;
+		private boolean cancelled = false;
+		private boolean done = false;
+		
+		BulkheadConnectionRequest(HttpRoute route, Object state) {
+			this.route = route;
+			this.state = state;
+		}
 
-			@Override
-			public boolean cancel() {
-	            // Nothing to abort, since requests are immediate.
+		@Override
+		public synchronized boolean cancel() {
+			if ( done || cancelled ) {
 				return false;
 			}
+			cancelled = true;
+			if ( waiter != null ) {
+				waiter.interrupt();
+			}
+			return true;
+		}
 
-			@Override
-			public HttpClientConnection get(long interval, TimeUnit unit)
-					throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
-	            return GaeHttpClientConnectionManager.this.getConnection(
-	                    route, state);
+		/**
+		 * @param timeout the maximum time to wait for the permits; 0 or less to wait indefinitely
+		 */
+		@Override
+		public HttpClientConnection get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+			if ( route == null ) {
+				throw new IllegalArgumentException("Route may not be null.");
+			}
+			assertStillUp();
+			RouteState routeState = getRouteState(route);
+			synchronized (this) {
+				if ( cancelled ) {
+					throw new InterruptedException("Connection request cancelled");
+				}
+				waiter = Thread.currentThread();
 			}
-			
-		};
+			long deadline = (timeout > 0) ? System.nanoTime() + unit.toNanos(timeout) : 0L;
+			GaeHttpBulkhead routePermit = null;
+			GaeHttpBulkhead totalPermit = null;
+			boolean success = false;
+			try {
+				if ( !routeState.bulkhead.acquire(timeout, unit) ) {
+					throw new ConnectionPoolTimeoutException("Timeout waiting for a request permit for route " + route);
+				}
+				routePermit = routeState.bulkhead;
+				// the route permit is taken first, so that requests queued
+				// on a saturated route do not hold permits other routes need
+				long remaining = (timeout > 0) ? Math.max(1L, deadline - System.nanoTime()) : 0L;
+				if ( !totalBulkhead.acquire(remaining, TimeUnit.NANOSECONDS) ) {
+					throw new ConnectionPoolTimeoutException("Timeout waiting for a request permit");
+				}
+				totalPermit = totalBulkhead;
+				synchronized (this) {
+					waiter = null;
+					if ( cancelled ) {
+						// cancel() may have interrupted us after the permits were taken
+						Thread.interrupted();
+						throw new InterruptedException("Connection request cancelled");
+					}
+					done = true;
+				}
+				GaeHttpClientConnectionImpl conn =
+						(GaeHttpClientConnectionImpl) getConnection(route, state);
+				conn.holdPermits(routePermit, totalPermit);
+				success = true;
+				return conn;
+			} finally {
+				if ( !success ) {
+					synchronized (this) {
+						waiter = null;
+					}
+					if ( totalPermit != null ) {
+						totalPermit.release();
+					}
+					if ( routePermit != null ) {
+						routePermit.release();
+					}
+				}
+			}
+		}
 	}
 
     /**
@@ -120,7 +444,7 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
      * @return  a connection that can be used to communicate
      *          along the given route
      */
-    public synchronized HttpClientConnection getConnection(HttpRoute route, Object state) {
+    public HttpClientConnection getConnection(HttpRoute route, Object state) {
         if (route == null) {
             throw new IllegalArgumentException("Route may not be null.");
         }
@@ -130,7 +454,193 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
             log.debug("Get connection for route " + route);
         }
 
-        return new GaeHttpClientConnectionImpl(route, state);
+        RouteState routeState = getRouteState(route);
+        GaeHttpClientConnectionImpl conn = routeState.poll();
+        if (conn == null) {
+            conn = new GaeHttpClientConnectionImpl(route, state, transport, routeState.metrics);
+        } else {
+            conn.setState(state);
+        }
+        conn.setUrlCache(routeState.urls);
+        conn.setResponseCache(responseCache);
+        conn.setCompression(compression);
+        return conn;
+    }
+
+    private RouteState getRouteState(HttpRoute route) {
+        RouteState routeState = routes.get(route);
+        if (routeState == null) {
+            routeState = new RouteState(route);
+            RouteState existing = routes.putIfAbsent(route, routeState);
+            if (existing != null) {
+                routeState = existing;
+            }
+        }
+        return routeState;
+    }
+
+    /**
+     * @return the limit and queue statistics over all routes
+     */
+    public GaeHttpBulkhead getTotalBulkhead() {
+        return totalBulkhead;
+    }
+
+    /**
+     * @param route
+     * @return the limit and queue statistics of the route
+     */
+    public GaeHttpBulkhead getRouteBulkhead(HttpRoute route) {
+        return getRouteState(route).bulkhead;
+    }
+
+    /**
+     * @return the metrics of all connections handed out by this manager
+     */
+    public GaeHttpConnectionMetrics getTotalMetrics() {
+        return totalMetrics;
+    }
+
+    /**
+     * @param route
+     * @return the metrics of all connections handed out for this route
+     */
+    public GaeHttpConnectionMetrics getRouteMetrics(HttpRoute route) {
+        return getRouteState(route).metrics;
+    }
+
+    /**
+     * @return a snapshot of the per-route metrics
+     */
+    public Map<HttpRoute, GaeHttpConnectionMetrics> getAllRouteMetrics() {
+        Map<HttpRoute, GaeHttpConnectionMetrics> metrics = new HashMap<HttpRoute, GaeHttpConnectionMetrics>();
+        for (Map.Entry<HttpRoute, RouteState> e : routes.entrySet()) {
+            metrics.put(e.getKey(), e.getValue().metrics);
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Issues a request through HttpTransport.fetchAsync (URLFetchService.fetchAsync
+     * on AppEngine) and returns
+     * immediately, so that many fetches can be outstanding at once from a
+     * single request thread.
+     * 
+     * The request is sent as-is: the HttpClient request interceptors
+     * (authentication, cookies, default headers) are not applied. The
+     * URLFetch deadline is derived from the request's RequestConfig (if it
+     * has one) or the default RequestConfig, and the default SocketConfig,
+     * using the same rules as the synchronous path.
+     * 
+     * Like a synchronous request, the fetch takes a permit from the route's
+     * bulkhead and from the manager-wide one, waiting at most the
+     * RequestConfig's connection request timeout for them. The permits are
+     * given back once the outcome of the fetch has been retrieved from the
+     * returned future or the future has been cancelled; a future that is
+     * never read gives them back once its fetch is done and another request
+     * is waiting for a permit.
+     *
+     * @param request   the request to send; its URI must be absolute
+     *
+     * @return  the pending response
+     */
+    public Future<HttpResponse> executeAsync(HttpUriRequest request) throws IOException, HttpException {
+        URI uri = request.getURI();
+        HttpHost target = URIUtils.extractHost(uri);
+        if (target == null) {
+            throw new IllegalArgumentException("Request URI must be absolute: " + uri);
+        }
+        return executeAsync(target, request);
+    }
+
+    /**
+     * Issues a request to the given target host through
+     * HttpTransport.fetchAsync and returns immediately.
+     * 
+     * @see #executeAsync(HttpUriRequest)
+     *
+     * @param target    the host the request is sent to
+     * @param request   the request to send
+     *
+     * @return  the pending response
+     */
+    public Future<HttpResponse> executeAsync(HttpHost target, HttpRequest request) throws IOException, HttpException {
+        if (target == null) {
+            throw new IllegalArgumentException("Target host may not be null.");
+        }
+        if (request == null) {
+            throw new IllegalArgumentException("Request may not be null.");
+        }
+        assertStillUp();
+
+        RequestConfig config = null;
+        if (request instanceof Configurable) {
+            config = ((Configurable) request).getConfig();
+        }
+        if (config == null) {
+            config = defaultRequestConfig;
+        }
+
+        // the route HttpClient would use for the same request, so that both
+        // paths share the route's limit, metrics and caches
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(config);
+        HttpRoute route = routePlanner.determineRoute(target, request, context);
+        RouteState routeState = getRouteState(route);
+        GaeHttpClientConnectionImpl conn = new GaeHttpClientConnectionImpl(route, null, transport, routeState.metrics);
+        conn.setUrlCache(routeState.urls);
+        conn.setResponseCache(responseCache);
+        conn.setCompression(compression);
+        acquirePermits(route, routeState, conn, config.getConnectionRequestTimeout());
+        boolean issued = false;
+        try {
+            conn.connect(route, SocketConfig.copy(defaultSocketConfig).build(), defaultConnectionConfig, config, null);
+            // as done by HttpClient's MainClientExec
+            if (config.getSocketTimeout() >= 0) {
+                conn.setSocketTimeout(config.getSocketTimeout());
+            }
+            conn.sendRequestHeader(request);
+            Future<HttpResponse> pending =
+                    new GaeHttpResponseFuture(conn, conn.flushAsync(), routeState.holdingPermits);
+            issued = true;
+            return pending;
+        } finally {
+            if (!issued) {
+                conn.releasePermits();
+            }
+        }
+    }
+
+    /**
+     * Take the route permit and then the manager-wide one, as
+     * BulkheadConnectionRequest does, and let the connection hold them.
+     *
+     * @param timeoutMillis the maximum wait for both; 0 or less to wait indefinitely
+     */
+    private void acquirePermits(HttpRoute route, RouteState routeState, GaeHttpClientConnectionImpl conn,
+            int timeoutMillis) throws IOException {
+        long deadline = (timeoutMillis > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0L;
+        boolean routeAcquired = false;
+        boolean held = false;
+        try {
+            if (!routeState.bulkhead.acquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for a request permit for route " + route);
+            }
+            routeAcquired = true;
+            long remaining = (timeoutMillis > 0) ? Math.max(1L, deadline - System.nanoTime()) : 0L;
+            if (!totalBulkhead.acquire(remaining, TimeUnit.NANOSECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for a request permit");
+            }
+            conn.holdPermits(routeState.bulkhead, totalBulkhead);
+            held = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request permit");
+        } finally {
+            if (routeAcquired && !held) {
+                routeState.bulkhead.release();
+            }
+        }
     }
 
 	@Override
@@ -141,6 +651,10 @@ public class GaeHttpClientConnectionManager implements HttpClientConnectionManag
 	@Override
 	public void shutdown() {
 		this.isShutDown = true;
+		transport.shutdown();
+		for (RouteState routeState : routes.values()) {
+			routeState.clear();
+		}
 	}
 
 	@Override
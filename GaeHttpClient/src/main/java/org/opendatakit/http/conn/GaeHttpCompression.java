@@ -0,0 +1,150 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+
+/**
+ * Opt-in gzip compression for connections handed out by a
+ * {@link GaeHttpClientConnectionManager}; install it with
+ * {@link GaeHttpClientConnectionManager#setCompression}.
+ *
+ * Request bodies of at least the threshold size (or of unknown size) are
+ * gzipped and sent with Content-Encoding: gzip; the server must accept
+ * compressed request bodies. Requests advertise Accept-Encoding: gzip, and
+ * gzip responses are inflated as they are read, straight from the bytes
+ * URLFetch returned, with the Content-Encoding and Content-Length headers
+ * removed.
+ */
+public class GaeHttpCompression {
+
+	public static final int DEFAULT_REQUEST_THRESHOLD = 1024;
+
+	static final String GZIP = "gzip";
+
+	private final int requestThreshold;
+
+	private final AtomicLong requestsCompressed = new AtomicLong();
+	private final AtomicLong requestBytesBefore = new AtomicLong();
+	private final AtomicLong requestBytesAfter = new AtomicLong();
+	private final AtomicLong responsesDecompressed = new AtomicLong();
+	private final AtomicLong responseBytesCompressed = new AtomicLong();
+	private final AtomicLong responseBytesDecompressed = new AtomicLong();
+
+	public GaeHttpCompression() {
+		this(DEFAULT_REQUEST_THRESHOLD);
+	}
+
+	/**
+	 * @param requestThreshold the smallest request body to compress;
+	 * Integer.MAX_VALUE to compress only responses
+	 */
+	public GaeHttpCompression(int requestThreshold) {
+		if ( requestThreshold < 0 ) {
+			throw new IllegalArgumentException("requestThreshold may not be negative");
+		}
+		this.requestThreshold = requestThreshold;
+	}
+
+	public int getRequestThreshold() {
+		return requestThreshold;
+	}
+
+	public long getRequestsCompressed() {
+		return requestsCompressed.get();
+	}
+
+	/** @return the request body bytes not sent thanks to compression */
+	public long getRequestBytesSaved() {
+		return requestBytesBefore.get() - requestBytesAfter.get();
+	}
+
+	/** @return the number of gzip responses read to the end */
+	public long getResponsesDecompressed() {
+		return responsesDecompressed.get();
+	}
+
+	/**
+	 * @return the response body bytes not received thanks to compression,
+	 * for the responses read to the end
+	 */
+	public long getResponseBytesSaved() {
+		return responseBytesDecompressed.get() - responseBytesCompressed.get();
+	}
+
+	public long getBytesSaved() {
+		return getRequestBytesSaved() + getResponseBytesSaved();
+	}
+
+	boolean shouldCompress(HttpEntity entity) {
+		if ( requestThreshold == Integer.MAX_VALUE || entity.getContentEncoding() != null ) {
+			return false;
+		}
+		long length = entity.getContentLength();
+		return length < 0 || length >= requestThreshold;
+	}
+
+	/**
+	 * Gzip the entity body as the entity writes it, without first collecting
+	 * it uncompressed.
+	 *
+	 * @return the compressed body, or null if it is no smaller and the entity
+	 * can be written again uncompressed
+	 * @throws IOException
+	 */
+	byte[] compress(HttpEntity entity) throws IOException {
+		long length = entity.getContentLength();
+		// deflate typically at least halves the XML and JSON bodies we send
+		int hint = (length < 0) ? -1 : (int) Math.min(length / 2, Integer.MAX_VALUE);
+		PayloadOutputStream buffer = PayloadOutputStream.forCompressedPayload(hint);
+		CountingGzipOutputStream gzip = new CountingGzipOutputStream(buffer);
+		long before;
+		try {
+			entity.writeTo(gzip);
+			gzip.finish();
+			before = gzip.getBytesRead();
+		} finally {
+			// releases the deflater
+			gzip.close();
+		}
+		byte[] compressed = buffer.toPayload();
+		if ( compressed.length >= before && entity.isRepeatable() ) {
+			return null;
+		}
+		requestsCompressed.incrementAndGet();
+		requestBytesBefore.addAndGet(before);
+		requestBytesAfter.addAndGet(compressed.length);
+		return compressed;
+	}
+
+	static boolean isGzip(Header contentEncoding) {
+		if ( contentEncoding == null ) {
+			return false;
+		}
+		String value = contentEncoding.getValue().trim();
+		return value.equalsIgnoreCase(GZIP) || value.equalsIgnoreCase("x-gzip");
+	}
+
+	void recordResponse(long compressedBytes, long decompressedBytes) {
+		responsesDecompressed.incrementAndGet();
+		responseBytesCompressed.addAndGet(compressedBytes);
+		responseBytesDecompressed.addAndGet(decompressedBytes);
+	}
+
+	/**
+	 * Exposes how many bytes went into the deflater.
+	 */
+	private static final class CountingGzipOutputStream extends GZIPOutputStream {
+		CountingGzipOutputStream(OutputStream out) throws IOException {
+			super(out, 8192);
+		}
+
+		long getBytesRead() {
+			return def.getBytesRead();
+		}
+	}
+}
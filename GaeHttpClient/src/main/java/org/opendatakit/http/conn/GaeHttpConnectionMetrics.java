@@ -0,0 +1,138 @@
+package org.opendatakit.http.conn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpConnectionMetrics;
+
+/**
+ * Request, byte and latency counters for URLFetch traffic.
+ *
+ * A connection has its own metrics; every value recorded there is also
+ * recorded in its parent, which is the per-route rollup kept by
+ * {@link GaeHttpClientConnectionManager}. The route rollups in turn feed
+ * the manager-wide totals.
+ *
+ * Byte counts are entity (body) bytes only.
+ */
+public class GaeHttpConnectionMetrics implements HttpConnectionMetrics {
+
+	/** {@link #getMetric(String)} name of the header and payload translation latency */
+	public static final String BUILD_LATENCY = "gae.build.latency";
+	/** {@link #getMetric(String)} name of the URLFetch latency */
+	public static final String FETCH_LATENCY = "gae.fetch.latency";
+	/** {@link #getMetric(String)} name of the response translation latency */
+	public static final String TRANSLATE_LATENCY = "gae.translate.latency";
+
+	private final GaeHttpConnectionMetrics parent;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong responseCount = new AtomicLong();
+	private final AtomicLong sentBytesCount = new AtomicLong();
+	private final AtomicLong receivedBytesCount = new AtomicLong();
+
+	private final LatencyHistogram buildLatency = new LatencyHistogram();
+	private final LatencyHistogram fetchLatency = new LatencyHistogram();
+	private final LatencyHistogram translateLatency = new LatencyHistogram();
+
+	public GaeHttpConnectionMetrics() {
+		this(null);
+	}
+
+	public GaeHttpConnectionMetrics(GaeHttpConnectionMetrics parent) {
+		this.parent = parent;
+	}
+
+	void recordRequest(long payloadBytes, long buildNanos) {
+		requestCount.incrementAndGet();
+		sentBytesCount.addAndGet(payloadBytes);
+		buildLatency.record(buildNanos);
+		if ( parent != null ) {
+			parent.recordRequest(payloadBytes, buildNanos);
+		}
+	}
+
+	void recordFetch(long fetchNanos) {
+		fetchLatency.record(fetchNanos);
+		if ( parent != null ) {
+			parent.recordFetch(fetchNanos);
+		}
+	}
+
+	void recordResponse(long contentBytes, long translateNanos) {
+		responseCount.incrementAndGet();
+		receivedBytesCount.addAndGet(contentBytes);
+		translateLatency.record(translateNanos);
+		if ( parent != null ) {
+			parent.recordResponse(contentBytes, translateNanos);
+		}
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	@Override
+	public long getResponseCount() {
+		return responseCount.get();
+	}
+
+	@Override
+	public long getSentBytesCount() {
+		return sentBytesCount.get();
+	}
+
+	@Override
+	public long getReceivedBytesCount() {
+		return receivedBytesCount.get();
+	}
+
+	public LatencyHistogram getBuildLatency() {
+		return buildLatency;
+	}
+
+	public LatencyHistogram getFetchLatency() {
+		return fetchLatency;
+	}
+
+	public LatencyHistogram getTranslateLatency() {
+		return translateLatency;
+	}
+
+	@Override
+	public Object getMetric(String metricName) {
+		if ( BUILD_LATENCY.equals(metricName) ) {
+			return buildLatency;
+		} else if ( FETCH_LATENCY.equals(metricName) ) {
+			return fetchLatency;
+		} else if ( TRANSLATE_LATENCY.equals(metricName) ) {
+			return translateLatency;
+		}
+		return null;
+	}
+
+	/**
+	 * Clear these metrics. The parent's metrics are not affected.
+	 */
+	@Override
+	public void reset() {
+		requestCount.set(0L);
+		responseCount.set(0L);
+		sentBytesCount.set(0L);
+		receivedBytesCount.set(0L);
+		buildLatency.reset();
+		fetchLatency.reset();
+		translateLatency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "requests=" + getRequestCount() +
+				" responses=" + getResponseCount() +
+				" sentBytes=" + getSentBytesCount() +
+				" receivedBytes=" + getReceivedBytesCount() +
+				" build[" + buildLatency + "]" +
+				" fetch[" + fetchLatency + "]" +
+				" translate[" + translateLatency + "]";
+	}
+}
@@ -0,0 +1,20 @@
+package org.opendatakit.http.conn;
+
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Response translated from a transport response. Its headers are a
+ * {@link LazyHeaderGroup} over the transport's header list.
+ */
+class GaeHttpResponse extends BasicHttpResponse {
+
+	GaeHttpResponse(int code, List<Header> headers) {
+		// we don't have access to the protocol version, so assume it is Http 1.1
+		super(HttpVersion.HTTP_1_1, code, null);
+		this.headergroup = new LazyHeaderGroup(headers);
+	}
+}
@@ -0,0 +1,599 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.opendatakit.http.conn.transport.HeaderNames;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.TransportRequest;
+import org.opendatakit.http.conn.transport.TransportResponse;
+
+/**
+ * Opt-in, in-memory cache of GET responses fetched through an {@link HttpTransport}.
+ * Install it with {@link GaeHttpClientConnectionManager#setResponseCache}.
+ *
+ * This is a private (per-application) cache. It honours the Cache-Control
+ * (no-store, no-cache, max-age), Expires, ETag and Last-Modified headers:
+ * fresh entries are returned without a round trip, and stale
+ * entries with a validator turn the next request into a conditional one
+ * (If-None-Match / If-Modified-Since) whose 304 response is answered
+ * from the cache.
+ *
+ * Entries are keyed by URL and the Authorization, Accept-Encoding and Cookie
+ * headers, and are held in an LRU map bounded by the approximate number of
+ * bytes they occupy. The cache is shared by every user of the connection manager, so
+ * responses that set a cookie or are marked Cache-Control: private are
+ * never stored.
+ * Unsafe requests (POST, PUT, PATCH, DELETE) to a URL evict its cached entries.
+ */
+public class GaeHttpResponseCache {
+
+	private static final Log logger = LogFactory.getLog(GaeHttpResponseCache.class);
+
+	private static final String CACHE_CONTROL = "Cache-Control";
+	private static final String PRAGMA = "Pragma";
+	private static final String EXPIRES = "Expires";
+	private static final String DATE = "Date";
+	private static final String AGE = "Age";
+	private static final String ETAG = "ETag";
+	private static final String LAST_MODIFIED = "Last-Modified";
+	private static final String VARY = "Vary";
+	private static final String RANGE = "Range";
+	private static final String AUTHORIZATION = "Authorization";
+	private static final String COOKIE = "Cookie";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String SET_COOKIE = "Set-Cookie";
+	private static final String SET_COOKIE2 = "Set-Cookie2";
+	private static final String IF_NONE_MATCH = "If-None-Match";
+	private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	/** cap on the heuristic freshness lifetime derived from Last-Modified */
+	private static final long MAX_HEURISTIC_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/** rough per-entry bookkeeping overhead (objects, map node) */
+	private static final long ENTRY_OVERHEAD = 256;
+
+	private static final class Entry {
+		final TransportResponse response;
+		final long freshUntilMillis;
+		final boolean alwaysRevalidate;
+		final String etag;
+		final String lastModified;
+		final long size;
+
+		Entry(TransportResponse response, long freshUntilMillis, boolean alwaysRevalidate,
+				String etag, String lastModified, long size) {
+			this.response = response;
+			this.freshUntilMillis = freshUntilMillis;
+			this.alwaysRevalidate = alwaysRevalidate;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		boolean isFresh(long now) {
+			return !alwaysRevalidate && now < freshUntilMillis;
+		}
+
+		boolean hasValidator() {
+			return etag != null || lastModified != null;
+		}
+	}
+
+	private final long maxBytes;
+	private final long maxEntryBytes;
+
+	/** access-ordered; guarded by this */
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	/** guarded by this */
+	private long currentBytes = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong revalidationCount = new AtomicLong();
+	private final AtomicLong notModifiedCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+
+	/**
+	 * @param maxBytes total size of the cached responses
+	 */
+	public GaeHttpResponseCache(long maxBytes) {
+		this(maxBytes, maxBytes / 8);
+	}
+
+	/**
+	 * @param maxBytes total size of the cached responses
+	 * @param maxEntryBytes responses larger than this are not cached
+	 */
+	public GaeHttpResponseCache(long maxBytes, long maxEntryBytes) {
+		if ( maxBytes <= 0 || maxEntryBytes <= 0 || maxEntryBytes > maxBytes ) {
+			throw new IllegalArgumentException("cache sizes must be positive and maxEntryBytes <= maxBytes");
+		}
+		this.maxBytes = maxBytes;
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	/**
+	 * Fetch the request, answering it from the cache when possible.
+	 */
+	public TransportResponse fetch(HttpTransport transport, TransportRequest req) throws IOException {
+		if ( !isCacheable(req) ) {
+			invalidateIfUnsafe(req);
+			return transport.fetch(req);
+		}
+		String key = keyFor(req);
+		Entry entry = lookup(key, req);
+		if ( entry != null && entry.isFresh(System.currentTimeMillis()) ) {
+			hitCount.incrementAndGet();
+			return entry.response;
+		}
+		boolean conditional = prepare(req, entry);
+		return onResponse(key, conditional ? entry : null, transport.fetch(req));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #fetch(HttpTransport, TransportRequest)}.
+	 * The response is stored in (or merged with) the cache when it is first
+	 * retrieved from the returned future.
+	 */
+	public Future<TransportResponse> fetchAsync(HttpTransport transport, TransportRequest req) {
+		if ( !isCacheable(req) ) {
+			invalidateIfUnsafe(req);
+			return transport.fetchAsync(req);
+		}
+		String key = keyFor(req);
+		Entry entry = lookup(key, req);
+		if ( entry != null && entry.isFresh(System.currentTimeMillis()) ) {
+			hitCount.incrementAndGet();
+			return new CachedFuture(entry.response);
+		}
+		boolean conditional = prepare(req, entry);
+		return new StoringFuture(key, conditional ? entry : null, transport.fetchAsync(req));
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/** @return the number of conditional requests sent for stale entries */
+	public long getRevalidationCount() {
+		return revalidationCount.get();
+	}
+
+	/** @return the number of conditional requests answered with 304 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+
+	public synchronized long getSize() {
+		return currentBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		currentBytes = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + getEntryCount() + " bytes=" + getSize() + "/" + maxBytes +
+				" hits=" + getHitCount() + " misses=" + getMissCount() +
+				" revalidations=" + getRevalidationCount() + " notModified=" + getNotModifiedCount() +
+				" evictions=" + getEvictionCount() + " evictedBytes=" + getEvictedBytes();
+	}
+
+	private static boolean isCacheable(TransportRequest req) {
+		if ( !"GET".equals(req.getMethod()) ) {
+			return false;
+		}
+		// a partial response must not be stored or answered from a full one
+		if ( header(req.getHeaders(), RANGE) != null ) {
+			return false;
+		}
+		List<String> cacheControl = directives(req.getHeaders(), CACHE_CONTROL);
+		return !cacheControl.contains("no-store");
+	}
+
+	private void invalidateIfUnsafe(TransportRequest req) {
+		String method = req.getMethod();
+		if ( "POST".equals(method) || "PUT".equals(method) ||
+				"DELETE".equals(method) || "PATCH".equals(method) ) {
+			String prefix = "GET " + req.getURL().toString() + " ";
+			synchronized (this) {
+				Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+				while ( it.hasNext() ) {
+					Map.Entry<String, Entry> e = it.next();
+					if ( e.getKey().startsWith(prefix) ) {
+						currentBytes -= e.getValue().size;
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	private static String keyFor(TransportRequest req) {
+		List<Header> headers = req.getHeaders();
+		String auth = header(headers, AUTHORIZATION);
+		StringBuilder key = new StringBuilder();
+		key.append(req.getMethod()).append(' ').append(req.getURL().toString()).append(' ');
+		if ( auth != null ) {
+			key.append(auth);
+		}
+		// header values cannot contain a line break, so the parts stay distinct;
+		// the encoding is always there, so that it cannot be taken for a cookie
+		String acceptEncoding = header(headers, ACCEPT_ENCODING);
+		key.append('\n');
+		if ( acceptEncoding != null ) {
+			key.append(acceptEncoding.trim());
+		}
+		int i = HeaderNames.indexOf(headers, COOKIE, 0);
+		while ( i != -1 ) {
+			key.append('\n').append(headers.get(i).getValue());
+			i = HeaderNames.indexOf(headers, COOKIE, i + 1);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached entry, or null if there is none or the request
+	 * asks for an end-to-end reload.
+	 */
+	private Entry lookup(String key, TransportRequest req) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if ( entry != null ) {
+			List<String> cacheControl = directives(req.getHeaders(), CACHE_CONTROL);
+			boolean reload = cacheControl.contains("no-cache") || cacheControl.contains("max-age=0") ||
+					directives(req.getHeaders(), PRAGMA).contains("no-cache");
+			if ( reload ) {
+				// still usable for revalidation, never as-is
+				return new Entry(entry.response, 0L, true, entry.etag, entry.lastModified, entry.size);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Add validators to the request if the (stale) entry has them.
+	 *
+	 * @return true if the request was made conditional
+	 */
+	private boolean prepare(TransportRequest req, Entry entry) {
+		List<Header> headers = req.getHeaders();
+		if ( entry == null || !entry.hasValidator() ||
+				header(headers, IF_NONE_MATCH) != null || header(headers, IF_MODIFIED_SINCE) != null ) {
+			missCount.incrementAndGet();
+			return false;
+		}
+		if ( entry.etag != null ) {
+			req.setHeader(new BasicHeader(IF_NONE_MATCH, entry.etag));
+		}
+		if ( entry.lastModified != null ) {
+			req.setHeader(new BasicHeader(IF_MODIFIED_SINCE, entry.lastModified));
+		}
+		revalidationCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Store the response, or answer a 304 from the revalidated entry.
+	 */
+	private TransportResponse onResponse(String key, Entry revalidated, TransportResponse resp) {
+		long now = System.currentTimeMillis();
+		if ( revalidated != null && resp.getResponseCode() == HttpStatus.SC_NOT_MODIFIED ) {
+			notModifiedCount.incrementAndGet();
+			TransportResponse merged = merge(revalidated.response, resp);
+			store(key, merged, now);
+			return merged;
+		}
+		// bodies spilled to disk are too large to keep
+		if ( resp.getResponseCode() == HttpStatus.SC_OK && resp.getSpilledContent() == null ) {
+			store(key, resp, now);
+		} else {
+			remove(key);
+		}
+		return resp;
+	}
+
+	/**
+	 * @return the cached response updated with the headers of the 304 response
+	 */
+	private static TransportResponse merge(TransportResponse cached, TransportResponse notModified) {
+		List<Header> updates = notModified.getHeaders();
+		List<Header> headers = new ArrayList<Header>();
+		for ( Header h : cached.getHeaders() ) {
+			if ( header(updates, h.getName()) == null ) {
+				headers.add(h);
+			}
+		}
+		headers.addAll(updates);
+		return new TransportResponse(cached.getResponseCode(), cached.getContent(), cached.getFinalUrl(), headers);
+	}
+
+	private void store(String key, TransportResponse resp, long now) {
+		List<Header> headers = resp.getHeaders();
+		List<String> cacheControl = directives(headers, CACHE_CONTROL);
+		if ( cacheControl.contains("no-store") || isPrivate(cacheControl) ) {
+			remove(key);
+			return;
+		}
+		if ( header(headers, SET_COOKIE) != null || header(headers, SET_COOKIE2) != null ) {
+			// the cookie belongs to one session and must not be replayed to others
+			remove(key);
+			return;
+		}
+		String vary = header(headers, VARY);
+		if ( vary != null && !vary.trim().equalsIgnoreCase(ACCEPT_ENCODING) ) {
+			// we do not keep variants, other than the encodings the key tells apart
+			remove(key);
+			return;
+		}
+		String etag = header(headers, ETAG);
+		String lastModified = header(headers, LAST_MODIFIED);
+		long lifetime = freshnessLifetime(headers, cacheControl, now);
+		boolean alwaysRevalidate = cacheControl.contains("no-cache") ||
+				directives(headers, PRAGMA).contains("no-cache");
+		if ( lifetime <= 0 && etag == null && lastModified == null ) {
+			// neither fresh nor revalidatable
+			remove(key);
+			return;
+		}
+		long size = sizeOf(resp);
+		if ( size > maxEntryBytes ) {
+			remove(key);
+			return;
+		}
+		long freshUntil = now + lifetime - currentAge(headers, now);
+		Entry entry = new Entry(resp, freshUntil, alwaysRevalidate, etag, lastModified, size);
+		synchronized (this) {
+			Entry old = entries.put(key, entry);
+			if ( old != null ) {
+				currentBytes -= old.size;
+			}
+			currentBytes += size;
+			Iterator<Entry> it = entries.values().iterator();
+			while ( currentBytes > maxBytes && it.hasNext() ) {
+				Entry eldest = it.next();
+				it.remove();
+				currentBytes -= eldest.size;
+				evictionCount.incrementAndGet();
+				evictedBytes.addAndGet(eldest.size);
+			}
+		}
+	}
+
+	/**
+	 * @return true for a bare private directive, or one naming private fields
+	 */
+	private static boolean isPrivate(List<String> cacheControl) {
+		for ( String d : cacheControl ) {
+			if ( d.equals("private") || d.startsWith("private=") ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void remove(String key) {
+		Entry old = entries.remove(key);
+		if ( old != null ) {
+			currentBytes -= old.size;
+		}
+	}
+
+	private static long freshnessLifetime(List<Header> headers, List<String> cacheControl, long now) {
+		for ( String d : cacheControl ) {
+			if ( d.startsWith("max-age=") ) {
+				try {
+					return TimeUnit.SECONDS.toMillis(Long.parseLong(unquote(d.substring(8))));
+				} catch ( NumberFormatException e ) {
+					logger.debug("Unparseable max-age directive: " + d);
+					return 0L;
+				}
+			}
+		}
+		long date = parseDate(header(headers, DATE), now);
+		String expires = header(headers, EXPIRES);
+		if ( expires != null ) {
+			return parseDate(expires, date) - date;
+		}
+		String lastModified = header(headers, LAST_MODIFIED);
+		if ( lastModified != null ) {
+			// heuristic freshness (RFC 7234 section 4.2.2)
+			long age = date - parseDate(lastModified, date);
+			return Math.min(age / 10, MAX_HEURISTIC_MILLIS);
+		}
+		return 0L;
+	}
+
+	private static long currentAge(List<Header> headers, long now) {
+		long apparentAge = Math.max(0L, now - parseDate(header(headers, DATE), now));
+		String age = header(headers, AGE);
+		long ageValue = 0L;
+		if ( age != null ) {
+			try {
+				ageValue = TimeUnit.SECONDS.toMillis(Long.parseLong(age.trim()));
+			} catch ( NumberFormatException e ) {
+				logger.debug("Unparseable Age header: " + age);
+			}
+		}
+		return Math.max(apparentAge, ageValue);
+	}
+
+	private static long parseDate(String value, long defaultMillis) {
+		if ( value == null ) {
+			return defaultMillis;
+		}
+		Date d = DateUtils.parseDate(value);
+		return (d == null) ? defaultMillis : d.getTime();
+	}
+
+	private static long sizeOf(TransportResponse resp) {
+		long size = ENTRY_OVERHEAD;
+		byte[] content = resp.getContent();
+		if ( content != null ) {
+			size += content.length;
+		}
+		for ( Header h : resp.getHeaders() ) {
+			size += 2L * (h.getName().length() + h.getValue().length()) + 32;
+		}
+		return size;
+	}
+
+	private static String header(List<Header> headers, String name) {
+		Header h = HeaderNames.getFirst(headers, name);
+		return (h == null) ? null : h.getValue();
+	}
+
+	/**
+	 * @return the lower-cased directives of all headers with the given name
+	 */
+	private static List<String> directives(List<Header> headers, String name) {
+		List<String> directives = new ArrayList<String>();
+		int i = HeaderNames.indexOf(headers, name, 0);
+		while ( i != -1 ) {
+			for ( String d : headers.get(i).getValue().split(",") ) {
+				String trimmed = d.trim().toLowerCase(Locale.ENGLISH);
+				if ( trimmed.length() != 0 ) {
+					directives.add(trimmed);
+				}
+			}
+			i = HeaderNames.indexOf(headers, name, i + 1);
+		}
+		return directives;
+	}
+
+	private static String unquote(String value) {
+		if ( value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+	/**
+	 * A response answered from the cache.
+	 */
+	private static final class CachedFuture implements Future<TransportResponse> {
+		private final TransportResponse response;
+
+		CachedFuture(TransportResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public TransportResponse get() {
+			return response;
+		}
+
+		@Override
+		public TransportResponse get(long timeout, TimeUnit unit) {
+			return response;
+		}
+	}
+
+	/**
+	 * A pending fetch whose response is stored when it is retrieved.
+	 */
+	private final class StoringFuture implements Future<TransportResponse> {
+		private final String key;
+		private final Entry revalidated;
+		private final Future<TransportResponse> fetch;
+		private TransportResponse result = null;
+
+		StoringFuture(String key, Entry revalidated, Future<TransportResponse> fetch) {
+			this.key = key;
+			this.revalidated = revalidated;
+			this.fetch = fetch;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return fetch.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return fetch.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return fetch.isDone();
+		}
+
+		@Override
+		public TransportResponse get() throws InterruptedException, ExecutionException {
+			return complete(fetch.get());
+		}
+
+		@Override
+		public TransportResponse get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			return complete(fetch.get(timeout, unit));
+		}
+
+		private synchronized TransportResponse complete(TransportResponse resp) {
+			if ( result == null ) {
+				result = onResponse(key, revalidated, resp);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.opendatakit.http.conn.transport.TransportResponse;
+
+/**
+ * Future for a request issued through
+ * {@link GaeHttpClientConnectionManager#executeAsync}.
+ *
+ * The transport response is translated into an HttpCore response the first
+ * time it is retrieved; subsequent calls return the same translated response.
+ * The bulkhead permits held by the connection are given back as soon as the
+ * outcome of the fetch (response or failure) is retrieved, or cancel() is
+ * called. A future that is never read is found through the route's set of
+ * futures holding permits, and its permits are reclaimed once its fetch is
+ * done.
+ */
+class GaeHttpResponseFuture implements Future<HttpResponse> {
+
+	private final GaeHttpClientConnectionImpl connection;
+
+	private final Future<TransportResponse> fetch;
+
+	private HttpResponse translated = null;
+
+	private ExecutionException failure = null;
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/** the futures of the route that still hold permits */
+	private final Set<GaeHttpResponseFuture> holdingPermits;
+
+	GaeHttpResponseFuture(GaeHttpClientConnectionImpl connection, Future<TransportResponse> fetch,
+			Set<GaeHttpResponseFuture> holdingPermits) {
+		this.connection = connection;
+		this.fetch = fetch;
+		this.holdingPermits = holdingPermits;
+		holdingPermits.add(this);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = fetch.cancel(mayInterruptIfRunning);
+		if ( cancelled || fetch.isDone() ) {
+			// either way the caller is done with the fetch
+			releasePermits();
+		}
+		return cancelled;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return fetch.isCancelled();
+	}
+
+	@Override
+	public boolean isDone() {
+		return fetch.isDone();
+	}
+
+	@Override
+	public HttpResponse get() throws InterruptedException, ExecutionException {
+		TransportResponse fetched;
+		try {
+			fetched = fetch.get();
+		} catch (ExecutionException e) {
+			releasePermits();
+			throw e;
+		} catch (CancellationException e) {
+			releasePermits();
+			throw e;
+		}
+		return translate(fetched);
+	}
+
+	@Override
+	public HttpResponse get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		TransportResponse fetched;
+		try {
+			fetched = fetch.get(timeout, unit);
+		} catch (ExecutionException e) {
+			releasePermits();
+			throw e;
+		} catch (CancellationException e) {
+			releasePermits();
+			throw e;
+		}
+		return translate(fetched);
+	}
+
+	private void releasePermits() {
+		if ( released.compareAndSet(false, true) ) {
+			holdingPermits.remove(this);
+			connection.releasePermits();
+		}
+	}
+
+	/**
+	 * Give back the permits if the fetch is over, whether or not its
+	 * outcome has been retrieved; the response stays available.
+	 */
+	void reclaimIfDone() {
+		if ( fetch.isDone() ) {
+			releasePermits();
+		}
+	}
+
+	private synchronized HttpResponse translate(TransportResponse fetched) throws ExecutionException {
+		if ( failure != null ) {
+			throw failure;
+		}
+		if ( translated == null ) {
+			try {
+				translated = connection.completeAsync(fetched);
+			} catch (HttpException e) {
+				failure = new ExecutionException(e);
+				throw failure;
+			} catch (IOException e) {
+				failure = new ExecutionException(e);
+				throw failure;
+			} finally {
+				releasePermits();
+			}
+		}
+		return translated;
+	}
+}
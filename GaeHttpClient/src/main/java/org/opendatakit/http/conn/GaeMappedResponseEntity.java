@@ -0,0 +1,72 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.opendatakit.http.conn.transport.SpilledContent;
+
+/**
+ * Response entity over a body the transport spilled to disk. The content
+ * is read from the read-only mapping of the file, so it takes no heap
+ * however large it is.
+ *
+ * The entity is streaming: closing its content stream (which
+ * EntityUtils.consume and reading it to the end through HttpClient both do)
+ * releases the file, so the content can only be read once.
+ */
+class GaeMappedResponseEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final SpilledContentHold content;
+
+	GaeMappedResponseEntity(SpilledContent content, Header contentType, Header contentEncoding) {
+		if ( content == null ) {
+			throw new IllegalArgumentException("Content may not be null");
+		}
+		this.content = new SpilledContentHold(content);
+		setContentType(contentType);
+		setContentEncoding(contentEncoding);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return content.getLength();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return content.openStream();
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if ( outstream == null ) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		InputStream in = content.openStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) {
+				outstream.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		outstream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !content.isReleased();
+	}
+}
@@ -0,0 +1,235 @@
+package org.opendatakit.http.conn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.mime.FormBodyPart;
+import org.apache.http.entity.mime.FormBodyPartBuilder;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.MinimalField;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+/**
+ * multipart/form-data entity (e.g., an ODK submission: the XML and its
+ * media attachments) that knows its exact Content-Length up front.
+ *
+ * The part headers are formatted once, when the part is added, and the
+ * length is summed from them and the body lengths; nothing is formatted or
+ * buffered to compute it. When written to the connection's payload buffer,
+ * which is allocated once at that length, file parts are read straight
+ * into the buffer. The bytes written are those of an httpmime
+ * MultipartFormEntity built with the same parts, mode and boundary.
+ *
+ * If any body has an unknown length (e.g., an InputStreamBody), so has the
+ * entity, and it can only be written once.
+ */
+public class GaeMultipartEntity extends AbstractHttpEntity {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] DASHES = { '-', '-' };
+	private static final byte[] FIELD_SEPARATOR = { ':', ' ' };
+
+	private static final char[] BOUNDARY_CHARS =
+			"-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+	/**
+	 * A part whose preamble (boundary line and headers) is already encoded.
+	 */
+	private static final class Part {
+		final byte[] preamble;
+		final ContentBody body;
+		final long bodyLength;
+
+		Part(byte[] preamble, ContentBody body) {
+			this.preamble = preamble;
+			this.body = body;
+			this.bodyLength = body.getContentLength();
+		}
+	}
+
+	private final HttpMultipartMode mode;
+
+	private final Charset headerCharset;
+
+	private final byte[] boundary;
+
+	private final byte[] closing;
+
+	private final List<Part> parts = new ArrayList<Part>();
+
+	/** total length, or -1 once a body of unknown length is added */
+	private long contentLength;
+
+	public GaeMultipartEntity() {
+		this(HttpMultipartMode.STRICT, null);
+	}
+
+	/**
+	 * @param mode which part headers are written, and how they are encoded,
+	 * as for httpmime's MultipartEntityBuilder
+	 * @param boundary the boundary; null to generate a random one
+	 */
+	public GaeMultipartEntity(HttpMultipartMode mode, String boundary) {
+		this.mode = (mode == null) ? HttpMultipartMode.STRICT : mode;
+		switch ( this.mode ) {
+		case BROWSER_COMPATIBLE:
+			headerCharset = ISO_8859_1;
+			break;
+		case RFC6532:
+			headerCharset = UTF_8;
+			break;
+		default:
+			headerCharset = ASCII;
+		}
+		String b = (boundary == null) ? generateBoundary() : boundary;
+		this.boundary = b.getBytes(ASCII);
+		setContentType("multipart/form-data; boundary=" + b);
+		// --boundary--CRLF
+		ByteArrayOutputStream end = new ByteArrayOutputStream();
+		put(end, DASHES);
+		put(end, this.boundary);
+		put(end, DASHES);
+		put(end, CRLF);
+		this.closing = end.toByteArray();
+		this.contentLength = closing.length;
+	}
+
+	private static String generateBoundary() {
+		Random rand = new Random();
+		int count = rand.nextInt(11) + 30;
+		StringBuilder buffer = new StringBuilder(count);
+		for ( int i = 0 ; i < count ; ++i ) {
+			buffer.append(BOUNDARY_CHARS[rand.nextInt(BOUNDARY_CHARS.length)]);
+		}
+		return buffer.toString();
+	}
+
+	public GaeMultipartEntity addPart(String name, ContentBody body) {
+		return addPart(FormBodyPartBuilder.create(name, body).build());
+	}
+
+	public GaeMultipartEntity addPart(FormBodyPart part) {
+		if ( part == null ) {
+			throw new IllegalArgumentException("Part may not be null");
+		}
+		// --boundary CRLF (header CRLF)* CRLF
+		ByteArrayOutputStream preamble = new ByteArrayOutputStream(256);
+		put(preamble, DASHES);
+		put(preamble, boundary);
+		put(preamble, CRLF);
+		for ( MinimalField field : part.getHeader() ) {
+			if ( mode == HttpMultipartMode.BROWSER_COMPATIBLE && !isBrowserField(field, part) ) {
+				continue;
+			}
+			put(preamble, field.getName().getBytes(headerCharset));
+			put(preamble, FIELD_SEPARATOR);
+			put(preamble, field.getBody().getBytes(headerCharset));
+			put(preamble, CRLF);
+		}
+		put(preamble, CRLF);
+		Part p = new Part(preamble.toByteArray(), part.getBody());
+		parts.add(p);
+		if ( contentLength >= 0 ) {
+			contentLength = (p.bodyLength < 0) ? -1L : contentLength + p.preamble.length + p.bodyLength + CRLF.length;
+		}
+		return this;
+	}
+
+	/**
+	 * Browsers only send the Content-Disposition, and the Content-Type of
+	 * file parts.
+	 */
+	private static boolean isBrowserField(MinimalField field, FormBodyPart part) {
+		String name = field.getName();
+		return MIME.CONTENT_DISPOSITION.equalsIgnoreCase(name) ||
+				(MIME.CONTENT_TYPE.equalsIgnoreCase(name) && part.getBody().getFilename() != null);
+	}
+
+	public int getPartCount() {
+		return parts.size();
+	}
+
+	@Override
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return contentLength >= 0;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return !isRepeatable();
+	}
+
+	@Override
+	public boolean isChunked() {
+		return contentLength < 0;
+	}
+
+	/**
+	 * As with httpmime's multipart entities, the content is only available
+	 * through {@link #writeTo(OutputStream)}.
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		throw new UnsupportedOperationException("Multipart entity does not implement #getContent()");
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		if ( out == null ) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		PayloadOutputStream payload = (out instanceof PayloadOutputStream) ? (PayloadOutputStream) out : null;
+		for ( Part part : parts ) {
+			out.write(part.preamble);
+			if ( payload != null && part.body instanceof FileBody ) {
+				readFile(((FileBody) part.body).getFile(), part.bodyLength, payload);
+			} else {
+				part.body.writeTo(out);
+			}
+			out.write(CRLF);
+		}
+		out.write(closing);
+		out.flush();
+	}
+
+	/**
+	 * Read the whole file straight into the payload buffer.
+	 */
+	private static void readFile(File file, long length, PayloadOutputStream payload) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if ( channel.size() != length ) {
+				throw new IOException("File changed size since it was added: " + file);
+			}
+			payload.readFully(channel, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void put(ByteArrayOutputStream out, byte[] b) {
+		out.write(b, 0, b.length);
+	}
+}
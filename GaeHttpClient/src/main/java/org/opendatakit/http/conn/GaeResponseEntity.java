@@ -0,0 +1,60 @@
+package org.opendatakit.http.conn;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Response entity over the byte array returned by URLFetch.
+ *
+ * The array is wrapped, not copied, and no stream is created until the
+ * content is actually read. The Content-Type and Content-Encoding headers
+ * are supplied by the caller, which picks them out while translating the
+ * response headers.
+ */
+class GaeResponseEntity extends AbstractHttpEntity {
+
+	private final byte[] content;
+
+	GaeResponseEntity(byte[] content, Header contentType, Header contentEncoding) {
+		if ( content == null ) {
+			throw new IllegalArgumentException("Content may not be null");
+		}
+		this.content = content;
+		setContentType(contentType);
+		setContentEncoding(contentEncoding);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return content.length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return new ByteArrayInputStream(content);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if ( outstream == null ) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		outstream.write(content);
+		outstream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
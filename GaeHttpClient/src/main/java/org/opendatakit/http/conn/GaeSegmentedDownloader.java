@@ -0,0 +1,380 @@
+package org.opendatakit.http.conn;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Downloads a large resource as concurrent byte-range requests through
+ * {@link GaeHttpClientConnectionManager#executeAsync}, so that no single
+ * fetch exceeds the URLFetch response size limit.
+ *
+ * The first range request doubles as the size probe: its Content-Range
+ * gives the total length. Further segments are requested a few at a time
+ * and handed out in order; at most {@link #getMaxConcurrentSegments()}
+ * segments are held in memory, whatever the size of the resource. Every
+ * segment carries an If-Range validator from the first response, so a
+ * resource that changes mid-download fails the download instead of
+ * producing a mixed result.
+ *
+ * A server that ignores Range answers the first request with the whole
+ * resource, which is then returned as-is.
+ */
+public class GaeSegmentedDownloader {
+
+	/** well under the 32MB URLFetch response limit */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	public static final int DEFAULT_MAX_CONCURRENT_SEGMENTS = 4;
+
+	private static final String RANGE = "Range";
+	private static final String IF_RANGE = "If-Range";
+	private static final String CONTENT_RANGE = "Content-Range";
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String ETAG = "ETag";
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	private final GaeHttpClientConnectionManager manager;
+
+	private volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private volatile int maxConcurrentSegments = DEFAULT_MAX_CONCURRENT_SEGMENTS;
+
+	public GaeSegmentedDownloader(GaeHttpClientConnectionManager manager) {
+		if ( manager == null ) {
+			throw new IllegalArgumentException("Connection manager may not be null.");
+		}
+		this.manager = manager;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		if ( segmentSize <= 0 ) {
+			throw new IllegalArgumentException("segmentSize must be positive");
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	public int getMaxConcurrentSegments() {
+		return maxConcurrentSegments;
+	}
+
+	/**
+	 * @param maxConcurrentSegments the number of segments fetched or buffered
+	 * at once; this bounds memory use to this many times the segment size.
+	 * Each segment holds a bulkhead permit while it is being fetched; a window
+	 * larger than the manager's per-route or total limit just waits for
+	 * earlier segments to arrive.
+	 */
+	public void setMaxConcurrentSegments(int maxConcurrentSegments) {
+		if ( maxConcurrentSegments <= 0 ) {
+			throw new IllegalArgumentException("maxConcurrentSegments must be positive");
+		}
+		this.maxConcurrentSegments = maxConcurrentSegments;
+	}
+
+	/**
+	 * Start downloading the resource. The first segment has been received
+	 * when this returns; the stream must be closed to abandon the segments
+	 * still in flight.
+	 *
+	 * @param uri absolute URI of the resource
+	 * @param headers additional request headers (e.g., Authorization)
+	 * @return the resource content
+	 * @throws IOException
+	 */
+	public InputStream open(URI uri, Header... headers) throws IOException {
+		return new SegmentedInputStream(uri, headers, segmentSize, maxConcurrentSegments);
+	}
+
+	/**
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long download(URI uri, OutputStream out, Header... headers) throws IOException {
+		InputStream in = open(uri, headers);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			long total = 0;
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) {
+				out.write(buffer, 0, n);
+				total += n;
+			}
+			out.flush();
+			return total;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long download(URI uri, File file, Header... headers) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			return download(uri, out, headers);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * One byte range of the resource, requested or received.
+	 */
+	private static final class Segment {
+		final long offset;
+		final long length;
+		final Future<HttpResponse> response;
+
+		Segment(long offset, long length, Future<HttpResponse> response) {
+			this.offset = offset;
+			this.length = length;
+			this.response = response;
+		}
+	}
+
+	private final class SegmentedInputStream extends InputStream {
+		private final URI uri;
+		private final Header[] headers;
+		private final int segmentSize;
+		private final int maxConcurrentSegments;
+
+		/** the segments requested but not yet being read, in order */
+		private final ArrayDeque<Segment> pending = new ArrayDeque<Segment>();
+
+		private Header validator = null;
+		private long length;
+		private long nextOffset;
+		private InputStream current;
+		private boolean closed = false;
+
+		SegmentedInputStream(URI uri, Header[] headers, int segmentSize, int maxConcurrentSegments)
+				throws IOException {
+			this.uri = uri;
+			this.headers = headers;
+			this.segmentSize = segmentSize;
+			this.maxConcurrentSegments = maxConcurrentSegments;
+			probe();
+		}
+
+		private void probe() throws IOException {
+			Segment first = request(0L, segmentSize);
+			HttpResponse resp = await(first);
+			int status = resp.getStatusLine().getStatusCode();
+			HttpEntity entity = resp.getEntity();
+			if ( status == HttpStatus.SC_OK ) {
+				// Range not supported; this is the whole resource
+				length = (entity == null) ? 0L : entity.getContentLength();
+				nextOffset = length;
+				current = content(entity);
+				return;
+			}
+			if ( status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE ) {
+				// only an empty resource has no first byte
+				length = 0L;
+				nextOffset = 0L;
+				current = content(null);
+				return;
+			}
+			if ( status != HttpStatus.SC_PARTIAL_CONTENT ) {
+				throw new IOException("Unexpected response to a range request for " + uri + ": " +
+						resp.getStatusLine());
+			}
+			long[] range = contentRange(resp);
+			if ( range[0] != 0L ) {
+				throw new IOException("Server returned the wrong range for " + uri);
+			}
+			if ( range[2] < 0 ) {
+				throw new IOException("Server did not report the size of " + uri);
+			}
+			length = range[2];
+			nextOffset = range[1] + 1;
+			validator = validatorOf(resp);
+			current = content(entity);
+			// the segment being read counts towards the window
+			fill(maxConcurrentSegments - 1);
+		}
+
+		/**
+		 * Request segments until the given number are pending or the
+		 * resource is covered.
+		 */
+		private void fill(int window) throws IOException {
+			while ( nextOffset < length && pending.size() < window ) {
+				long n = Math.min(segmentSize, length - nextOffset);
+				pending.add(request(nextOffset, n));
+				nextOffset += n;
+			}
+		}
+
+		private Segment request(long offset, long n) throws IOException {
+			HttpGet get = new HttpGet(uri);
+			for ( Header h : headers ) {
+				get.addHeader(h);
+			}
+			get.setHeader(RANGE, "bytes=" + offset + "-" + (offset + n - 1));
+			// ranges must be of the identity encoding to be reassembled
+			get.setHeader(ACCEPT_ENCODING, "identity");
+			if ( validator != null ) {
+				get.setHeader(IF_RANGE, validator.getValue());
+			}
+			try {
+				return new Segment(offset, n, manager.executeAsync(get));
+			} catch ( HttpException e ) {
+				throw new IOException(e);
+			}
+		}
+
+		private HttpResponse await(Segment segment) throws IOException {
+			try {
+				return segment.response.get();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a segment of " + uri);
+			} catch ( ExecutionException e ) {
+				Throwable cause = e.getCause();
+				if ( cause instanceof IOException ) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to fetch a segment of " + uri, cause);
+			}
+		}
+
+		/**
+		 * @return true if there is a segment to read from
+		 */
+		private boolean advance() throws IOException {
+			// the current segment is used up, which frees its place in the window
+			fill(maxConcurrentSegments);
+			Segment segment = pending.poll();
+			if ( segment == null ) {
+				return false;
+			}
+			HttpResponse resp = await(segment);
+			int status = resp.getStatusLine().getStatusCode();
+			if ( status == HttpStatus.SC_OK ) {
+				throw new IOException(uri + " changed during the download");
+			}
+			if ( status != HttpStatus.SC_PARTIAL_CONTENT ) {
+				throw new IOException("Unexpected response to a range request for " + uri + ": " +
+						resp.getStatusLine());
+			}
+			long[] range = contentRange(resp);
+			HttpEntity entity = resp.getEntity();
+			if ( range[0] != segment.offset || range[1] - range[0] + 1 != segment.length ||
+					entity == null || entity.getContentLength() != segment.length ) {
+				throw new IOException("Server returned the wrong range for " + uri);
+			}
+			current = entity.getContent();
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( closed ) {
+				throw new IOException("Stream closed");
+			}
+			if ( len == 0 ) {
+				return 0;
+			}
+			for ( ;; ) {
+				int n = current.read(b, off, len);
+				if ( n != -1 ) {
+					return n;
+				}
+				if ( !advance() ) {
+					return -1;
+				}
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return closed ? 0 : current.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( closed ) {
+				return;
+			}
+			closed = true;
+			Segment segment;
+			while ( (segment = pending.poll()) != null ) {
+				segment.response.cancel(true);
+			}
+			current.close();
+		}
+	}
+
+	private static InputStream content(HttpEntity entity) throws IOException {
+		if ( entity == null ) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return entity.getContent();
+	}
+
+	/**
+	 * @return the first and last byte positions and the total length (-1 if
+	 * unknown) from a {@code bytes first-last/total} Content-Range
+	 */
+	private static long[] contentRange(HttpResponse resp) throws IOException {
+		Header h = resp.getFirstHeader(CONTENT_RANGE);
+		if ( h == null ) {
+			throw new IOException("Partial content without a Content-Range");
+		}
+		String value = h.getValue().trim();
+		try {
+			if ( !value.regionMatches(true, 0, "bytes ", 0, 6) ) {
+				throw new NumberFormatException(value);
+			}
+			int dash = value.indexOf('-', 6);
+			int slash = value.indexOf('/', dash);
+			long first = Long.parseLong(value.substring(6, dash).trim());
+			long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+			String total = value.substring(slash + 1).trim();
+			return new long[] { first, last, "*".equals(total) ? -1L : Long.parseLong(total) };
+		} catch ( RuntimeException e ) {
+			throw new IOException("Malformed Content-Range: " + value);
+		}
+	}
+
+	/**
+	 * @return the header whose value goes into If-Range: a strong ETag, or
+	 * else Last-Modified; null if the response has neither
+	 */
+	private static Header validatorOf(HttpResponse resp) {
+		Header etag = resp.getFirstHeader(ETAG);
+		if ( etag != null && !etag.getValue().startsWith("W/") ) {
+			return etag;
+		}
+		return resp.getFirstHeader(LAST_MODIFIED);
+	}
+}
@@ -0,0 +1,120 @@
+package org.opendatakit.http.conn;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with power-of-two microsecond buckets.
+ *
+ * Bucket 0 holds samples under 1us; bucket i (i > 0) holds samples in
+ * [2^(i-1), 2^i) us. Recording a sample is three atomic increments and
+ * never allocates, so it can sit on the request path.
+ */
+public final class LatencyHistogram {
+
+	/** 2^38 us is a little over 3 days; anything longer lands in the last bucket */
+	static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	static int bucketFor(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0L));
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * @param bucket
+	 * @return the exclusive upper bound of the bucket, in microseconds
+	 */
+	static long upperBoundMicros(int bucket) {
+		return 1L << bucket;
+	}
+
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucketFor(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while ( (max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos) ) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public long getMeanNanos() {
+		long n = count.get();
+		return (n == 0) ? 0L : totalNanos.get() / n;
+	}
+
+	/**
+	 * Estimate a percentile from the bucket counts.
+	 *
+	 * @param percentile value between 0 and 100
+	 * @return the upper bound (in microseconds) of the bucket holding the
+	 * requested percentile, or 0 if nothing has been recorded.
+	 */
+	public long getPercentileMicros(double percentile) {
+		if ( percentile < 0.0 || percentile > 100.0 ) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for ( long c : counts ) {
+			total += c;
+		}
+		if ( total == 0 ) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for ( int i = 0 ; i < counts.length ; ++i ) {
+			seen += counts[i];
+			if ( seen >= rank && counts[i] != 0 ) {
+				return upperBoundMicros(i);
+			}
+		}
+		return upperBoundMicros(counts.length - 1);
+	}
+
+	public long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for ( int i = 0 ; i < BUCKETS ; ++i ) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	public void reset() {
+		for ( int i = 0 ; i < BUCKETS ; ++i ) {
+			buckets.set(i, 0L);
+		}
+		count.set(0L);
+		totalNanos.set(0L);
+		maxNanos.set(0L);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() +
+				" mean=" + TimeUnit.NANOSECONDS.toMicros(getMeanNanos()) + "us" +
+				" p50<" + getPercentileMicros(50.0) + "us" +
+				" p99<" + getPercentileMicros(99.0) + "us" +
+				" max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us";
+	}
+}
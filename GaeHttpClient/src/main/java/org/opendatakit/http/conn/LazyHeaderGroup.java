@@ -0,0 +1,218 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.message.HeaderGroup;
+import org.opendatakit.http.conn.transport.HeaderNames;
+
+/**
+ * Header group over the header list of a transport response.
+ *
+ * Lookups by name are answered from the list directly, so only the headers
+ * asked for are translated. The headers are copied into the group on the
+ * first modification or full iteration, after which it behaves exactly
+ * like a HeaderGroup.
+ */
+class LazyHeaderGroup extends HeaderGroup {
+
+	private static final long serialVersionUID = 1L;
+
+	/** the response headers; null once they have been copied into the group */
+	private List<Header> source;
+
+	LazyHeaderGroup(List<Header> source) {
+		this.source = source;
+	}
+
+	private void materialize() {
+		List<Header> s = source;
+		if ( s != null ) {
+			source = null;
+			super.setHeaders(s.toArray(new Header[s.size()]));
+		}
+	}
+
+	@Override
+	public void clear() {
+		source = null;
+		super.clear();
+	}
+
+	@Override
+	public void addHeader(Header header) {
+		materialize();
+		super.addHeader(header);
+	}
+
+	@Override
+	public void removeHeader(Header header) {
+		materialize();
+		super.removeHeader(header);
+	}
+
+	@Override
+	public void updateHeader(Header header) {
+		materialize();
+		super.updateHeader(header);
+	}
+
+	@Override
+	public void setHeaders(Header[] headers) {
+		source = null;
+		super.setHeaders(headers);
+	}
+
+	@Override
+	public Header getCondensedHeader(String name) {
+		materialize();
+		return super.getCondensedHeader(name);
+	}
+
+	@Override
+	public Header[] getHeaders(String name) {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.getHeaders(name);
+		}
+		List<Header> found = null;
+		for ( int i = HeaderNames.indexOf(s, name, 0) ; i != -1 ; i = HeaderNames.indexOf(s, name, i + 1) ) {
+			if ( found == null ) {
+				found = new ArrayList<Header>(2);
+			}
+			found.add(s.get(i));
+		}
+		return (found == null) ? new Header[0] : found.toArray(new Header[found.size()]);
+	}
+
+	@Override
+	public Header getFirstHeader(String name) {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.getFirstHeader(name);
+		}
+		return HeaderNames.getFirst(s, name);
+	}
+
+	@Override
+	public Header getLastHeader(String name) {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.getLastHeader(name);
+		}
+		for ( int i = s.size() - 1 ; i >= 0 ; --i ) {
+			if ( HeaderNames.nameAt(s, i).equalsIgnoreCase(name) ) {
+				return s.get(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Header[] getAllHeaders() {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.getAllHeaders();
+		}
+		return s.toArray(new Header[s.size()]);
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.containsHeader(name);
+		}
+		return HeaderNames.indexOf(s, name, 0) != -1;
+	}
+
+	@Override
+	public HeaderIterator iterator() {
+		// supports remove()
+		materialize();
+		return super.iterator();
+	}
+
+	@Override
+	public HeaderIterator iterator(String name) {
+		List<Header> s = source;
+		if ( s == null ) {
+			return super.iterator(name);
+		}
+		return new NameIterator(s, name);
+	}
+
+	@Override
+	public HeaderGroup copy() {
+		HeaderGroup copy = new HeaderGroup();
+		copy.setHeaders(getAllHeaders());
+		return copy;
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		materialize();
+		return super.clone();
+	}
+
+	@Override
+	public String toString() {
+		materialize();
+		return super.toString();
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		materialize();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Iterates over the headers with one name without translating the others.
+	 */
+	private final class NameIterator implements HeaderIterator {
+		private final List<Header> headers;
+		private final String name;
+		private int next;
+		private Header last = null;
+
+		NameIterator(List<Header> headers, String name) {
+			this.headers = headers;
+			this.name = name;
+			this.next = HeaderNames.indexOf(headers, name, 0);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != -1;
+		}
+
+		@Override
+		public Header nextHeader() {
+			if ( next == -1 ) {
+				throw new NoSuchElementException("Iteration already finished.");
+			}
+			last = headers.get(next);
+			next = HeaderNames.indexOf(headers, name, next + 1);
+			return last;
+		}
+
+		@Override
+		public Object next() {
+			return nextHeader();
+		}
+
+		@Override
+		public void remove() {
+			if ( last == null ) {
+				throw new IllegalStateException("No header to remove.");
+			}
+			removeHeader(last);
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.opendatakit.http.conn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Collects an entity body into the byte array handed to
+ * HTTPRequest.setPayload, copying it at most once.
+ *
+ * Entities known to write their backing array in a single call
+ * (ByteArrayEntity, StringEntity) have that array captured without
+ * a copy. Other entities are written into a buffer pre-sized from
+ * their Content-Length, which is handed over as-is when it is filled
+ * exactly.
+ */
+final class PayloadOutputStream extends OutputStream {
+
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	/** maximum array size that the JVMs reliably allocate */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Get the payload for the given entity.
+	 *
+	 * @param entity
+	 * @return the entity body; possibly the entity's own backing array
+	 * @throws IOException
+	 */
+	static byte[] toPayload(HttpEntity entity) throws IOException {
+		long length = entity.getContentLength();
+		if ( length > MAX_CAPACITY ) {
+			throw new IOException("Request entity too large: " + length);
+		}
+		PayloadOutputStream out = new PayloadOutputStream((int) length, isArrayBacked(entity));
+		entity.writeTo(out);
+		return out.toPayload();
+	}
+
+	/**
+	 * @param sizeHint the expected compressed size, or -1 if unknown
+	 * @return a stream to collect a compressed body into; the array from
+	 * {@link #toPayload()} is only copied if the hint was wrong
+	 */
+	static PayloadOutputStream forCompressedPayload(int sizeHint) {
+		return new PayloadOutputStream(sizeHint, false);
+	}
+
+	/**
+	 * These entities write their (immutable) backing array in one write()
+	 * call and never touch it afterwards. Subclasses may override writeTo,
+	 * so only the exact classes are trusted.
+	 */
+	private static boolean isArrayBacked(HttpEntity entity) {
+		Class<?> clazz = entity.getClass();
+		return clazz == ByteArrayEntity.class || clazz == StringEntity.class;
+	}
+
+	private final int expectedLength;
+
+	private final boolean mayCapture;
+
+	/** array passed to write() and retained without copying */
+	private byte[] captured = null;
+
+	private byte[] buf = null;
+
+	private int count = 0;
+
+	private PayloadOutputStream(int expectedLength, boolean mayCapture) {
+		this.expectedLength = expectedLength;
+		this.mayCapture = mayCapture && expectedLength >= 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureCapacity(1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if ( (off < 0) || (len < 0) || (off > b.length - len) ) {
+			throw new IndexOutOfBoundsException();
+		}
+		if ( mayCapture && count == 0 && captured == null &&
+				off == 0 && len == b.length && len == expectedLength ) {
+			captured = b;
+			return;
+		}
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Read exactly length bytes from the channel straight into the buffer,
+	 * without an intermediate array.
+	 */
+	void readFully(FileChannel channel, long length) throws IOException {
+		if ( length > MAX_CAPACITY ) {
+			throw new IOException("Request entity too large");
+		}
+		int n = (int) length;
+		ensureCapacity(n);
+		ByteBuffer dst = ByteBuffer.wrap(buf, count, n);
+		while ( dst.hasRemaining() ) {
+			if ( channel.read(dst) == -1 ) {
+				throw new EOFException("Expected " + length + " bytes, got " + (n - dst.remaining()));
+			}
+		}
+		count += n;
+	}
+
+	private void ensureCapacity(int additional) throws IOException {
+		if ( captured != null ) {
+			// the entity wrote more than it declared; fall back to copying
+			buf = captured;
+			count = captured.length;
+			captured = null;
+		}
+		long minCapacity = (long) count + additional;
+		if ( minCapacity > MAX_CAPACITY ) {
+			throw new IOException("Request entity too large");
+		}
+		if ( buf == null ) {
+			int initial = (expectedLength >= 0) ? expectedLength : DEFAULT_CAPACITY;
+			buf = new byte[(int) Math.max(initial, minCapacity)];
+		} else if ( minCapacity > buf.length ) {
+			long grown = Math.max(2L * buf.length, minCapacity);
+			buf = Arrays.copyOf(buf, (int) Math.min(grown, MAX_CAPACITY));
+		}
+	}
+
+	byte[] toPayload() {
+		if ( captured != null ) {
+			return captured;
+		}
+		if ( buf == null ) {
+			return new byte[0];
+		}
+		if ( count == buf.length ) {
+			return buf;
+		}
+		return Arrays.copyOf(buf, count);
+	}
+}
@@ -0,0 +1,45 @@
+package org.opendatakit.http.conn;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpHost;
+
+/**
+ * URLs already resolved against one target host, keyed by request URI.
+ *
+ * Clients tend to request the same handful of URIs from a host over and
+ * over; URL parses and copies its parts on construction, so reusing the
+ * resolved instances saves that on every request. The cache is bounded and
+ * simply cleared when full.
+ */
+final class ResolvedUrlCache {
+
+	static final int MAX_ENTRIES = 256;
+
+	private final HttpHost host;
+
+	private final ConcurrentMap<String, URL> urls = new ConcurrentHashMap<String, URL>();
+
+	ResolvedUrlCache(HttpHost host) {
+		this.host = host;
+	}
+
+	HttpHost getHost() {
+		return host;
+	}
+
+	URL resolve(String uri) throws MalformedURLException {
+		URL url = urls.get(uri);
+		if ( url == null ) {
+			url = new URL(host.getSchemeName(), host.getHostName(), host.getPort(), uri);
+			if ( urls.size() >= MAX_ENTRIES ) {
+				urls.clear();
+			}
+			urls.put(uri, url);
+		}
+		return url;
+	}
+}
@@ -0,0 +1,61 @@
+package org.opendatakit.http.conn;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opendatakit.http.conn.transport.SpilledContent;
+
+/**
+ * A response entity's hold on spilled content. The hold is given back when
+ * the first content stream is closed, which frees the temporary file as
+ * soon as the last open stream is closed too.
+ */
+final class SpilledContentHold {
+
+	private final SpilledContent content;
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	SpilledContentHold(SpilledContent content) {
+		if ( content == null ) {
+			throw new IllegalArgumentException("Content may not be null");
+		}
+		this.content = content;
+	}
+
+	long getLength() {
+		return content.getLength();
+	}
+
+	boolean isReleased() {
+		return released.get();
+	}
+
+	/**
+	 * @return a stream over the content that releases the hold when closed
+	 * @throws IOException if the hold has been released
+	 */
+	InputStream openStream() throws IOException {
+		if ( released.get() ) {
+			throw new IOException("Response content has already been consumed");
+		}
+		return new FilterInputStream(content.openStream()) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					release();
+				}
+			}
+		};
+	}
+
+	void release() {
+		if ( released.compareAndSet(false, true) ) {
+			content.release();
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+
+/**
+ * Transport that coalesces identical concurrent GET requests.
+ *
+ * While a GET for a given URL and set of request headers is in flight,
+ * further GETs for the same URL and headers wait for that fetch instead of
+ * issuing their own; every caller receives its own copy of the response.
+ * All headers count (Authorization, Cookie, Accept, Accept-Encoding, ...)
+ * except a few that do not change the response, such as User-Agent. Requests with a payload, a Range header or a
+ * conditional (If-*) header are always passed straight through, as their
+ * responses are specific to the request.
+ *
+ * Only fetches that are still in flight are shared; this is not a cache.
+ * Install it by wrapping the transport handed to
+ * {@link org.opendatakit.http.conn.GaeHttpClientConnectionManager}, e.g.,
+ * {@code new CoalescingTransport(new UrlFetchTransport())}.
+ */
+public class CoalescingTransport implements HttpTransport {
+
+	/** lower-cased names of the headers that may differ between coalesced requests */
+	private static final Set<String> IGNORED_HEADERS = new HashSet<String>(Arrays.asList(
+			"user-agent", "connection", "keep-alive", "host", "date"));
+
+	private static final Comparator<String> BY_HEADER_NAME = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			return a.substring(0, a.indexOf(':')).compareTo(b.substring(0, b.indexOf(':')));
+		}
+	};
+
+	private final HttpTransport delegate;
+
+	private final ConcurrentMap<String, Future<TransportResponse>> inFlight =
+			new ConcurrentHashMap<String, Future<TransportResponse>>();
+
+	private final AtomicLong fetchCount = new AtomicLong();
+	private final AtomicLong savedFetchCount = new AtomicLong();
+
+	public CoalescingTransport(HttpTransport delegate) {
+		if ( delegate == null ) {
+			throw new IllegalArgumentException("HttpTransport may not be null.");
+		}
+		this.delegate = delegate;
+	}
+
+	/** @return the number of coalescable fetches actually issued */
+	public long getFetchCount() {
+		return fetchCount.get();
+	}
+
+	/** @return the number of requests answered by another caller's fetch */
+	public long getSavedFetchCount() {
+		return savedFetchCount.get();
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	@Override
+	public TransportResponse fetch(final TransportRequest request) throws IOException {
+		String key = keyFor(request);
+		if ( key == null ) {
+			return delegate.fetch(request);
+		}
+		FutureTask<TransportResponse> task = new FutureTask<TransportResponse>(
+				new Callable<TransportResponse>() {
+					@Override
+					public TransportResponse call() throws Exception {
+						return delegate.fetch(request);
+					}
+				});
+		Future<TransportResponse> shared = join(key, task);
+		if ( shared == task ) {
+			// we are the leader: fetch on this thread
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			return await(task, 0);
+		}
+		TransportResponse copy = copyOf(await(shared, request.getDeadlineMillis()));
+		// the content was spilled and is gone already; fetch it again
+		return (copy != null) ? copy : delegate.fetch(request);
+	}
+
+	@Override
+	public Future<TransportResponse> fetchAsync(TransportRequest request) {
+		String key = keyFor(request);
+		if ( key == null ) {
+			return delegate.fetchAsync(request);
+		}
+		Future<TransportResponse> shared = inFlight.get(key);
+		if ( shared != null && !shared.isDone() ) {
+			savedFetchCount.incrementAndGet();
+			return new SharedFuture(key, request, shared, true);
+		}
+		if ( shared != null ) {
+			inFlight.remove(key, shared);
+		}
+		Future<TransportResponse> fetch = delegate.fetchAsync(request);
+		fetchCount.incrementAndGet();
+		if ( inFlight.putIfAbsent(key, fetch) != null ) {
+			// lost a race with another leader; this fetch proceeds un-shared
+			return fetch;
+		}
+		// the leader's view must not cancel the shared fetch either
+		return new SharedFuture(key, request, fetch, false);
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTime, TimeUnit unit) {
+		purgeCompleted();
+		delegate.closeIdleConnections(idleTime, unit);
+	}
+
+	@Override
+	public void closeExpiredConnections() {
+		purgeCompleted();
+		delegate.closeExpiredConnections();
+	}
+
+	@Override
+	public void shutdown() {
+		inFlight.clear();
+		delegate.shutdown();
+	}
+
+	/**
+	 * Asynchronous fetches are removed when their result is retrieved; this
+	 * drops any whose result was never asked for.
+	 */
+	private void purgeCompleted() {
+		Iterator<Map.Entry<String, Future<TransportResponse>>> it = inFlight.entrySet().iterator();
+		while ( it.hasNext() ) {
+			if ( it.next().getValue().isDone() ) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the in-flight fetch to wait on, or the given task if the
+	 * caller should run it.
+	 */
+	private Future<TransportResponse> join(String key, FutureTask<TransportResponse> task) {
+		for ( ;; ) {
+			Future<TransportResponse> shared = inFlight.putIfAbsent(key, task);
+			if ( shared == null ) {
+				fetchCount.incrementAndGet();
+				return task;
+			}
+			if ( !shared.isDone() ) {
+				savedFetchCount.incrementAndGet();
+				return shared;
+			}
+			// completed but not yet removed by its leader
+			inFlight.remove(key, shared);
+		}
+	}
+
+	/**
+	 * @return the key identifying identical requests, or null if the
+	 * request must not be coalesced.
+	 */
+	static String keyFor(TransportRequest request) {
+		if ( !"GET".equals(request.getMethod()) || request.getPayload() != null ) {
+			return null;
+		}
+		List<String> headers = new ArrayList<String>();
+		for ( Header h : request.getHeaders() ) {
+			String name = h.getName().toLowerCase(Locale.ENGLISH);
+			if ( name.equals("range") || name.startsWith("if-") ) {
+				return null;
+			}
+			if ( !IGNORED_HEADERS.contains(name) ) {
+				headers.add(name + ":" + h.getValue());
+			}
+		}
+		// the sort is stable, so repeated headers keep their relative order
+		Collections.sort(headers, BY_HEADER_NAME);
+		StringBuilder key = new StringBuilder(request.getURL().toString());
+		for ( String header : headers ) {
+			// header values cannot contain a line break
+			key.append('\n').append(header);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Wait for a fetch, reporting its failure as the IOException
+	 * {@link #fetch} would have thrown.
+	 */
+	private static TransportResponse await(Future<TransportResponse> fetch, int deadlineMillis)
+			throws IOException {
+		try {
+			if ( deadlineMillis > 0 ) {
+				return fetch.get(deadlineMillis, TimeUnit.MILLISECONDS);
+			}
+			return fetch.get();
+		} catch ( TimeoutException e ) {
+			throw new SocketTimeoutException("Deadline exceeded waiting for a shared fetch");
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a shared fetch");
+		} catch ( CancellationException e ) {
+			throw new IOException("Shared fetch was cancelled", e);
+		} catch ( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			}
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Each caller gets its own content array and header list, so callers
+	 * cannot observe each other's changes.
+	 *
+	 * @return the copy, or null if the response's spilled content has
+	 * already been released by the callers it was given to
+	 */
+	static TransportResponse copyOf(TransportResponse resp) {
+		if ( resp.getSpilledContent() != null ) {
+			// read-only, so it can be shared, but each caller releases its own hold
+			if ( !resp.getSpilledContent().retain() ) {
+				return null;
+			}
+			return new TransportResponse(resp.getResponseCode(), resp.getSpilledContent(), resp.getFinalUrl(),
+					new ArrayList<Header>(resp.getHeaders()));
+		}
+		byte[] content = resp.getContent();
+		return new TransportResponse(resp.getResponseCode(),
+				(content == null) ? null : content.clone(), resp.getFinalUrl(),
+				new ArrayList<Header>(resp.getHeaders()));
+	}
+
+	/**
+	 * One caller's view of a shared fetch. Cancelling it only abandons this
+	 * caller's interest; the fetch continues for the others.
+	 */
+	private final class SharedFuture implements Future<TransportResponse> {
+		private final String key;
+		private final TransportRequest request;
+		private final Future<TransportResponse> fetch;
+		private final boolean copy;
+		private volatile boolean cancelled = false;
+		/** this caller's copy; guarded by this */
+		private TransportResponse copied = null;
+
+		SharedFuture(String key, TransportRequest request, Future<TransportResponse> fetch, boolean copy) {
+			this.key = key;
+			this.request = request;
+			this.fetch = fetch;
+			this.copy = copy;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if ( fetch.isDone() ) {
+				return false;
+			}
+			cancelled = true;
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled || fetch.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return cancelled || fetch.isDone();
+		}
+
+		@Override
+		public TransportResponse get() throws InterruptedException, ExecutionException {
+			if ( cancelled ) {
+				throw new CancellationException();
+			}
+			return result(fetch.get());
+		}
+
+		@Override
+		public TransportResponse get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if ( cancelled ) {
+				throw new CancellationException();
+			}
+			return result(fetch.get(timeout, unit));
+		}
+
+		private synchronized TransportResponse result(TransportResponse resp) throws ExecutionException {
+			inFlight.remove(key, fetch);
+			if ( !copy ) {
+				return resp;
+			}
+			if ( copied == null ) {
+				copied = copyOf(resp);
+				if ( copied == null ) {
+					// the content was spilled and is gone already; fetch it again
+					try {
+						copied = delegate.fetch(request);
+					} catch ( IOException e ) {
+						throw new ExecutionException(e);
+					}
+				}
+			}
+			return copied;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package org.opendatakit.http.conn.transport;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A future that has already failed.
+ */
+final class FailedFuture<T> implements Future<T> {
+
+	private final Throwable cause;
+
+	FailedFuture(Throwable cause) {
+		this.cause = cause;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return true;
+	}
+
+	@Override
+	public T get() throws ExecutionException {
+		throw new ExecutionException(cause);
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws ExecutionException {
+		throw new ExecutionException(cause);
+	}
+}
@@ -0,0 +1,50 @@
+package org.opendatakit.http.conn.transport;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+
+/**
+ * Read-only view of the headers of a URLFetch response as HttpCore headers.
+ *
+ * Each header is materialized the first time it is retrieved; names can be
+ * examined through {@link HeaderNames} without materializing anything.
+ */
+final class FetchedHeaderList extends AbstractList<Header> implements RandomAccess {
+
+	private final List<HTTPHeader> fetched;
+
+	private final Header[] materialized;
+
+	FetchedHeaderList(List<HTTPHeader> fetched) {
+		this.fetched = fetched;
+		this.materialized = new Header[fetched.size()];
+	}
+
+	String getName(int index) {
+		Header h = materialized[index];
+		return (h != null) ? h.getName() : fetched.get(index).getName();
+	}
+
+	@Override
+	public Header get(int index) {
+		Header h = materialized[index];
+		if ( h == null ) {
+			// racing threads may each create one; either will do
+			HTTPHeader f = fetched.get(index);
+			h = new BasicHeader(HeaderNames.intern(f.getName()), f.getValue());
+			materialized[index] = h;
+		}
+		return h;
+	}
+
+	@Override
+	public int size() {
+		return materialized.length;
+	}
+}
@@ -0,0 +1,88 @@
+package org.opendatakit.http.conn.transport;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+
+/**
+ * Canonical instances of common header names, and name lookups over header
+ * lists that do not materialize the headers they skip.
+ */
+public final class HeaderNames {
+
+	private static final String[] COMMON = {
+		"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+		"Age", "Allow", "Alt-Svc", "Authorization", "Cache-Control", "Connection",
+		"Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length",
+		"Content-Location", "Content-Range", "Content-Type", "Cookie", "Date", "ETag",
+		"Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match",
+		"Keep-Alive", "Last-Modified", "Location", "Pragma", "Range", "Server",
+		"Set-Cookie", "Strict-Transport-Security", "Transfer-Encoding", "User-Agent",
+		"Vary", "Via", "WWW-Authenticate", "X-Content-Type-Options", "X-Frame-Options",
+		"X-OpenRosa-Accept-Content-Length", "X-OpenRosa-Version", "X-XSS-Protection",
+		"X-Cloud-Trace-Context", "X-Google-Backends", "X-Google-GFE-Request-Trace",
+	};
+
+	/** exact spelling to canonical instance; read-only after class initialization */
+	private static final Map<String, String> CANONICAL = new HashMap<String, String>();
+
+	static {
+		for ( String name : COMMON ) {
+			CANONICAL.put(name, name);
+			CANONICAL.put(name.toLowerCase(Locale.ENGLISH), name);
+		}
+	}
+
+	private HeaderNames() {
+	}
+
+	/**
+	 * @return the canonical instance of a common header name spelled as
+	 * usual (or in lower case), otherwise the name itself
+	 */
+	public static String intern(String name) {
+		String canonical = CANONICAL.get(name);
+		return (canonical == null) ? name : canonical;
+	}
+
+	/**
+	 * @return true if the name is one of the common header names
+	 */
+	public static boolean isCommon(String name) {
+		return CANONICAL.containsKey(name);
+	}
+
+	/**
+	 * @return the name of the header at the given position, without
+	 * materializing it if the list is backed by URLFetch headers
+	 */
+	public static String nameAt(List<Header> headers, int index) {
+		if ( headers instanceof FetchedHeaderList ) {
+			return ((FetchedHeaderList) headers).getName(index);
+		}
+		return headers.get(index).getName();
+	}
+
+	/**
+	 * @return the position of the first header with the given name
+	 * (ignoring case) at or after {@code from}, or -1
+	 */
+	public static int indexOf(List<Header> headers, String name, int from) {
+		int size = headers.size();
+		for ( int i = from ; i < size ; ++i ) {
+			String n = nameAt(headers, i);
+			if ( n == name || n.equalsIgnoreCase(name) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static Header getFirst(List<Header> headers, String name) {
+		int i = indexOf(headers, name, 0);
+		return (i == -1) ? null : headers.get(i);
+	}
+}
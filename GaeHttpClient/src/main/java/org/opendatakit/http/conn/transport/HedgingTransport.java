@@ -0,0 +1,459 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.http.conn.LatencyHistogram;
+
+/**
+ * Transport that hedges idempotent requests to cut tail latency.
+ *
+ * If the first fetch has not answered within the configured percentile of
+ * the latencies observed so far (clamped to [minHedgeDelay, maxHedgeDelay]),
+ * a second, identical fetch is issued and whichever answers first wins; the
+ * other is cancelled. A request's deadline is treated as the budget for the
+ * whole exchange: the hedge is only issued if enough of it remains, and is
+ * given only what remains.
+ *
+ * To avoid amplifying load on a struggling upstream, at most maxHedgeRatio
+ * of all requests are hedged, and nothing is hedged until minSamples
+ * latencies have been observed.
+ *
+ * The two fetches are polled rather than waited on by helper threads, as
+ * AppEngine restricts thread creation.
+ */
+public class HedgingTransport implements HttpTransport {
+
+	private static final Log logger = LogFactory.getLog(HedgingTransport.class);
+
+	public static final double DEFAULT_PERCENTILE = 95.0;
+	public static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS = 10L;
+	public static final long DEFAULT_MAX_HEDGE_DELAY_MILLIS = 5000L;
+	public static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+	public static final int DEFAULT_MIN_SAMPLES = 20;
+
+	/** how often to check on two outstanding fetches */
+	private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private final HttpTransport delegate;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private volatile double percentile = DEFAULT_PERCENTILE;
+	private volatile long minHedgeDelayMillis = DEFAULT_MIN_HEDGE_DELAY_MILLIS;
+	private volatile long maxHedgeDelayMillis = DEFAULT_MAX_HEDGE_DELAY_MILLIS;
+	private volatile double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+	private volatile int minSamples = DEFAULT_MIN_SAMPLES;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong hedgesSent = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	public HedgingTransport(HttpTransport delegate) {
+		if ( delegate == null ) {
+			throw new IllegalArgumentException("HttpTransport may not be null.");
+		}
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @param percentile the percentile of observed latency (0 to 100) after
+	 * which a hedge is sent
+	 */
+	public void setPercentile(double percentile) {
+		if ( percentile <= 0.0 || percentile > 100.0 ) {
+			throw new IllegalArgumentException("percentile must be in (0, 100]");
+		}
+		this.percentile = percentile;
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Bound the hedge delay derived from the observed latencies.
+	 */
+	public void setHedgeDelayLimits(long minMillis, long maxMillis) {
+		if ( minMillis < 0 || maxMillis < minMillis ) {
+			throw new IllegalArgumentException("invalid hedge delay limits");
+		}
+		this.minHedgeDelayMillis = minMillis;
+		this.maxHedgeDelayMillis = maxMillis;
+	}
+
+	public long getMinHedgeDelayMillis() {
+		return minHedgeDelayMillis;
+	}
+
+	public long getMaxHedgeDelayMillis() {
+		return maxHedgeDelayMillis;
+	}
+
+	/**
+	 * @param maxHedgeRatio the largest fraction of requests that may be hedged; 0 disables hedging
+	 */
+	public void setMaxHedgeRatio(double maxHedgeRatio) {
+		if ( maxHedgeRatio < 0.0 || maxHedgeRatio > 1.0 ) {
+			throw new IllegalArgumentException("maxHedgeRatio must be in [0, 1]");
+		}
+		this.maxHedgeRatio = maxHedgeRatio;
+	}
+
+	public double getMaxHedgeRatio() {
+		return maxHedgeRatio;
+	}
+
+	/**
+	 * @param minSamples the number of latencies to observe before hedging
+	 */
+	public void setMinSamples(int minSamples) {
+		if ( minSamples < 0 ) {
+			throw new IllegalArgumentException("minSamples may not be negative");
+		}
+		this.minSamples = minSamples;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+
+	/**
+	 * @return the latencies of completed fetches; hedged requests record the
+	 * time until the first answer.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getHedgesSent() {
+		return hedgesSent.get();
+	}
+
+	/** @return the number of hedges that answered before the original fetch */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	/**
+	 * @return the current hedge delay in milliseconds, or -1 if hedging is
+	 * not yet possible because too few latencies have been observed.
+	 */
+	public long getHedgeDelayMillis() {
+		if ( latency.getCount() < minSamples || latency.getCount() == 0 ) {
+			return -1L;
+		}
+		long millis = TimeUnit.MICROSECONDS.toMillis(latency.getPercentileMicros(percentile));
+		return Math.min(Math.max(millis, minHedgeDelayMillis), maxHedgeDelayMillis);
+	}
+
+	@Override
+	public TransportResponse fetch(TransportRequest request) throws IOException {
+		if ( !isIdempotent(request.getMethod()) ) {
+			return delegate.fetch(request);
+		}
+		Hedge hedge = new Hedge(request);
+		try {
+			return hedge.await(Long.MAX_VALUE);
+		} catch ( TimeoutException e ) {
+			// unreachable with an unbounded wait
+			throw new SocketTimeoutException("Deadline exceeded");
+		} catch ( InterruptedException e ) {
+			hedge.cancel();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + request);
+		} catch ( ExecutionException e ) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			}
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public Future<TransportResponse> fetchAsync(TransportRequest request) {
+		if ( !isIdempotent(request.getMethod()) ) {
+			return delegate.fetchAsync(request);
+		}
+		// the hedge (if any) is sent while the caller waits in get()
+		return new HedgedFuture(new Hedge(request));
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTime, TimeUnit unit) {
+		delegate.closeIdleConnections(idleTime, unit);
+	}
+
+	@Override
+	public void closeExpiredConnections() {
+		delegate.closeExpiredConnections();
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	static boolean isIdempotent(String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ||
+				"PUT".equals(method) || "DELETE".equals(method);
+	}
+
+	/**
+	 * Reserve a hedge if fewer than maxHedgeRatio of requests have been hedged.
+	 */
+	private boolean tryReserveHedge() {
+		for ( ;; ) {
+			long sent = hedgesSent.get();
+			if ( sent + 1 > maxHedgeRatio * requestCount.get() ) {
+				return false;
+			}
+			if ( hedgesSent.compareAndSet(sent, sent + 1) ) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * One logical request: the original fetch and, possibly, its hedge.
+	 * A failure of one fetch only becomes the outcome once the other has
+	 * failed too (or no hedge was sent).
+	 */
+	private final class Hedge {
+		private final TransportRequest request;
+		private final long startNanos;
+		/** 0 if the request has no deadline */
+		private final long deadlineNanos;
+		/** -1 if no hedge will be sent */
+		private final long hedgeAtNanos;
+		private final Future<TransportResponse> primary;
+		private volatile Future<TransportResponse> secondary = null;
+		private boolean hedgeSkipped = false;
+		private ExecutionException primaryFailure = null;
+		private ExecutionException secondaryFailure = null;
+		private volatile TransportResponse result = null;
+		private volatile ExecutionException failure = null;
+
+		Hedge(TransportRequest request) {
+			this.request = request;
+			requestCount.incrementAndGet();
+			long delay = getHedgeDelayMillis();
+			this.startNanos = System.nanoTime();
+			this.deadlineNanos = (request.getDeadlineMillis() > 0) ?
+					startNanos + TimeUnit.MILLISECONDS.toNanos(request.getDeadlineMillis()) : 0L;
+			this.hedgeAtNanos = (delay < 0) ? -1L : startNanos + TimeUnit.MILLISECONDS.toNanos(delay);
+			this.primary = delegate.fetchAsync(request);
+		}
+
+		boolean isDone() {
+			if ( result != null || failure != null ) {
+				return true;
+			}
+			Future<TransportResponse> s = secondary;
+			return primary.isDone() && (s == null || s.isDone());
+		}
+
+		void cancel() {
+			primary.cancel(true);
+			Future<TransportResponse> s = secondary;
+			if ( s != null ) {
+				s.cancel(true);
+			}
+		}
+
+		/**
+		 * Wait for the first successful answer, sending the hedge when due.
+		 *
+		 * @param timeoutNanos Long.MAX_VALUE to wait indefinitely
+		 */
+		synchronized TransportResponse await(long timeoutNanos)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			final boolean bounded = (timeoutNanos != Long.MAX_VALUE);
+			final long waitUntil = System.nanoTime() + (bounded ? timeoutNanos : 0L);
+			for ( ;; ) {
+				check();
+				if ( result != null ) {
+					return result;
+				}
+				if ( failure != null ) {
+					throw failure;
+				}
+				long now = System.nanoTime();
+				long remaining = bounded ? waitUntil - now : Long.MAX_VALUE;
+				if ( remaining <= 0 ) {
+					throw new TimeoutException();
+				}
+				if ( secondary == null && !hedgeSkipped && hedgeAtNanos != -1L ) {
+					if ( now - hedgeAtNanos >= 0 ) {
+						sendHedge(now);
+						continue;
+					}
+					waitFor(primary, Math.min(remaining, hedgeAtNanos - now));
+				} else if ( secondary == null || primaryFailure != null ) {
+					// only one fetch left to wait for
+					waitFor((secondary == null) ? primary : secondary, remaining);
+				} else if ( secondaryFailure != null ) {
+					waitFor(primary, remaining);
+				} else {
+					// both in flight: take turns
+					waitFor(primary, Math.min(remaining, POLL_NANOS));
+					if ( !primary.isDone() ) {
+						waitFor(secondary, 0L);
+					}
+				}
+			}
+		}
+
+		private void waitFor(Future<TransportResponse> fetch, long nanos) throws InterruptedException {
+			try {
+				fetch.get(nanos, TimeUnit.NANOSECONDS);
+			} catch ( TimeoutException e ) {
+				// examined by check()
+			} catch ( ExecutionException e ) {
+				// examined by check()
+			} catch ( CancellationException e ) {
+				// examined by check()
+			}
+		}
+
+		/**
+		 * Examine any finished fetches and decide the outcome if possible.
+		 */
+		private void check() throws InterruptedException {
+			if ( result != null || failure != null ) {
+				return;
+			}
+			if ( primaryFailure == null && primary.isDone() ) {
+				try {
+					win(primary.get(), false);
+					return;
+				} catch ( ExecutionException e ) {
+					primaryFailure = e;
+				} catch ( CancellationException e ) {
+					primaryFailure = new ExecutionException(e);
+				}
+			}
+			Future<TransportResponse> s = secondary;
+			if ( s != null && secondaryFailure == null && s.isDone() ) {
+				try {
+					win(s.get(), true);
+					return;
+				} catch ( ExecutionException e ) {
+					secondaryFailure = e;
+				} catch ( CancellationException e ) {
+					secondaryFailure = new ExecutionException(e);
+				}
+			}
+			if ( primaryFailure != null && (s == null || secondaryFailure != null) ) {
+				// the original failed before a hedge was sent, or both failed
+				failure = primaryFailure;
+			}
+		}
+
+		private void win(TransportResponse resp, boolean byHedge) {
+			latency.record(System.nanoTime() - startNanos);
+			Future<TransportResponse> other = byHedge ? primary : secondary;
+			if ( other != null ) {
+				other.cancel(true);
+			}
+			if ( byHedge ) {
+				hedgesWon.incrementAndGet();
+			}
+			result = resp;
+		}
+
+		private void sendHedge(long now) {
+			long remainingMillis = 0L;
+			if ( deadlineNanos != 0L ) {
+				remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - now);
+				if ( remainingMillis <= 0 || remainingMillis < minHedgeDelayMillis ) {
+					// too little of the budget is left for a hedge to help
+					hedgeSkipped = true;
+					return;
+				}
+			}
+			if ( !tryReserveHedge() ) {
+				hedgeSkipped = true;
+				return;
+			}
+			TransportRequest copy = new TransportRequest(request, request.getURL(), request.getMethod());
+			if ( deadlineNanos != 0L ) {
+				// the hedge gets what is left of the original budget
+				copy.setDeadlineMillis((int) Math.min(remainingMillis, Integer.MAX_VALUE));
+			}
+			logger.debug("Hedging " + request + " after " +
+					TimeUnit.NANOSECONDS.toMillis(now - startNanos) + " ms");
+			secondary = delegate.fetchAsync(copy);
+		}
+	}
+
+	private static final class HedgedFuture implements Future<TransportResponse> {
+		private final Hedge hedge;
+		private volatile boolean cancelled = false;
+
+		HedgedFuture(Hedge hedge) {
+			this.hedge = hedge;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if ( hedge.isDone() ) {
+				return false;
+			}
+			cancelled = true;
+			hedge.cancel();
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return cancelled || hedge.isDone();
+		}
+
+		@Override
+		public TransportResponse get() throws InterruptedException, ExecutionException {
+			if ( cancelled ) {
+				throw new CancellationException();
+			}
+			try {
+				return hedge.await(Long.MAX_VALUE);
+			} catch ( TimeoutException e ) {
+				throw new ExecutionException(e);
+			}
+		}
+
+		@Override
+		public TransportResponse get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if ( cancelled ) {
+				throw new CancellationException();
+			}
+			return hedge.await(unit.toNanos(timeout));
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The mechanism that actually moves requests and responses for
+ * {@link org.opendatakit.http.conn.GaeHttpClientConnectionImpl}.
+ *
+ * On Google AppEngine this is {@link UrlFetchTransport}; elsewhere (Tomcat,
+ * load tests) {@link SocketTransport} talks HTTP/1.1 over pooled sockets.
+ * 
+ * Implementations must be thread-safe, must validate server certificates
+ * and must not truncate responses.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Issue the request and wait for its response.
+	 * 
+	 * @param request
+	 * @return the complete response
+	 * @throws IOException if the request could not be completed within its deadline
+	 */
+	TransportResponse fetch(TransportRequest request) throws IOException;
+
+	/**
+	 * Issue the request without waiting for its response.
+	 * 
+	 * @param request
+	 * @return the pending response; failures are reported through the future
+	 */
+	Future<TransportResponse> fetchAsync(TransportRequest request);
+
+	/**
+	 * Close pooled connections that have been idle longer than the given time.
+	 */
+	void closeIdleConnections(long idleTime, TimeUnit unit);
+
+	/**
+	 * Close pooled connections whose keep-alive period has expired.
+	 */
+	void closeExpiredConnections();
+
+	/**
+	 * Release all resources held by this transport.
+	 */
+	void shutdown();
+}
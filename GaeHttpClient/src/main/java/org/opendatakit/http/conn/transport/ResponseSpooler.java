@@ -0,0 +1,170 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads response bodies for a transport that receives them as a stream
+ * (e.g., {@link SocketTransport}), keeping at most a threshold's worth of
+ * each body on the heap.
+ *
+ * A body up to the threshold is returned as a byte array. A larger one is
+ * written to a temporary file as it arrives, and returned as
+ * {@link SpilledContent} mapped from that file; only the threshold-sized
+ * buffer it started in was ever on the heap. The heap taken by response
+ * bodies is therefore bounded by the threshold times the number of
+ * concurrent requests, however large the payloads are.
+ *
+ * The disk space of a spilled body is freed when its content is released,
+ * which the response entity does once its content stream is closed; see
+ * {@link SpilledContent}. {@link #getHeldBytes()} reports how much is still
+ * held.
+ *
+ * URLFetch hands over every body as a byte array, so this does not apply
+ * to {@link UrlFetchTransport}.
+ */
+public class ResponseSpooler {
+
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+	private final int threshold;
+
+	private final File directory;
+
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+	private final AtomicLong heldBytes = new AtomicLong();
+
+	public ResponseSpooler() {
+		this(DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param threshold the largest body kept on the heap
+	 * @param directory where to create the temporary files; null for the
+	 * default temporary-file directory
+	 */
+	public ResponseSpooler(int threshold, File directory) {
+		if ( threshold < 0 ) {
+			throw new IllegalArgumentException("threshold may not be negative");
+		}
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/** @return the number of bodies written to disk */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/** @return the bytes of the bodies written to disk */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	/** @return the bytes of spilled bodies that are still mapped */
+	public long getHeldBytes() {
+		return heldBytes.get();
+	}
+
+	/**
+	 * Read a body to the end.
+	 *
+	 * @param in the body
+	 * @param contentLength the declared length, or -1 if unknown
+	 * @return the body as a byte[] or a {@link SpilledContent}
+	 * @throws IOException
+	 */
+	Object read(InputStream in, long contentLength) throws IOException {
+		if ( contentLength > threshold ) {
+			return spill(in, null, -1);
+		}
+		byte[] buf = new byte[(contentLength >= 0) ? (int) contentLength : Math.min(threshold, 8192)];
+		int count = 0;
+		for ( ;; ) {
+			if ( count == buf.length ) {
+				// check for the end before growing the buffer
+				int b = in.read();
+				if ( b == -1 ) {
+					return buf;
+				}
+				if ( count >= threshold ) {
+					// more than the threshold: the rest goes to disk
+					return spill(in, buf, b);
+				}
+				buf = Arrays.copyOf(buf, (int) Math.min(threshold, Math.max(2L * count, 1024L)));
+				buf[count++] = (byte) b;
+				continue;
+			}
+			int n = in.read(buf, count, buf.length - count);
+			if ( n == -1 ) {
+				return Arrays.copyOf(buf, count);
+			}
+			count += n;
+		}
+	}
+
+	/**
+	 * @param prefix body bytes already read, or null
+	 * @param next the byte read after the prefix, or -1
+	 */
+	private SpilledContent spill(InputStream in, byte[] prefix, int next) throws IOException {
+		File file = File.createTempFile("response", ".body", directory);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			FileChannel channel = raf.getChannel();
+			byte[] buffer = new byte[SPILL_BUFFER_SIZE];
+			if ( prefix != null ) {
+				write(channel, ByteBuffer.wrap(prefix));
+			}
+			if ( next != -1 ) {
+				buffer[0] = (byte) next;
+				write(channel, ByteBuffer.wrap(buffer, 0, 1));
+			}
+			int n;
+			while ( (n = in.read(buffer)) != -1 ) {
+				write(channel, ByteBuffer.wrap(buffer, 0, n));
+			}
+			long length = channel.size();
+			int count = (int) ((length + SpilledContent.REGION_SIZE - 1) / SpilledContent.REGION_SIZE);
+			MappedByteBuffer[] regions = new MappedByteBuffer[count];
+			for ( int i = 0 ; i < count ; ++i ) {
+				long offset = (long) i * SpilledContent.REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+						Math.min(SpilledContent.REGION_SIZE, length - offset));
+			}
+			spilledCount.incrementAndGet();
+			spilledBytes.addAndGet(length);
+			heldBytes.addAndGet(length);
+			return new SpilledContent(regions, length, heldBytes);
+		} finally {
+			if ( raf != null ) {
+				raf.close();
+			}
+			// the mapping outlives the file name
+			if ( !file.delete() ) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer src) throws IOException {
+		while ( src.hasRemaining() ) {
+			channel.write(src);
+		}
+	}
+}
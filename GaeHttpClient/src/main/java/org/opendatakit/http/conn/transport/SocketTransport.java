@@ -0,0 +1,520 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultBHttpClientConnection;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Transport that speaks HTTP/1.1 over plain (or TLS) sockets, for use off
+ * Google AppEngine, e.g., on Tomcat or in load tests.
+ *
+ * Connections are kept alive in a per-host pool. Idle connections are
+ * closed by {@link #closeIdleConnections(long, TimeUnit)} and connections
+ * past their keep-alive period (from the server's Keep-Alive header, or
+ * the default keep-alive time) by {@link #closeExpiredConnections()}.
+ * A request that fails on a reused connection before any response is read
+ * is retried once on a new connection if its method is idempotent.
+ *
+ * Asynchronous fetches run on a cached pool of daemon threads.
+ */
+public class SocketTransport implements HttpTransport {
+
+	private static final Log logger = LogFactory.getLog(SocketTransport.class);
+
+	public static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	/** pooled connections idle for longer than this are checked before reuse */
+	private static final long VALIDATE_AFTER_INACTIVITY_MILLIS = 2000L;
+
+	private static final int MAX_REDIRECTS = 5;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final class PooledConnection {
+		final HttpHost host;
+		final DefaultBHttpClientConnection conn;
+		boolean reused = false;
+		volatile long lastUsedMillis;
+		volatile long expiresAtMillis;
+
+		PooledConnection(HttpHost host, DefaultBHttpClientConnection conn) {
+			this.host = host;
+			this.conn = conn;
+		}
+	}
+
+	private final class HostPool {
+		final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+		final AtomicInteger idleCount = new AtomicInteger();
+
+		PooledConnection poll() {
+			// most recently used first: it is the least likely to have been dropped
+			PooledConnection pc = idle.pollLast();
+			if ( pc != null ) {
+				idleCount.decrementAndGet();
+			}
+			return pc;
+		}
+
+		boolean offer(PooledConnection pc) {
+			if ( idleCount.incrementAndGet() > maxIdlePerHost ) {
+				idleCount.decrementAndGet();
+				return false;
+			}
+			idle.offerLast(pc);
+			return true;
+		}
+
+		boolean remove(PooledConnection pc) {
+			if ( idle.removeFirstOccurrence(pc) ) {
+				idleCount.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final ConcurrentMap<HttpHost, HostPool> pools = new ConcurrentHashMap<HttpHost, HostPool>();
+
+	private final int maxIdlePerHost;
+
+	private final long defaultKeepAliveMillis;
+
+	private final SSLSocketFactory sslSocketFactory;
+
+	private final HttpRequestExecutor requestExecutor = new HttpRequestExecutor();
+
+	private final HttpProcessor processor = new ImmutableHttpProcessor(
+			new RequestContent(), new RequestTargetHost(), new RequestConnControl());
+
+	private final ConnectionReuseStrategy reuseStrategy = DefaultConnectionReuseStrategy.INSTANCE;
+
+	private final ConnectionKeepAliveStrategy keepAliveStrategy = DefaultConnectionKeepAliveStrategy.INSTANCE;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SocketTransport-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private volatile boolean isShutDown = false;
+
+	/** Optional spilling of large bodies to disk; null to read every body into a byte[] */
+	private volatile ResponseSpooler responseSpooler = null;
+
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong connectionsReused = new AtomicLong();
+	private final AtomicLong connectionsEvicted = new AtomicLong();
+
+	public SocketTransport() {
+		this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+	}
+
+	/**
+	 * @param maxIdlePerHost maximum number of idle connections kept per host
+	 * @param defaultKeepAliveMillis how long to keep a connection when the server does not say
+	 */
+	public SocketTransport(int maxIdlePerHost, long defaultKeepAliveMillis) {
+		if ( maxIdlePerHost < 0 || defaultKeepAliveMillis < 0 ) {
+			throw new IllegalArgumentException("pool limits may not be negative");
+		}
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+		this.sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+	}
+
+	/**
+	 * Spill response bodies above the spooler's threshold to disk instead
+	 * of reading them into a byte[], or turn this off by passing null.
+	 *
+	 * @param responseSpooler
+	 */
+	public void setResponseSpooler(ResponseSpooler responseSpooler) {
+		this.responseSpooler = responseSpooler;
+	}
+
+	public ResponseSpooler getResponseSpooler() {
+		return responseSpooler;
+	}
+
+	/** @return the number of sockets opened so far */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/** @return the number of requests sent over a pooled connection */
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+
+	/** @return the number of pooled connections closed as idle, expired or stale */
+	public long getConnectionsEvicted() {
+		return connectionsEvicted.get();
+	}
+
+	public int getIdleConnectionCount() {
+		int count = 0;
+		for ( HostPool pool : pools.values() ) {
+			count += pool.idleCount.get();
+		}
+		return count;
+	}
+
+	@Override
+	public TransportResponse fetch(TransportRequest request) throws IOException {
+		if ( isShutDown ) {
+			throw new IllegalStateException("Transport is shut down.");
+		}
+		long deadlineAt = (request.getDeadlineMillis() > 0) ?
+				System.currentTimeMillis() + request.getDeadlineMillis() : 0L;
+		TransportRequest current = request;
+		for ( int redirects = 0 ; ; ++redirects ) {
+			TransportResponse resp = execute(current, deadlineAt);
+			int code = resp.getResponseCode();
+			Header location = resp.getFirstHeader("Location");
+			if ( !request.isFollowRedirects() || !isRedirect(code) ||
+					location == null || redirects >= MAX_REDIRECTS ) {
+				return resp;
+			}
+			if ( resp.getSpilledContent() != null ) {
+				// nobody will read the body of the redirect
+				resp.getSpilledContent().release();
+			}
+			URL next = new URL(current.getURL(), location.getValue());
+			String method = current.getMethod();
+			if ( code == HttpStatus.SC_SEE_OTHER ||
+					((code == HttpStatus.SC_MOVED_PERMANENTLY || code == HttpStatus.SC_MOVED_TEMPORARILY) &&
+							"POST".equals(method)) ) {
+				current = new TransportRequest(current, next, "GET");
+				current.setPayload(null);
+			} else {
+				current = new TransportRequest(current, next, method);
+			}
+			if ( !isSameOrigin(request.getURL(), next) ) {
+				// credentials for the original site must not reach another one
+				current.removeHeaders("Authorization");
+				current.removeHeaders("Cookie");
+			}
+		}
+	}
+
+	@Override
+	public Future<TransportResponse> fetchAsync(final TransportRequest request) {
+		return executor.submit(new Callable<TransportResponse>() {
+			@Override
+			public TransportResponse call() throws Exception {
+				return fetch(request);
+			}
+		});
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTime, TimeUnit unit) {
+		long cutoff = System.currentTimeMillis() - unit.toMillis(idleTime);
+		for ( HostPool pool : pools.values() ) {
+			Iterator<PooledConnection> it = pool.idle.iterator();
+			while ( it.hasNext() ) {
+				PooledConnection pc = it.next();
+				if ( pc.lastUsedMillis <= cutoff && pool.remove(pc) ) {
+					evict(pc);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void closeExpiredConnections() {
+		long now = System.currentTimeMillis();
+		for ( HostPool pool : pools.values() ) {
+			Iterator<PooledConnection> it = pool.idle.iterator();
+			while ( it.hasNext() ) {
+				PooledConnection pc = it.next();
+				if ( pc.expiresAtMillis <= now && pool.remove(pc) ) {
+					evict(pc);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		isShutDown = true;
+		executor.shutdownNow();
+		for ( HostPool pool : pools.values() ) {
+			PooledConnection pc;
+			while ( (pc = pool.poll()) != null ) {
+				close(pc);
+			}
+		}
+	}
+
+	private static boolean isRedirect(int code) {
+		return code == HttpStatus.SC_MOVED_PERMANENTLY || code == HttpStatus.SC_MOVED_TEMPORARILY ||
+				code == HttpStatus.SC_SEE_OTHER || code == HttpStatus.SC_TEMPORARY_REDIRECT ||
+				code == 308;
+	}
+
+	private static boolean isSameOrigin(URL a, URL b) {
+		int portA = (a.getPort() == -1) ? a.getDefaultPort() : a.getPort();
+		int portB = (b.getPort() == -1) ? b.getDefaultPort() : b.getPort();
+		return a.getProtocol().equalsIgnoreCase(b.getProtocol()) &&
+				a.getHost().equalsIgnoreCase(b.getHost()) && portA == portB;
+	}
+
+	private static boolean isIdempotent(String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ||
+				"PUT".equals(method) || "DELETE".equals(method);
+	}
+
+	/**
+	 * These are set by the request interceptors (or describe the socket
+	 * connection) and must not be copied from the caller's headers.
+	 */
+	private static boolean isConnectionHeader(String name) {
+		String n = name.toLowerCase(Locale.ENGLISH);
+		return n.equals("host") || n.equals("content-length") || n.equals("transfer-encoding") ||
+				n.equals("connection") || n.equals("keep-alive");
+	}
+
+	private static int remainingMillis(long deadlineAt) throws SocketTimeoutException {
+		if ( deadlineAt == 0L ) {
+			return 0;
+		}
+		long remaining = deadlineAt - System.currentTimeMillis();
+		if ( remaining <= 0 ) {
+			throw new SocketTimeoutException("Deadline exceeded");
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	private TransportResponse execute(TransportRequest request, long deadlineAt) throws IOException {
+		URL url = request.getURL();
+		String scheme = url.getProtocol().toLowerCase(Locale.ENGLISH);
+		int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		HttpHost host = new HttpHost(url.getHost(), port, scheme);
+
+		for ( int attempt = 0 ; ; ++attempt ) {
+			PooledConnection pc = lease(host, deadlineAt);
+			try {
+				return exchange(pc, request, deadlineAt);
+			} catch ( SocketTimeoutException e ) {
+				close(pc);
+				throw e;
+			} catch ( IOException e ) {
+				close(pc);
+				if ( pc.reused && attempt == 0 && isIdempotent(request.getMethod()) ) {
+					logger.debug("Retrying " + request + " on a new connection: " + e);
+					continue;
+				}
+				throw e;
+			} catch ( HttpException e ) {
+				close(pc);
+				throw new ClientProtocolException(e);
+			} catch ( RuntimeException e ) {
+				close(pc);
+				throw e;
+			}
+		}
+	}
+
+	private TransportResponse exchange(PooledConnection pc, TransportRequest request, long deadlineAt)
+			throws IOException, HttpException {
+		URL url = request.getURL();
+		String target = url.getFile();
+		if ( target.length() == 0 ) {
+			target = "/";
+		}
+		HttpRequest httpRequest;
+		if ( request.getPayload() != null ) {
+			BasicHttpEntityEnclosingRequest enclosing = new BasicHttpEntityEnclosingRequest(request.getMethod(), target);
+			enclosing.setEntity(new ByteArrayEntity(request.getPayload()));
+			httpRequest = enclosing;
+		} else {
+			httpRequest = new BasicHttpRequest(request.getMethod(), target);
+		}
+		for ( Header h : request.getHeaders() ) {
+			if ( !isConnectionHeader(h.getName()) ) {
+				httpRequest.addHeader(h);
+			}
+		}
+
+		HttpCoreContext context = HttpCoreContext.create();
+		context.setTargetHost(pc.host);
+		pc.conn.setSocketTimeout(remainingMillis(deadlineAt));
+		requestExecutor.preProcess(httpRequest, processor, context);
+		HttpResponse response = requestExecutor.execute(httpRequest, pc.conn, context);
+
+		Object content = null;
+		HttpEntity entity = response.getEntity();
+		if ( entity != null ) {
+			ResponseSpooler spooler = responseSpooler;
+			if ( spooler == null ) {
+				content = EntityUtils.toByteArray(entity);
+			} else {
+				InputStream in = entity.getContent();
+				try {
+					content = spooler.read(in, entity.getContentLength());
+				} finally {
+					in.close();
+				}
+			}
+		}
+
+		if ( reuseStrategy.keepAlive(response, context) ) {
+			release(pc, keepAliveStrategy.getKeepAliveDuration(response, context));
+		} else {
+			close(pc);
+		}
+
+		Header[] all = response.getAllHeaders();
+		List<Header> headers = new ArrayList<Header>(all.length);
+		for ( Header h : all ) {
+			// the content has been de-chunked
+			if ( !h.getName().equalsIgnoreCase("Transfer-Encoding") ) {
+				headers.add(h);
+			}
+		}
+		int code = response.getStatusLine().getStatusCode();
+		if ( content instanceof SpilledContent ) {
+			return new TransportResponse(code, (SpilledContent) content, url, headers);
+		}
+		return new TransportResponse(code, (byte[]) content, url, headers);
+	}
+
+	private HostPool getPool(HttpHost host) {
+		HostPool pool = pools.get(host);
+		if ( pool == null ) {
+			pool = new HostPool();
+			HostPool existing = pools.putIfAbsent(host, pool);
+			if ( existing != null ) {
+				pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	private PooledConnection lease(HttpHost host, long deadlineAt) throws IOException {
+		HostPool pool = pools.get(host);
+		if ( pool != null ) {
+			long now = System.currentTimeMillis();
+			PooledConnection pc;
+			while ( (pc = pool.poll()) != null ) {
+				if ( pc.expiresAtMillis <= now || !pc.conn.isOpen() ||
+						(now - pc.lastUsedMillis > VALIDATE_AFTER_INACTIVITY_MILLIS && pc.conn.isStale()) ) {
+					evict(pc);
+					continue;
+				}
+				pc.reused = true;
+				connectionsReused.incrementAndGet();
+				return pc;
+			}
+		}
+		return open(host, deadlineAt);
+	}
+
+	private PooledConnection open(HttpHost host, long deadlineAt) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host.getHostName(), host.getPort()), remainingMillis(deadlineAt));
+			if ( "https".equals(host.getSchemeName()) ) {
+				SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(socket, host.getHostName(), host.getPort(), true);
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.setSoTimeout(remainingMillis(deadlineAt));
+				ssl.startHandshake();
+				socket = ssl;
+			}
+		} catch ( IOException e ) {
+			socket.close();
+			throw e;
+		}
+		DefaultBHttpClientConnection conn = new DefaultBHttpClientConnection(BUFFER_SIZE);
+		conn.bind(socket);
+		connectionsOpened.incrementAndGet();
+		return new PooledConnection(host, conn);
+	}
+
+	private void release(PooledConnection pc, long keepAliveMillis) {
+		long now = System.currentTimeMillis();
+		pc.lastUsedMillis = now;
+		pc.expiresAtMillis = now + ((keepAliveMillis > 0) ? keepAliveMillis : defaultKeepAliveMillis);
+		if ( isShutDown || !getPool(pc.host).offer(pc) ) {
+			close(pc);
+		}
+	}
+
+	private void evict(PooledConnection pc) {
+		connectionsEvicted.incrementAndGet();
+		close(pc);
+	}
+
+	private static void close(PooledConnection pc) {
+		try {
+			pc.conn.close();
+		} catch ( IOException e ) {
+			try {
+				pc.conn.shutdown();
+			} catch ( IOException ignored ) {
+				// nothing more we can do
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A response body that was written to a temporary file and mapped back
+ * read-only, so that it takes no heap.
+ *
+ * The file is deleted as soon as it is mapped; the operating system keeps
+ * its pages until the mapping is unmapped. The content can be read any
+ * number of times, concurrently, and shared between responses.
+ *
+ * Each holder of the content gives it back with {@link #release()}; a
+ * holder that shares it takes another hold with {@link #retain()}. Once
+ * every hold has been released and every stream opened on the content has
+ * been closed, the mapping is unmapped and the disk space is freed at once.
+ * Content that is never released is unmapped when it is garbage collected,
+ * as is all content on a JVM where explicit unmapping is not available.
+ */
+public final class SpilledContent {
+
+	private static final Log logger = LogFactory.getLog(SpilledContent.class);
+
+	/** size of each mapped region; a single mapping is limited to 2GB */
+	static final int REGION_SIZE = 1 << 30;
+
+	private final MappedByteBuffer[] regions;
+
+	private final long length;
+
+	/** the spooler's count of spilled bytes not yet unmapped */
+	private final AtomicLong heldBytes;
+
+	/** guarded by this */
+	private int holds = 1;
+	/** guarded by this */
+	private int openStreams = 0;
+	/** guarded by this */
+	private boolean unmapped = false;
+
+	SpilledContent(MappedByteBuffer[] regions, long length, AtomicLong heldBytes) {
+		this.regions = regions;
+		this.length = length;
+		this.heldBytes = heldBytes;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Take another hold on the content, e.g., to hand it to a second response.
+	 *
+	 * @return false if every hold had already been released, in which case
+	 * the content may not be used
+	 */
+	public synchronized boolean retain() {
+		if ( holds == 0 ) {
+			return false;
+		}
+		++holds;
+		return true;
+	}
+
+	/**
+	 * Give back a hold on the content. Streams that are still open can be
+	 * read to the end; the content is unmapped when the last one is closed.
+	 */
+	public void release() {
+		synchronized (this) {
+			if ( holds == 0 ) {
+				return;
+			}
+			--holds;
+			if ( !canUnmap() ) {
+				return;
+			}
+		}
+		unmap();
+	}
+
+	/**
+	 * @return a new stream over the whole content
+	 * @throws IllegalStateException if the content has been released
+	 */
+	public InputStream openStream() {
+		synchronized (this) {
+			if ( holds == 0 ) {
+				throw new IllegalStateException("Spilled content has been released");
+			}
+			++openStreams;
+		}
+		return new MappedInputStream();
+	}
+
+	private void streamClosed() {
+		synchronized (this) {
+			--openStreams;
+			if ( !canUnmap() ) {
+				return;
+			}
+		}
+		unmap();
+	}
+
+	/**
+	 * Must be called holding the monitor; marks the content unmapped if it
+	 * is no longer used.
+	 */
+	private boolean canUnmap() {
+		if ( holds != 0 || openStreams != 0 || unmapped ) {
+			return false;
+		}
+		unmapped = true;
+		return true;
+	}
+
+	private void unmap() {
+		heldBytes.addAndGet(-length);
+		for ( MappedByteBuffer region : regions ) {
+			Unmapper.unmap(region);
+		}
+	}
+
+	/**
+	 * Frees a mapping ahead of garbage collection: through
+	 * Unsafe.invokeCleaner on Java 9 and later, and the buffer's cleaner
+	 * before that. Neither is a public API, so failures just leave the
+	 * mapping to the garbage collector.
+	 */
+	private static final class Unmapper {
+		private static final Object unsafe;
+		private static final Method invokeCleaner;
+
+		static {
+			Object u = null;
+			Method m = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field f = unsafeClass.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				u = f.get(null);
+			} catch ( Exception e ) {
+				// before Java 9
+				m = null;
+			}
+			unsafe = u;
+			invokeCleaner = m;
+		}
+
+		static void unmap(MappedByteBuffer buffer) {
+			try {
+				if ( invokeCleaner != null ) {
+					invokeCleaner.invoke(unsafe, buffer);
+				} else {
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if ( cleaner != null ) {
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+					}
+				}
+			} catch ( Exception e ) {
+				logger.debug("Cannot unmap spilled content; leaving it to the garbage collector", e);
+			}
+		}
+	}
+
+	private final class MappedInputStream extends InputStream {
+		private int region = 0;
+		private ByteBuffer current = (regions.length == 0) ? null : regions[0].duplicate();
+		private boolean closed = false;
+
+		/**
+		 * @return the region to read from, or null at the end of the content
+		 */
+		private ByteBuffer current() throws IOException {
+			if ( closed ) {
+				// the mapping may be gone
+				throw new IOException("Stream closed");
+			}
+			while ( current != null && !current.hasRemaining() ) {
+				current = (++region < regions.length) ? regions[region].duplicate() : null;
+			}
+			return current;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			ByteBuffer b = current();
+			return (b == null) ? -1 : (b.get() & 0xff);
+		}
+
+		@Override
+		public synchronized int read(byte[] dst, int off, int len) throws IOException {
+			if ( (off < 0) || (len < 0) || (off > dst.length - len) ) {
+				throw new IndexOutOfBoundsException();
+			}
+			if ( len == 0 ) {
+				return 0;
+			}
+			ByteBuffer b = current();
+			if ( b == null ) {
+				return -1;
+			}
+			int n = Math.min(len, b.remaining());
+			b.get(dst, off, n);
+			return n;
+		}
+
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			long skipped = 0;
+			ByteBuffer b;
+			while ( skipped < n && (b = current()) != null ) {
+				int step = (int) Math.min(n - skipped, b.remaining());
+				b.position(b.position() + step);
+				skipped += step;
+			}
+			return skipped;
+		}
+
+		@Override
+		public synchronized int available() throws IOException {
+			ByteBuffer b = current();
+			return (b == null) ? 0 : b.remaining();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if ( closed ) {
+				return;
+			}
+			closed = true;
+			current = null;
+			streamClosed();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.opendatakit.http.conn.transport;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.http.Header;
+
+/**
+ * A request as handed to an {@link HttpTransport}: the absolute URL, the
+ * method, the headers and the complete payload.
+ */
+public class TransportRequest {
+
+	private final URL url;
+
+	private final String method;
+
+	private final ArrayList<Header> headers = new ArrayList<Header>();
+
+	private byte[] payload = null;
+
+	/** 0 means no deadline */
+	private int deadlineMillis = 0;
+
+	private boolean followRedirects = true;
+
+	public TransportRequest(URL url, String method) {
+		if ( url == null || method == null ) {
+			throw new IllegalArgumentException("URL and method may not be null");
+		}
+		this.url = url;
+		this.method = method;
+	}
+
+	/**
+	 * Copy the request, e.g., to re-issue it with different headers.
+	 * The payload array is shared.
+	 */
+	public TransportRequest(TransportRequest other, URL url, String method) {
+		this(url, method);
+		this.headers.addAll(other.headers);
+		this.payload = other.payload;
+		this.deadlineMillis = other.deadlineMillis;
+		this.followRedirects = other.followRedirects;
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public List<Header> getHeaders() {
+		return headers;
+	}
+
+	public void addHeader(Header header) {
+		headers.add(header);
+	}
+
+	public void addHeaders(Header[] headers) {
+		this.headers.ensureCapacity(this.headers.size() + headers.length);
+		for ( Header h : headers ) {
+			this.headers.add(h);
+		}
+	}
+
+	/**
+	 * Replace all headers with the same name as this one.
+	 */
+	public void setHeader(Header header) {
+		removeHeaders(header.getName());
+		headers.add(header);
+	}
+
+	public void removeHeaders(String name) {
+		Iterator<Header> it = headers.iterator();
+		while ( it.hasNext() ) {
+			if ( it.next().getName().equalsIgnoreCase(name) ) {
+				it.remove();
+			}
+		}
+	}
+
+	public Header getFirstHeader(String name) {
+		for ( Header h : headers ) {
+			if ( h.getName().equalsIgnoreCase(name) ) {
+				return h;
+			}
+		}
+		return null;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public void setPayload(byte[] payload) {
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the time allowed for the whole exchange, in milliseconds; 0 for none
+	 */
+	public int getDeadlineMillis() {
+		return deadlineMillis;
+	}
+
+	public void setDeadlineMillis(int deadlineMillis) {
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	public boolean isFollowRedirects() {
+		return followRedirects;
+	}
+
+	public void setFollowRedirects(boolean followRedirects) {
+		this.followRedirects = followRedirects;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + url;
+	}
+}
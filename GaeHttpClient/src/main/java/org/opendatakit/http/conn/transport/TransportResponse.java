@@ -0,0 +1,89 @@
+package org.opendatakit.http.conn.transport;
+
+import java.net.URL;
+import java.util.List;
+
+import org.apache.http.Header;
+
+/**
+ * A complete response returned by an {@link HttpTransport}.
+ */
+public class TransportResponse {
+
+	private final int responseCode;
+
+	private final byte[] content;
+
+	private final SpilledContent spilledContent;
+
+	private final URL finalUrl;
+
+	private final List<Header> headers;
+
+	/**
+	 * @param responseCode
+	 * @param content the response body; null if there is none
+	 * @param finalUrl the URL of the last request if redirects were followed
+	 * @param headers
+	 */
+	public TransportResponse(int responseCode, byte[] content, URL finalUrl, List<Header> headers) {
+		this(responseCode, content, null, finalUrl, headers);
+	}
+
+	/**
+	 * @param spilledContent the response body, held off the heap
+	 */
+	public TransportResponse(int responseCode, SpilledContent spilledContent, URL finalUrl, List<Header> headers) {
+		this(responseCode, null, spilledContent, finalUrl, headers);
+	}
+
+	private TransportResponse(int responseCode, byte[] content, SpilledContent spilledContent,
+			URL finalUrl, List<Header> headers) {
+		this.responseCode = responseCode;
+		this.content = content;
+		this.spilledContent = spilledContent;
+		this.finalUrl = finalUrl;
+		this.headers = headers;
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * @return the response body; null if there is none or it was spilled
+	 * to disk
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * @return the response body if it was spilled to disk, else null
+	 */
+	public SpilledContent getSpilledContent() {
+		return spilledContent;
+	}
+
+	/**
+	 * @return the length of the body, wherever it is held; 0 if there is none
+	 */
+	public long getContentLength() {
+		if ( spilledContent != null ) {
+			return spilledContent.getLength();
+		}
+		return (content == null) ? 0L : content.length;
+	}
+
+	public URL getFinalUrl() {
+		return finalUrl;
+	}
+
+	public List<Header> getHeaders() {
+		return headers;
+	}
+
+	public Header getFirstHeader(String name) {
+		return HeaderNames.getFirst(headers, name);
+	}
+}
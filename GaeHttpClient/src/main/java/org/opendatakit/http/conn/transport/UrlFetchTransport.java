@@ -0,0 +1,192 @@
+package org.opendatakit.http.conn.transport;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.Header;
+
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+
+/**
+ * Transport backed by Google AppEngine's URLFetchService.
+ * 
+ * URLFetchService handles all connection lifetime management, so the
+ * pool maintenance methods are no-ops.
+ */
+public class UrlFetchTransport implements HttpTransport {
+
+	private static final int MAX_CACHED_VALUES_PER_NAME = 32;
+
+	/** common request header name to the HTTPHeader instances for its usual values */
+	private static final ConcurrentMap<String, ConcurrentMap<String, HTTPHeader>> fetchHeaders =
+			new ConcurrentHashMap<String, ConcurrentMap<String, HTTPHeader>>();
+
+	private final URLFetchService service;
+
+	public UrlFetchTransport() {
+		this(URLFetchServiceFactory.getURLFetchService());
+	}
+
+	public UrlFetchTransport(URLFetchService service) {
+		if ( service == null ) {
+			throw new IllegalArgumentException("URLFetchService may not be null.");
+		}
+		this.service = service;
+	}
+
+	@Override
+	public TransportResponse fetch(TransportRequest request) throws IOException {
+		return toTransportResponse(service.fetch(toFetchRequest(request)));
+	}
+
+	@Override
+	public Future<TransportResponse> fetchAsync(TransportRequest request) {
+		final HTTPRequest req;
+		try {
+			req = toFetchRequest(request);
+		} catch ( RuntimeException e ) {
+			return new FailedFuture<TransportResponse>(e);
+		}
+		return new ResponseFuture(service.fetchAsync(req));
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTime, TimeUnit unit) {
+		// lifetimes are handled by URLFetchService
+	}
+
+	@Override
+	public void closeExpiredConnections() {
+		// lifetimes are handled by URLFetchService
+	}
+
+	@Override
+	public void shutdown() {
+		// lifetimes are handled by URLFetchService
+	}
+
+	static HTTPRequest toFetchRequest(TransportRequest request) {
+		// default is to throw an exception on a overly-large request
+		// follow redirects (e.g., to https), and to validate server
+		// certificates.
+		FetchOptions f = FetchOptions.Builder.withDefaults();
+		f.disallowTruncate();
+		f.validateCertificate();
+		if ( request.isFollowRedirects() ) {
+			f.followRedirects();
+		} else {
+			f.doNotFollowRedirects();
+		}
+		if ( request.getDeadlineMillis() > 0 ) {
+			f.setDeadline(Double.valueOf(0.001 * (double) request.getDeadlineMillis()));
+		}
+
+		HTTPMethod method;
+		try {
+			method = HTTPMethod.valueOf(request.getMethod());
+		} catch ( IllegalArgumentException e ) {
+			throw new IllegalStateException("Unrecognized Http request method");
+		}
+
+		HTTPRequest req = new HTTPRequest(request.getURL(), method, f);
+		List<Header> headers = request.getHeaders();
+		for ( int i = 0 ; i < headers.size() ; ++i ) {
+			req.addHeader(toFetchHeader(headers.get(i)));
+		}
+		if ( request.getPayload() != null ) {
+			req.setPayload(request.getPayload());
+		}
+		return req;
+	}
+
+	/**
+	 * HTTPHeader is immutable, so the instances for the usual values of
+	 * common request headers (User-Agent, Accept, Host, ...) are kept and
+	 * reused. Values vary for some of them, so at most
+	 * MAX_CACHED_VALUES_PER_NAME are kept per name.
+	 */
+	static HTTPHeader toFetchHeader(Header h) {
+		String name = h.getName();
+		String value = h.getValue();
+		if ( value == null || !HeaderNames.isCommon(name) || isPrivate(name) ) {
+			return new HTTPHeader(name, (value == null) ? "" : value);
+		}
+		ConcurrentMap<String, HTTPHeader> values = fetchHeaders.get(name);
+		if ( values == null ) {
+			values = new ConcurrentHashMap<String, HTTPHeader>();
+			ConcurrentMap<String, HTTPHeader> existing = fetchHeaders.putIfAbsent(name, values);
+			if ( existing != null ) {
+				values = existing;
+			}
+		}
+		HTTPHeader fetchHeader = values.get(value);
+		if ( fetchHeader == null ) {
+			fetchHeader = new HTTPHeader(HeaderNames.intern(name), value);
+			if ( values.size() < MAX_CACHED_VALUES_PER_NAME ) {
+				values.putIfAbsent(value, fetchHeader);
+			}
+		}
+		return fetchHeader;
+	}
+
+	/** credentials and per-user state are never retained */
+	private static boolean isPrivate(String name) {
+		return name.equalsIgnoreCase("Authorization") || name.equalsIgnoreCase("Cookie");
+	}
+
+	/**
+	 * The response headers are wrapped, not copied; they are translated to
+	 * HttpCore headers as they are looked at. Repeated headers (e.g.,
+	 * Set-Cookie) are kept as separate headers.
+	 */
+	static TransportResponse toTransportResponse(HTTPResponse response) {
+		return new TransportResponse(response.getResponseCode(), response.getContent(),
+				response.getFinalUrl(), new FetchedHeaderList(response.getHeadersUncombined()));
+	}
+
+	private static final class ResponseFuture implements Future<TransportResponse> {
+		private final Future<HTTPResponse> fetch;
+
+		ResponseFuture(Future<HTTPResponse> fetch) {
+			this.fetch = fetch;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return fetch.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return fetch.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return fetch.isDone();
+		}
+
+		@Override
+		public TransportResponse get() throws InterruptedException, ExecutionException {
+			return toTransportResponse(fetch.get());
+		}
+
+		@Override
+		public TransportResponse get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			return toTransportResponse(fetch.get(timeout, unit));
+		}
+	}
+}
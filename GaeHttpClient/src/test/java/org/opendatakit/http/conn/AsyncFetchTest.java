@@ -0,0 +1,87 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncFetchTest {
+
+  private static final long LATENCY_MILLIS = 200;
+  private static final int FETCHES = 5;
+
+  private FakeURLFetchService service;
+  private GaeHttpClientConnectionManager manager;
+
+  @Before
+  public void setUp() {
+    service = new FakeURLFetchService(LATENCY_MILLIS);
+    manager = new GaeHttpClientConnectionManager(null, null, null, service);
+  }
+
+  @After
+  public void tearDown() {
+    manager.shutdown();
+    service.shutdown();
+  }
+
+  @Test
+  public void concurrent_fetches_take_about_as_long_as_the_slowest_one() throws Exception {
+    long start = System.nanoTime();
+    List<Future<HttpResponse>> pending = new ArrayList<Future<HttpResponse>>();
+    for (int i = 0; i < FETCHES; ++i) {
+      pending.add(manager.executeAsync(new HttpGet("http://example.org/item/" + i)));
+    }
+    for (int i = 0; i < FETCHES; ++i) {
+      HttpResponse resp = pending.get(i).get();
+      assertThat(resp.getStatusLine().getStatusCode(), is(200));
+      assertThat(EntityUtils.toString(resp.getEntity()), is("http://example.org/item/" + i));
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+    assertThat(service.getFetchCount(), is(FETCHES));
+    assertThat(service.getMaxInFlight(), greaterThan(1));
+    // sequential fetches would take FETCHES * LATENCY_MILLIS
+    assertThat(elapsedMillis, lessThan((FETCHES - 1) * LATENCY_MILLIS));
+  }
+
+  @Test
+  public void metrics_are_rolled_up_per_route() throws Exception {
+    HttpGet get = new HttpGet("http://example.org/");
+    HttpResponse resp = manager.executeAsync(get).get();
+
+    GaeHttpConnectionMetrics route = manager.getRouteMetrics(new HttpRoute(new HttpHost("example.org", 80, "http")));
+    assertThat(route.getRequestCount(), is(1L));
+    assertThat(route.getResponseCount(), is(1L));
+    assertThat(route.getReceivedBytesCount(), is(resp.getEntity().getContentLength()));
+    assertThat(route.getFetchLatency().getMaxNanos(), greaterThan(LATENCY_MILLIS * 1000000L));
+    assertThat(manager.getTotalMetrics().getRequestCount(), is(1L));
+  }
+
+  @Test
+  public void async_fetches_use_the_same_deadline_rules() throws Exception {
+    HttpGet get = new HttpGet("http://example.org/");
+    get.setConfig(RequestConfig.custom().setConnectTimeout(3000).setSocketTimeout(5000).build());
+    manager.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(1000).build());
+
+    manager.executeAsync(get).get();
+
+    // socket timeout (5s) + max(socket, connect) timeouts (5s)
+    assertThat(service.getLastRequest().getFetchOptions().getDeadline(), is(10.0));
+  }
+}
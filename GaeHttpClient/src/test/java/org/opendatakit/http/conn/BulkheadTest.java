@@ -0,0 +1,243 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+  private static final HttpRoute SLOW = new HttpRoute(new HttpHost("slow.example.org"));
+  private static final HttpRoute FAST = new HttpRoute(new HttpHost("fast.example.org"));
+  /** as HttpClient's route planner builds it */
+  private static final HttpRoute SECURE =
+      new HttpRoute(new HttpHost("secure.example.org", 443, "https"), null, true);
+
+  private FakeURLFetchService service;
+  private GaeHttpClientConnectionManager manager;
+  private final ExecutorService waiters = Executors.newSingleThreadExecutor();
+
+  @Before
+  public void setUp() {
+    service = new FakeURLFetchService(0);
+    manager = new GaeHttpClientConnectionManager(null, null, null, service);
+  }
+
+  @After
+  public void tearDown() {
+    waiters.shutdownNow();
+    manager.shutdown();
+    service.shutdown();
+  }
+
+  private HttpClientConnection get(HttpRoute route, long timeoutMillis) throws Exception {
+    return manager.requestConnection(route, null).get(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void a_saturated_route_times_out_without_blocking_other_routes() throws Exception {
+    manager.setDefaultMaxPerRoute(2);
+    get(SLOW, 100);
+    get(SLOW, 100);
+
+    try {
+      get(SLOW, 50);
+      fail("expected the third request on the route to time out");
+    } catch (ConnectionPoolTimeoutException e) {
+      // expected
+    }
+    get(FAST, 50);
+
+    GaeHttpBulkhead slow = manager.getRouteBulkhead(SLOW);
+    assertThat(slow.getInUse(), is(2));
+    assertThat(slow.getTimeoutCount(), is(1L));
+    assertThat(slow.getMaxQueueDepth(), is(1));
+    assertThat(slow.getWaitLatency().getMaxNanos(),
+        greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+    assertThat(manager.getTotalBulkhead().getInUse(), is(3));
+  }
+
+  @Test
+  public void releasing_a_connection_admits_a_waiting_request() throws Exception {
+    manager.setMaxTotal(1);
+    HttpClientConnection first = get(SLOW, 100);
+    Future<HttpClientConnection> second = waiters.submit(new Callable<HttpClientConnection>() {
+      @Override
+      public HttpClientConnection call() throws Exception {
+        return get(FAST, 5000);
+      }
+    });
+    Thread.sleep(50);
+    assertThat(manager.getTotalBulkhead().getQueueDepth(), is(1));
+
+    manager.releaseConnection(first, null, 0, TimeUnit.MILLISECONDS);
+    manager.releaseConnection(second.get(1, TimeUnit.SECONDS), null, 0, TimeUnit.MILLISECONDS);
+
+    assertThat(manager.getTotalBulkhead().getInUse(), is(0));
+    assertThat(manager.getRouteBulkhead(SLOW).getInUse(), is(0));
+  }
+
+  @Test
+  public void cancelling_a_waiting_request_returns_its_route_permit() throws Exception {
+    manager.setMaxTotal(1);
+    get(SLOW, 100);
+    final ConnectionRequest request = manager.requestConnection(FAST, null);
+    Future<HttpClientConnection> waiting = waiters.submit(new Callable<HttpClientConnection>() {
+      @Override
+      public HttpClientConnection call() throws Exception {
+        return request.get(0, TimeUnit.MILLISECONDS);
+      }
+    });
+    Thread.sleep(50);
+    assertThat(request.cancel(), is(true));
+
+    try {
+      waiting.get(1, TimeUnit.SECONDS);
+      fail("expected the cancelled request to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof InterruptedException, is(true));
+    }
+    assertThat(manager.getRouteBulkhead(FAST).getInUse(), is(0));
+  }
+
+  @Test
+  public void lowering_a_limit_waits_for_requests_in_flight() throws Exception {
+    manager.setMaxPerRoute(SLOW, 2);
+    HttpClientConnection a = get(SLOW, 100);
+    get(SLOW, 100);
+    manager.setMaxPerRoute(SLOW, 1);
+    manager.releaseConnection(a, null, 0, TimeUnit.MILLISECONDS);
+
+    try {
+      get(SLOW, 50);
+      fail("expected the route to still be full");
+    } catch (ConnectionPoolTimeoutException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void async_requests_hold_permits_while_their_fetch_is_in_flight() throws Exception {
+    FakeURLFetchService slow = new FakeURLFetchService(500);
+    GaeHttpClientConnectionManager slowManager =
+        new GaeHttpClientConnectionManager(null, null, null, slow);
+    try {
+      slowManager.setMaxTotal(1);
+      Future<HttpResponse> first = slowManager.executeAsync(new HttpGet("http://slow.example.org/a"));
+      assertThat(slowManager.getTotalBulkhead().getInUse(), is(1));
+
+      HttpGet second = new HttpGet("http://fast.example.org/b");
+      second.setConfig(RequestConfig.custom().setConnectionRequestTimeout(50).build());
+      try {
+        slowManager.executeAsync(second);
+        fail("expected the second async request to time out waiting for a permit");
+      } catch (ConnectionPoolTimeoutException e) {
+        // expected
+      }
+      assertThat(slowManager.getRouteBulkhead(FAST).getInUse(), is(0));
+
+      first.get();
+      assertThat(slowManager.getTotalBulkhead().getInUse(), is(0));
+
+      Future<HttpResponse> third = slowManager.executeAsync(second);
+      assertThat(slowManager.getTotalBulkhead().getInUse(), is(1));
+      assertThat(third.cancel(true), is(true));
+      assertThat(slowManager.getTotalBulkhead().getInUse(), is(0));
+    } finally {
+      slowManager.shutdown();
+      slow.shutdown();
+    }
+  }
+
+  @Test
+  public void sync_and_async_requests_to_an_https_host_share_its_route() throws Exception {
+    HttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+    EntityUtils.consume(client.execute(new HttpGet("https://secure.example.org/sync")).getEntity());
+    manager.executeAsync(new HttpGet("https://secure.example.org/async")).get(1, TimeUnit.SECONDS);
+    assertThat(manager.getAllRouteMetrics().keySet(), contains(SECURE));
+    assertThat(manager.getRouteMetrics(SECURE).getRequestCount(), is(2L));
+
+    manager.setMaxPerRoute(SECURE, 1);
+    HttpClientConnection sync = get(SECURE, 100);
+    HttpGet async = new HttpGet("https://secure.example.org/async");
+    async.setConfig(RequestConfig.custom().setConnectionRequestTimeout(50).build());
+    try {
+      manager.executeAsync(async);
+      fail("expected the async request to wait for the sync one's permit");
+    } catch (ConnectionPoolTimeoutException e) {
+      // expected
+    }
+    manager.releaseConnection(sync, null, 0, TimeUnit.MILLISECONDS);
+    manager.executeAsync(async).get(1, TimeUnit.SECONDS);
+    assertThat(manager.getRouteBulkhead(SECURE).getInUse(), is(0));
+  }
+
+  @Test(timeout = 10000)
+  public void a_done_fetch_that_is_never_read_gives_its_permits_back() throws Exception {
+    manager.setMaxPerRoute(SLOW, 1);
+    manager.setMaxTotal(1);
+    Future<HttpResponse> unread = manager.executeAsync(new HttpGet("http://slow.example.org/a"));
+    while (!unread.isDone()) {
+      Thread.sleep(5);
+    }
+
+    // no timeout: this would wait forever if the permits had leaked
+    Future<HttpResponse> next = manager.executeAsync(new HttpGet("http://slow.example.org/b"));
+    next.get();
+    assertThat(manager.getRouteBulkhead(SLOW).getInUse(), is(0));
+    assertThat(manager.getTotalBulkhead().getInUse(), is(0));
+    // the response is still there for a late reader
+    assertThat(unread.get().getStatusLine().getStatusCode(), is(200));
+  }
+
+  @Test(timeout = 10000)
+  public void an_abandoned_future_gives_its_permits_back_to_a_waiting_request() throws Exception {
+    FakeURLFetchService slow = new FakeURLFetchService(200);
+    GaeHttpClientConnectionManager slowManager =
+        new GaeHttpClientConnectionManager(null, null, null, slow);
+    try {
+      slowManager.setMaxTotal(1);
+      Future<HttpResponse> abandoned = slowManager.executeAsync(new HttpGet("http://slow.example.org/a"));
+      try {
+        abandoned.get(10, TimeUnit.MILLISECONDS);
+        fail("expected the fetch to still be running");
+      } catch (TimeoutException e) {
+        // the caller gives up on it
+      }
+
+      // the sync request waits until the abandoned fetch is done
+      HttpClientConnection conn =
+          slowManager.requestConnection(FAST, null).get(0, TimeUnit.MILLISECONDS);
+      assertThat(abandoned.isDone(), is(true));
+      slowManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+      assertThat(slowManager.getTotalBulkhead().getInUse(), is(0));
+    } finally {
+      slowManager.shutdown();
+      slow.shutdown();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+  private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("example.org"));
+  private static final HttpRoute OTHER = new HttpRoute(new HttpHost("other.example.org"));
+
+  private FakeURLFetchService service;
+  private GaeHttpClientConnectionManager manager;
+
+  @Before
+  public void setUp() {
+    service = new FakeURLFetchService(0);
+    manager = new GaeHttpClientConnectionManager(null, null, null, service);
+  }
+
+  @After
+  public void tearDown() {
+    manager.shutdown();
+    service.shutdown();
+  }
+
+  private HttpClientConnection lease(HttpRoute route) {
+    return manager.getConnection(route, null);
+  }
+
+  private void release(HttpClientConnection conn) {
+    manager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void released_connections_are_reused_on_their_route_with_fresh_metrics() throws Exception {
+    HttpClientConnection first = lease(ROUTE);
+    ((GaeHttpConnectionMetrics) first.getMetrics()).recordRequest(100, 1000);
+    release(first);
+
+    assertThat(lease(OTHER), not(sameInstance(first)));
+    HttpClientConnection second = lease(ROUTE);
+    assertThat(second, sameInstance(first));
+    assertThat(second.getMetrics().getRequestCount(), is(0L));
+    assertThat(second.getMetrics().getSentBytesCount(), is(0L));
+    // the rollups keep what the earlier request recorded
+    assertThat(manager.getRouteMetrics(ROUTE).getRequestCount(), is(1L));
+    assertThat(manager.getTotalMetrics().getSentBytesCount(), is(100L));
+  }
+
+  @Test
+  public void at_most_maxIdlePerRoute_connections_are_kept() throws Exception {
+    manager.setMaxIdlePerRoute(2);
+    HttpClientConnection a = lease(ROUTE);
+    HttpClientConnection b = lease(ROUTE);
+    HttpClientConnection c = lease(ROUTE);
+    release(a);
+    release(b);
+    release(c);
+
+    assertThat(lease(ROUTE), sameInstance(a));
+    assertThat(lease(ROUTE), sameInstance(b));
+    HttpClientConnection fresh = lease(ROUTE);
+    assertThat(fresh, not(sameInstance(c)));
+  }
+
+  @Test
+  public void shut_down_connections_are_discarded() throws Exception {
+    HttpClientConnection conn = lease(ROUTE);
+    conn.shutdown();
+    release(conn);
+
+    assertThat(lease(ROUTE), not(sameInstance(conn)));
+  }
+
+  @Test
+  public void a_shut_down_manager_hands_out_no_connections() throws Exception {
+    release(lease(ROUTE));
+    manager.shutdown();
+
+    try {
+      lease(ROUTE);
+      fail("expected the shut down manager to refuse the lease");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
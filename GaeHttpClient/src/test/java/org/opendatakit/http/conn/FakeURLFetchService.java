@@ -0,0 +1,114 @@
+package org.opendatakit.http.conn;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * In-process URLFetchService that answers every request with a 200 response
+ * echoing the request payload (and its Content-Encoding) after a fixed latency. fetchAsync runs the
+ * fetches concurrently, as the real service does.
+ */
+class FakeURLFetchService implements URLFetchService {
+
+  private final long latencyMillis;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "FakeURLFetchService");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  private volatile HTTPRequest lastRequest;
+
+  FakeURLFetchService(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  int getFetchCount() {
+    return fetchCount.get();
+  }
+
+  int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  HTTPRequest getLastRequest() {
+    return lastRequest;
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public HTTPResponse fetch(URL url) throws IOException {
+    return fetch(new HTTPRequest(url));
+  }
+
+  @Override
+  public HTTPResponse fetch(HTTPRequest request) throws IOException {
+    lastRequest = request;
+    fetchCount.incrementAndGet();
+    int now = inFlight.incrementAndGet();
+    int max;
+    while ((max = maxInFlight.get()) < now && !maxInFlight.compareAndSet(max, now)) {
+      // retry
+    }
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+    List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+    headers.add(new HTTPHeader("Content-Type", "text/plain; charset=UTF-8"));
+    byte[] content = request.getPayload();
+    if (content != null) {
+      for (HTTPHeader h : request.getHeaders()) {
+        if (h.getName().equalsIgnoreCase("Content-Encoding")) {
+          headers.add(h);
+        }
+      }
+    } else {
+      content = request.getURL().toString().getBytes("UTF-8");
+    }
+    return new HTTPResponse(200, content, request.getURL(), headers);
+  }
+
+  @Override
+  public Future<HTTPResponse> fetchAsync(URL url) {
+    return fetchAsync(new HTTPRequest(url));
+  }
+
+  @Override
+  public Future<HTTPResponse> fetchAsync(final HTTPRequest request) {
+    return executor.submit(new Callable<HTTPResponse>() {
+      @Override
+      public HTTPResponse call() throws Exception {
+        return fetch(request);
+      }
+    });
+  }
+}
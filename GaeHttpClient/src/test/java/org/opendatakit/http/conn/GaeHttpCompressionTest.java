@@ -0,0 +1,109 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+
+public class GaeHttpCompressionTest {
+
+  private FakeURLFetchService service;
+  private GaeHttpClientConnectionManager manager;
+  private GaeHttpCompression compression;
+  private HttpClient client;
+
+  @Before
+  public void setUp() {
+    service = new FakeURLFetchService(0);
+    manager = new GaeHttpClientConnectionManager(null, null, null, service);
+    compression = new GaeHttpCompression(1024);
+    manager.setCompression(compression);
+    client = HttpClients.custom().setConnectionManager(manager).build();
+  }
+
+  @After
+  public void tearDown() {
+    manager.shutdown();
+    service.shutdown();
+  }
+
+  private static String submission(int rows) {
+    StringBuilder b = new StringBuilder("<data>");
+    for (int i = 0; i < rows; ++i) {
+      b.append("<row><name>respondent</name><value>").append(i).append("</value></row>");
+    }
+    return b.append("</data>").toString();
+  }
+
+  private static String header(HTTPRequest request, String name) {
+    for (HTTPHeader h : request.getHeaders()) {
+      if (h.getName().equalsIgnoreCase(name)) {
+        return h.getValue();
+      }
+    }
+    return null;
+  }
+
+  private HttpResponse post(String body) throws Exception {
+    HttpPost post = new HttpPost("http://example.org/submission");
+    post.setEntity(new StringEntity(body, ContentType.APPLICATION_XML));
+    return client.execute(post);
+  }
+
+  @Test
+  public void large_bodies_are_gzipped_and_gzip_responses_inflated() throws Exception {
+    String body = submission(1000);
+
+    HttpResponse resp = post(body);
+
+    HTTPRequest sent = service.getLastRequest();
+    assertThat(header(sent, "Content-Encoding"), is("gzip"));
+    assertThat(sent.getPayload().length, lessThan(body.length() / 4));
+    // the echoed response came back gzipped and is inflated as it is read
+    assertThat(resp.getFirstHeader("Content-Encoding"), nullValue());
+    assertThat(EntityUtils.toString(resp.getEntity()), is(body));
+    assertThat(compression.getRequestsCompressed(), is(1L));
+    assertThat(compression.getRequestBytesSaved(), is((long) (body.length() - sent.getPayload().length)));
+    assertThat(compression.getResponseBytesSaved(), is(compression.getRequestBytesSaved()));
+  }
+
+  @Test
+  public void small_bodies_are_sent_as_is() throws Exception {
+    String body = submission(2);
+
+    HttpResponse resp = post(body);
+
+    HTTPRequest sent = service.getLastRequest();
+    assertThat(header(sent, "Content-Encoding"), nullValue());
+    assertThat(header(sent, "Accept-Encoding").contains("gzip"), is(true));
+    assertThat(new String(sent.getPayload(), "UTF-8"), is(body));
+    assertThat(EntityUtils.toString(resp.getEntity()), is(body));
+    assertThat(compression.getBytesSaved(), is(0L));
+  }
+
+  @Test
+  public void compression_is_off_unless_installed() throws Exception {
+    manager.setCompression(null);
+    String body = submission(1000);
+
+    post(body);
+
+    assertThat(service.getLastRequest().getPayload().length, is(body.length()));
+    assertThat(compression.getRequestsCompressed(), is(0L));
+  }
+}
@@ -0,0 +1,238 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.TransportRequest;
+import org.opendatakit.http.conn.transport.TransportResponse;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+public class GaeHttpResponseCacheTest {
+
+  /**
+   * Serves a fixed body with the given Cache-Control and an ETag, and
+   * answers matching If-None-Match requests with 304.
+   */
+  private static class EtagService implements URLFetchService {
+    private final String cacheControl;
+    int fetches = 0;
+    int notModified = 0;
+
+    EtagService(String cacheControl) {
+      this.cacheControl = cacheControl;
+    }
+
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException {
+      ++fetches;
+      List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+      headers.add(new HTTPHeader("Cache-Control", cacheControl));
+      headers.add(new HTTPHeader("ETag", "\"v1\""));
+      for (HTTPHeader h : request.getHeaders()) {
+        if (h.getName().equals("If-None-Match") && h.getValue().equals("\"v1\"")) {
+          ++notModified;
+          return new HTTPResponse(304, null, request.getURL(), headers);
+        }
+      }
+      return new HTTPResponse(200, "body".getBytes("UTF-8"), request.getURL(), headers);
+    }
+
+    @Override
+    public HTTPResponse fetch(URL url) throws IOException {
+      return fetch(new HTTPRequest(url));
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(URL url) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(HTTPRequest request) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Answers with the request's Cookie header as the body, cacheable for a
+   * minute, plus any extra response headers.
+   */
+  private static class SessionService extends EtagService {
+    private final String[] extraHeaders;
+
+    SessionService(String... extraHeaders) {
+      super("max-age=60");
+      this.extraHeaders = extraHeaders;
+    }
+
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException {
+      ++fetches;
+      List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+      headers.add(new HTTPHeader("Cache-Control", "max-age=60"));
+      for (int i = 0; i < extraHeaders.length; i += 2) {
+        headers.add(new HTTPHeader(extraHeaders[i], extraHeaders[i + 1]));
+      }
+      String cookie = "";
+      for (HTTPHeader h : request.getHeaders()) {
+        if (h.getName().equals("Cookie")) {
+          cookie = h.getValue();
+        }
+      }
+      return new HTTPResponse(200, cookie.getBytes("UTF-8"), request.getURL(), headers);
+    }
+  }
+
+  /**
+   * Answers with the request's Accept-Encoding as the body, varying on it.
+   */
+  private static class EncodingService extends EtagService {
+    EncodingService() {
+      super("max-age=60");
+    }
+
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException {
+      ++fetches;
+      List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+      headers.add(new HTTPHeader("Cache-Control", "max-age=60"));
+      headers.add(new HTTPHeader("Vary", "Accept-Encoding"));
+      String encoding = "";
+      for (HTTPHeader h : request.getHeaders()) {
+        if (h.getName().equals("Accept-Encoding")) {
+          encoding = h.getValue();
+        }
+      }
+      return new HTTPResponse(200, encoding.getBytes("UTF-8"), request.getURL(), headers);
+    }
+  }
+
+  private static TransportRequest get(String cookie) throws IOException {
+    TransportRequest req = get();
+    req.setHeader(new BasicHeader("Cookie", cookie));
+    return req;
+  }
+
+  private static TransportRequest get() throws IOException {
+    return new TransportRequest(new URL("http://example.org/form.xml"), "GET");
+  }
+
+  @Test
+  public void fresh_responses_are_served_without_a_fetch() throws Exception {
+    EtagService service = new EtagService("max-age=60");
+    HttpTransport transport = new UrlFetchTransport(service);
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1024 * 1024);
+
+    cache.fetch(transport, get());
+    TransportResponse cached = cache.fetch(transport, get());
+
+    assertThat(service.fetches, is(1));
+    assertThat(new String(cached.getContent(), "UTF-8"), is("body"));
+    assertThat(cache.getHitCount(), is(1L));
+    assertThat(cache.getMissCount(), is(1L));
+  }
+
+  @Test
+  public void stale_responses_are_revalidated_with_their_etag() throws Exception {
+    EtagService service = new EtagService("no-cache");
+    HttpTransport transport = new UrlFetchTransport(service);
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1024 * 1024);
+
+    cache.fetch(transport, get());
+    TransportResponse revalidated = cache.fetch(transport, get());
+
+    assertThat(service.fetches, is(2));
+    assertThat(service.notModified, is(1));
+    assertThat(revalidated.getResponseCode(), is(200));
+    assertThat(new String(revalidated.getContent(), "UTF-8"), is("body"));
+    assertThat(cache.getRevalidationCount(), is(1L));
+    assertThat(cache.getNotModifiedCount(), is(1L));
+  }
+
+  @Test
+  public void least_recently_used_entries_are_evicted_by_size() throws Exception {
+    HttpTransport transport = new UrlFetchTransport(new EtagService("max-age=60"));
+    // room for a couple of small entries only
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1000, 1000);
+
+    for (int i = 0; i < 5; ++i) {
+      cache.fetch(transport, new TransportRequest(new URL("http://example.org/" + i), "GET"));
+    }
+
+    assertThat(cache.getEntryCount() < 5, is(true));
+    assertThat(cache.getEvictionCount(), is(5L - cache.getEntryCount()));
+    assertThat(cache.getSize() <= 1000, is(true));
+  }
+
+  @Test
+  public void sessions_with_different_cookies_do_not_share_entries() throws Exception {
+    SessionService service = new SessionService();
+    HttpTransport transport = new UrlFetchTransport(service);
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1024 * 1024);
+
+    TransportResponse alice = cache.fetch(transport, get("JSESSIONID=alice"));
+    TransportResponse bob = cache.fetch(transport, get("JSESSIONID=bob"));
+    TransportResponse aliceAgain = cache.fetch(transport, get("JSESSIONID=alice"));
+
+    assertThat(service.fetches, is(2));
+    assertThat(new String(alice.getContent(), "UTF-8"), is("JSESSIONID=alice"));
+    assertThat(new String(bob.getContent(), "UTF-8"), is("JSESSIONID=bob"));
+    assertThat(new String(aliceAgain.getContent(), "UTF-8"), is("JSESSIONID=alice"));
+    assertThat(cache.getHitCount(), is(1L));
+  }
+
+  @Test
+  public void responses_that_set_cookies_or_are_private_are_not_stored() throws Exception {
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1024 * 1024);
+
+    SessionService login = new SessionService("Set-Cookie", "JSESSIONID=carol");
+    cache.fetch(new UrlFetchTransport(login), get());
+    cache.fetch(new UrlFetchTransport(login), get());
+    assertThat(login.fetches, is(2));
+
+    SessionService personal = new SessionService("Cache-Control", "private");
+    cache.fetch(new UrlFetchTransport(personal), get());
+    cache.fetch(new UrlFetchTransport(personal), get());
+    assertThat(personal.fetches, is(2));
+
+    assertThat(cache.getEntryCount(), is(0));
+    assertThat(cache.getHitCount(), is(0L));
+  }
+
+  @Test
+  public void responses_varying_on_the_encoding_are_kept_per_encoding() throws Exception {
+    EncodingService service = new EncodingService();
+    HttpTransport transport = new UrlFetchTransport(service);
+    GaeHttpResponseCache cache = new GaeHttpResponseCache(1024 * 1024);
+
+    TransportRequest gzip = get();
+    gzip.setHeader(new BasicHeader("Accept-Encoding", "gzip"));
+    TransportRequest identity = get();
+    identity.setHeader(new BasicHeader("Accept-Encoding", "identity"));
+    TransportResponse compressed = cache.fetch(transport, gzip);
+    TransportResponse plain = cache.fetch(transport, identity);
+    TransportResponse unspecified = cache.fetch(transport, get());
+    TransportResponse compressedAgain = cache.fetch(transport, gzip);
+
+    assertThat(service.fetches, is(3));
+    assertThat(new String(compressed.getContent(), "UTF-8"), is("gzip"));
+    assertThat(new String(plain.getContent(), "UTF-8"), is("identity"));
+    assertThat(new String(unspecified.getContent(), "UTF-8"), is(""));
+    assertThat(new String(compressedAgain.getContent(), "UTF-8"), is("gzip"));
+    assertThat(cache.getHitCount(), is(1L));
+  }
+}
@@ -0,0 +1,96 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GaeMultipartEntityTest {
+
+  private static final String BOUNDARY = "odk-submission-boundary";
+  private static final String XML = "<data id=\"survey\"><photo>1.jpg</photo></data>";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File photo(String name, int size) throws Exception {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    File f = folder.newFile(name);
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  private static byte[] written(HttpEntity entity) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    return out.toByteArray();
+  }
+
+  private void assertSameAsHttpmime(HttpMultipartMode mode) throws Exception {
+    File one = photo("1.jpg", 70000);
+    File two = photo("2.jpg", 3);
+    byte[] audio = new byte[] { 1, 2, 3, 4 };
+
+    HttpEntity expected = MultipartEntityBuilder.create().setMode(mode).setBoundary(BOUNDARY)
+        .addPart("xml_submission_file", new StringBody(XML, ContentType.TEXT_XML))
+        .addPart("1.jpg", new FileBody(one, ContentType.create("image/jpeg"), "1.jpg"))
+        .addPart("2.jpg", new FileBody(two, ContentType.create("image/jpeg"), "2.jpg"))
+        .addPart("clip.amr", new ByteArrayBody(audio, ContentType.create("audio/amr"), "clip.amr"))
+        .build();
+    GaeMultipartEntity entity = new GaeMultipartEntity(mode, BOUNDARY)
+        .addPart("xml_submission_file", new StringBody(XML, ContentType.TEXT_XML))
+        .addPart("1.jpg", new FileBody(one, ContentType.create("image/jpeg"), "1.jpg"))
+        .addPart("2.jpg", new FileBody(two, ContentType.create("image/jpeg"), "2.jpg"))
+        .addPart("clip.amr", new ByteArrayBody(audio, ContentType.create("audio/amr"), "clip.amr"));
+
+    byte[] bytes = written(expected);
+    assertThat(entity.getContentType().getValue(), is(expected.getContentType().getValue()));
+    assertThat(entity.getContentLength(), is((long) bytes.length));
+    assertThat(written(entity), is(bytes));
+    // the payload path reads the files straight into the buffer
+    assertThat(PayloadOutputStream.toPayload(entity), is(bytes));
+  }
+
+  @Test
+  public void writes_the_same_bytes_as_httpmime_in_strict_mode() throws Exception {
+    assertSameAsHttpmime(HttpMultipartMode.STRICT);
+  }
+
+  @Test
+  public void writes_the_same_bytes_as_httpmime_in_browser_compatible_mode() throws Exception {
+    assertSameAsHttpmime(HttpMultipartMode.BROWSER_COMPATIBLE);
+  }
+
+  @Test
+  public void a_body_of_unknown_length_makes_the_entity_streaming() throws Exception {
+    GaeMultipartEntity entity = new GaeMultipartEntity(HttpMultipartMode.STRICT, BOUNDARY)
+        .addPart("xml_submission_file", new StringBody(XML, ContentType.TEXT_XML))
+        .addPart("stream", new InputStreamBody(new ByteArrayInputStream(new byte[10]), "s.bin"));
+
+    assertThat(entity.getContentLength(), is(-1L));
+    assertThat(entity.isRepeatable(), is(false));
+    assertThat(entity.isStreaming(), is(true));
+  }
+}
@@ -0,0 +1,80 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+
+public class GaeResponseEntityTest {
+
+  @Test
+  public void wraps_the_content_without_copying_it() throws Exception {
+    byte[] content = "hello".getBytes("UTF-8");
+    GaeResponseEntity entity = new GaeResponseEntity(content,
+        new BasicHeader("Content-Type", "text/plain"), null);
+
+    assertThat(entity.getContentLength(), is(5L));
+    assertThat(entity.isRepeatable(), is(true));
+    assertThat(entity.isStreaming(), is(false));
+    assertThat(entity.getContentType().getValue(), is("text/plain"));
+    assertThat(entity.getContentEncoding(), nullValue());
+
+    // the entity reads straight from the wrapped array
+    content[0] = 'j';
+    assertThat(EntityUtils.toString(entity), is("jello"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertThat(out.toString("UTF-8"), is("jello"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejects_null_content() {
+    new GaeResponseEntity(null, null, null);
+  }
+
+  @Test
+  public void the_last_content_type_and_encoding_headers_win() throws Exception {
+    FakeURLFetchService service = new FakeURLFetchService(0) {
+      @Override
+      public HTTPResponse fetch(HTTPRequest request) throws IOException {
+        List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+        headers.add(new HTTPHeader("Content-Type", "text/plain"));
+        headers.add(new HTTPHeader("Content-Encoding", "identity"));
+        headers.add(new HTTPHeader("Content-Type", "application/xml"));
+        headers.add(new HTTPHeader("Content-Encoding", "x-custom"));
+        return new HTTPResponse(200, "<data/>".getBytes("UTF-8"), request.getURL(), headers);
+      }
+    };
+    GaeHttpClientConnectionManager manager =
+        new GaeHttpClientConnectionManager(null, null, null, service);
+    try {
+      HttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+      HttpResponse resp = client.execute(new HttpGet("http://example.org/form"));
+
+      HttpEntity entity = resp.getEntity();
+      assertThat(entity.getContentType().getValue(), is("application/xml"));
+      assertThat(entity.getContentEncoding().getValue(), is("x-custom"));
+      assertThat(EntityUtils.toString(entity), is("<data/>"));
+    } finally {
+      manager.shutdown();
+      service.shutdown();
+    }
+  }
+}
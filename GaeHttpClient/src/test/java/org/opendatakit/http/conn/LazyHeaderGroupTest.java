@@ -0,0 +1,64 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+
+public class LazyHeaderGroupTest {
+
+  private static HttpResponse response() {
+    List<Header> headers = new ArrayList<Header>(Arrays.<Header> asList(
+        new BasicHeader("Content-Type", "text/xml"),
+        new BasicHeader("Set-Cookie", "a=1"),
+        new BasicHeader("set-cookie", "b=2"),
+        new BasicHeader("Content-Length", "42")));
+    return new GaeHttpResponse(200, headers);
+  }
+
+  @Test
+  public void lookups_by_name_are_case_insensitive() {
+    HttpResponse resp = response();
+    assertThat(resp.getFirstHeader("content-type").getValue(), is("text/xml"));
+    assertThat(resp.getHeaders("SET-COOKIE"), arrayWithSize(2));
+    assertThat(resp.getLastHeader("Set-Cookie").getValue(), is("b=2"));
+    assertThat(resp.containsHeader("ETag"), is(false));
+    assertThat(resp.getAllHeaders(), arrayWithSize(4));
+  }
+
+  @Test
+  public void modifications_behave_like_a_header_group() {
+    HttpResponse resp = response();
+    resp.removeHeaders("Content-Length");
+    resp.addHeader("ETag", "\"v1\"");
+    resp.setHeader("Content-Type", "application/json");
+
+    assertThat(resp.getFirstHeader("Content-Length"), is(nullValue()));
+    assertThat(resp.getFirstHeader("ETag").getValue(), is("\"v1\""));
+    assertThat(resp.getFirstHeader("Content-Type").getValue(), is("application/json"));
+    assertThat(resp.getAllHeaders(), arrayWithSize(4));
+  }
+
+  @Test
+  public void the_name_iterator_can_remove_headers() {
+    HttpResponse resp = response();
+    HeaderIterator it = resp.headerIterator("Set-Cookie");
+    it.nextHeader();
+    it.remove();
+    assertThat(it.nextHeader().getValue(), is("b=2"));
+    assertThat(it.hasNext(), is(false));
+
+    assertThat(resp.getHeaders("Set-Cookie"), arrayWithSize(1));
+    assertThat(resp.getAllHeaders(), arrayWithSize(3));
+  }
+}
@@ -0,0 +1,50 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.Test;
+
+public class PayloadOutputStreamTest {
+
+  private static byte[] bytes(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      b[i] = (byte) i;
+    }
+    return b;
+  }
+
+  @Test
+  public void hands_over_the_backing_array_of_a_byte_array_entity() throws Exception {
+    byte[] content = bytes(100);
+    assertThat(PayloadOutputStream.toPayload(new ByteArrayEntity(content)), is(sameInstance(content)));
+  }
+
+  @Test
+  public void copies_a_slice_of_a_byte_array_entity() throws Exception {
+    byte[] content = bytes(100);
+    byte[] payload = PayloadOutputStream.toPayload(new ByteArrayEntity(content, 10, 20));
+    assertThat(payload, is(not(sameInstance(content))));
+    assertThat(payload, is(Arrays.copyOfRange(content, 10, 30)));
+  }
+
+  @Test
+  public void copies_streamed_entities_of_known_and_unknown_length() throws Exception {
+    byte[] content = bytes(10000);
+    assertThat(PayloadOutputStream.toPayload(
+        new InputStreamEntity(new ByteArrayInputStream(content), content.length)), is(content));
+
+    BasicHttpEntity unknown = new BasicHttpEntity();
+    unknown.setContent(new ByteArrayInputStream(content));
+    assertThat(PayloadOutputStream.toPayload(unknown), is(content));
+  }
+}
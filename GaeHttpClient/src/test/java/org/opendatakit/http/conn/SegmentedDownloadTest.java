@@ -0,0 +1,206 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.TransportRequest;
+import org.opendatakit.http.conn.transport.TransportResponse;
+
+public class SegmentedDownloadTest {
+
+  private static final URI RESOURCE = URI.create("http://example.org/media/photo.jpg");
+
+  /**
+   * Serves one resource, honouring single byte ranges and If-Range.
+   */
+  private static class RangeTransport implements HttpTransport {
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final AtomicInteger fetches = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    volatile byte[] content;
+    volatile String etag = "\"v1\"";
+    volatile boolean rangesSupported = true;
+
+    RangeTransport(byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public TransportResponse fetch(TransportRequest request) throws IOException {
+      fetches.incrementAndGet();
+      int now = inFlight.incrementAndGet();
+      int max;
+      while ((max = maxInFlight.get()) < now && !maxInFlight.compareAndSet(max, now)) {
+        // retry
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      List<Header> headers = new ArrayList<Header>();
+      headers.add(new BasicHeader("ETag", etag));
+      Header range = request.getFirstHeader("Range");
+      Header ifRange = request.getFirstHeader("If-Range");
+      boolean partial = rangesSupported && range != null &&
+          (ifRange == null || ifRange.getValue().equals(etag));
+      if (!partial) {
+        return new TransportResponse(200, content, request.getURL(), headers);
+      }
+      String[] bounds = range.getValue().substring("bytes=".length()).split("-");
+      int first = Integer.parseInt(bounds[0]);
+      int last = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+      headers.add(new BasicHeader("Content-Range",
+          "bytes " + first + "-" + last + "/" + content.length));
+      return new TransportResponse(206, Arrays.copyOfRange(content, first, last + 1),
+          request.getURL(), headers);
+    }
+
+    @Override
+    public Future<TransportResponse> fetchAsync(final TransportRequest request) {
+      return executor.submit(new Callable<TransportResponse>() {
+        @Override
+        public TransportResponse call() throws Exception {
+          return fetch(request);
+        }
+      });
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit unit) {
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+    }
+
+    @Override
+    public void shutdown() {
+      executor.shutdownNow();
+    }
+  }
+
+  private byte[] resource;
+  private RangeTransport transport;
+  private GaeHttpClientConnectionManager manager;
+  private GaeSegmentedDownloader downloader;
+
+  @Before
+  public void setUp() {
+    resource = new byte[10 * 1024 + 17];
+    new Random(42).nextBytes(resource);
+    transport = new RangeTransport(resource);
+    manager = new GaeHttpClientConnectionManager(null, null, null, transport);
+    downloader = new GaeSegmentedDownloader(manager);
+    downloader.setSegmentSize(1024);
+    downloader.setMaxConcurrentSegments(3);
+  }
+
+  @After
+  public void tearDown() {
+    manager.shutdown();
+  }
+
+  @Test
+  public void segments_are_fetched_concurrently_and_reassembled_in_order() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long n = downloader.download(RESOURCE, out);
+
+    assertThat(n, is((long) resource.length));
+    assertThat(Arrays.equals(out.toByteArray(), resource), is(true));
+    assertThat(transport.fetches.get(), is(11));
+    assertThat(transport.maxInFlight.get(), greaterThan(1));
+    assertThat(transport.maxInFlight.get(), lessThanOrEqualTo(3));
+  }
+
+  @Test
+  public void a_server_without_range_support_returns_the_whole_resource() throws Exception {
+    transport.rangesSupported = false;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    downloader.download(RESOURCE, out);
+
+    assertThat(Arrays.equals(out.toByteArray(), resource), is(true));
+    assertThat(transport.fetches.get(), is(1));
+  }
+
+  @Test
+  public void one_segment_at_a_time_still_covers_the_resource() throws Exception {
+    downloader.setMaxConcurrentSegments(1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    downloader.download(RESOURCE, out);
+
+    assertThat(Arrays.equals(out.toByteArray(), resource), is(true));
+    assertThat(transport.maxInFlight.get(), is(1));
+  }
+
+  @Test
+  public void a_resource_that_changes_mid_download_fails_the_download() throws Exception {
+    InputStream in = downloader.open(RESOURCE);
+    transport.etag = "\"v2\"";
+    try {
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) != -1) {
+        // drain
+      }
+      fail("expected the download to fail");
+    } catch (IOException e) {
+      assertThat(e.getMessage().contains("changed"), is(true));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void concurrent_downloads_share_a_bounded_route_without_deadlocking() throws Exception {
+    // two windows of 4 need 8 permits; each download would hold 3 and wait for a 4th
+    manager.setDefaultMaxPerRoute(6);
+    downloader.setMaxConcurrentSegments(GaeSegmentedDownloader.DEFAULT_MAX_CONCURRENT_SEGMENTS);
+    ExecutorService downloads = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      for (int i = 0; i < 2; ++i) {
+        results.add(downloads.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            downloader.download(RESOURCE, out);
+            return out.toByteArray();
+          }
+        }));
+      }
+      for (Future<byte[]> result : results) {
+        assertThat(Arrays.equals(result.get(), resource), is(true));
+      }
+      assertThat(manager.getTotalBulkhead().getInUse(), is(0));
+    } finally {
+      downloads.shutdownNow();
+    }
+  }
+}
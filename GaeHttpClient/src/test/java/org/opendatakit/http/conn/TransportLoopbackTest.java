@@ -0,0 +1,290 @@
+package org.opendatakit.http.conn;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.ResponseSpooler;
+import org.opendatakit.http.conn.transport.SocketTransport;
+import org.opendatakit.http.conn.transport.TransportRequest;
+import org.opendatakit.http.conn.transport.TransportResponse;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drives both transports through a real HttpClient against a loopback server.
+ */
+public class TransportLoopbackTest {
+
+  private static final int REQUESTS = 50;
+
+  /**
+   * Stands in for the URLFetch service outside AppEngine by issuing each
+   * request over its own HttpURLConnection (the SDK's local URLFetch stub
+   * does not run on current JVMs).
+   */
+  private static class LoopbackURLFetchService implements URLFetchService {
+    @Override
+    public HTTPResponse fetch(HTTPRequest request) throws IOException {
+      HttpURLConnection conn = (HttpURLConnection) request.getURL().openConnection();
+      try {
+        conn.setRequestMethod(request.getMethod().name());
+        for (HTTPHeader h : request.getHeaders()) {
+          conn.addRequestProperty(h.getName(), h.getValue());
+        }
+        if (request.getPayload() != null) {
+          conn.setDoOutput(true);
+          OutputStream os = conn.getOutputStream();
+          os.write(request.getPayload());
+          os.close();
+        }
+        int code = conn.getResponseCode();
+        List<HTTPHeader> headers = new ArrayList<HTTPHeader>();
+        for (Map.Entry<String, List<String>> e : conn.getHeaderFields().entrySet()) {
+          if (e.getKey() != null) {
+            for (String value : e.getValue()) {
+              headers.add(new HTTPHeader(e.getKey(), value));
+            }
+          }
+        }
+        return new HTTPResponse(code, readAll(conn.getInputStream()), request.getURL(), headers);
+      } finally {
+        conn.disconnect();
+      }
+    }
+
+    @Override
+    public HTTPResponse fetch(URL url) throws IOException {
+      return fetch(new HTTPRequest(url));
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(URL url) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<HTTPResponse> fetchAsync(HTTPRequest request) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      body.write(buffer, 0, n);
+    }
+    return body.toByteArray();
+  }
+
+  /** answers with the credentials the request carried */
+  private static final HttpHandler CREDENTIALS = new HttpHandler() {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      byte[] out = ("Authorization=" + exchange.getRequestHeaders().getFirst("Authorization") +
+          " Cookie=" + exchange.getRequestHeaders().getFirst("Cookie")).getBytes("UTF-8");
+      exchange.sendResponseHeaders(200, out.length);
+      OutputStream os = exchange.getResponseBody();
+      os.write(out);
+      os.close();
+    }
+  };
+
+  private HttpServer server;
+  private String baseUrl;
+
+  @Before
+  public void setUp() throws IOException {
+    // otherwise Nagle's algorithm on the server's kept-alive connections adds
+    // a delayed-ACK wait to every response
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        // echo the request body, or the request URI when there is none
+        byte[] out = readAll(exchange.getRequestBody());
+        if (out.length == 0) {
+          out = exchange.getRequestURI().toString().getBytes("UTF-8");
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=UTF-8");
+        // a zero length makes the server send the body chunked
+        boolean chunked = exchange.getRequestURI().getPath().startsWith("/chunked");
+        exchange.sendResponseHeaders(200, chunked ? 0 : out.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(out);
+        os.close();
+      }
+    });
+    server.createContext("/credentials", CREDENTIALS);
+    server.createContext("/redirect", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        // redirect to the URL given as the query string
+        exchange.getResponseHeaders().add("Location", exchange.getRequestURI().getQuery());
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private long roundTrips(HttpTransport transport) throws Exception {
+    GaeHttpClientConnectionManager manager =
+        new GaeHttpClientConnectionManager(null, null, null, transport);
+    try {
+      HttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+      long start = System.nanoTime();
+      for (int i = 0; i < REQUESTS; ++i) {
+        HttpResponse resp = client.execute(new HttpGet(baseUrl + "/item/" + i));
+        assertThat(resp.getStatusLine().getStatusCode(), is(200));
+        assertThat(EntityUtils.toString(resp.getEntity()), is("/item/" + i));
+      }
+      HttpPost post = new HttpPost(baseUrl + "/submission");
+      post.setEntity(new StringEntity("<data/>", "UTF-8"));
+      HttpResponse resp = client.execute(post);
+      assertThat(EntityUtils.toString(resp.getEntity()), is("<data/>"));
+      return System.nanoTime() - start;
+    } finally {
+      manager.shutdown();
+    }
+  }
+
+  @Test
+  public void urlfetch_and_socket_transports_return_the_same_responses() throws Exception {
+    long urlFetchNanos = roundTrips(new UrlFetchTransport(new LoopbackURLFetchService()));
+    long socketNanos = roundTrips(new SocketTransport());
+
+    System.out.println(String.format("%d round trips: URLFetch %d ms, SocketTransport %d ms",
+        REQUESTS + 1, TimeUnit.NANOSECONDS.toMillis(urlFetchNanos),
+        TimeUnit.NANOSECONDS.toMillis(socketNanos)));
+  }
+
+  @Test
+  public void socket_transport_spills_large_bodies_to_disk() throws Exception {
+    SocketTransport transport = new SocketTransport();
+    ResponseSpooler spooler = new ResponseSpooler(16 * 1024, null);
+    transport.setResponseSpooler(spooler);
+    GaeHttpClientConnectionManager manager =
+        new GaeHttpClientConnectionManager(null, null, null, transport);
+    try {
+      HttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+      byte[] large = new byte[200 * 1024];
+      new Random(42).nextBytes(large);
+      for (String path : new String[] { "/submission", "/chunked/submission" }) {
+        HttpPost post = new HttpPost(baseUrl + path);
+        post.setEntity(new ByteArrayEntity(large));
+        HttpResponse resp = client.execute(post);
+        assertThat(resp.getEntity().getContentLength(), is((long) large.length));
+        assertThat(Arrays.equals(EntityUtils.toByteArray(resp.getEntity()), large), is(true));
+      }
+      HttpResponse small = client.execute(new HttpGet(baseUrl + "/chunked/item"));
+      assertThat(EntityUtils.toString(small.getEntity()), is("/chunked/item"));
+
+      assertThat(spooler.getSpilledCount(), is(2L));
+      assertThat(spooler.getSpilledBytes(), is(2L * large.length));
+      // reading the entities to the end released their files
+      assertThat(spooler.getHeldBytes(), is(0L));
+    } finally {
+      manager.shutdown();
+    }
+  }
+
+  @Test
+  public void socket_transport_reuses_kept_alive_connections() throws Exception {
+    SocketTransport transport = new SocketTransport();
+    GaeHttpClientConnectionManager manager =
+        new GaeHttpClientConnectionManager(null, null, null, transport);
+    try {
+      HttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+      for (int i = 0; i < REQUESTS; ++i) {
+        EntityUtils.consume(client.execute(new HttpGet(baseUrl + "/item/" + i)).getEntity());
+      }
+
+      assertThat(transport.getConnectionsOpened(), lessThan((long) REQUESTS));
+      assertThat(transport.getConnectionsReused(), greaterThan(0L));
+      assertThat(transport.getIdleConnectionCount(), greaterThan(0));
+
+      manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+
+      assertThat(transport.getIdleConnectionCount(), is(0));
+      assertThat(transport.getConnectionsEvicted(), greaterThan(0L));
+    } finally {
+      manager.shutdown();
+    }
+  }
+
+  @Test
+  public void socket_transport_drops_credentials_on_cross_origin_redirects() throws Exception {
+    HttpServer other = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    other.createContext("/credentials", CREDENTIALS);
+    other.start();
+    SocketTransport transport = new SocketTransport();
+    try {
+      String sameOrigin = baseUrl + "/credentials";
+      String crossOrigin = "http://127.0.0.1:" + other.getAddress().getPort() + "/credentials";
+
+      assertThat(fetchWithCredentials(transport, baseUrl + "/redirect?" + sameOrigin),
+          is("Authorization=Basic YWxpY2U6c2VjcmV0 Cookie=JSESSIONID=alice"));
+      assertThat(fetchWithCredentials(transport, baseUrl + "/redirect?" + crossOrigin),
+          is("Authorization=null Cookie=null"));
+    } finally {
+      transport.shutdown();
+      other.stop(0);
+    }
+  }
+
+  private static String fetchWithCredentials(HttpTransport transport, String url) throws Exception {
+    TransportRequest req = new TransportRequest(new URL(url), "GET");
+    req.addHeader(new BasicHeader("Authorization", "Basic YWxpY2U6c2VjcmV0"));
+    req.addHeader(new BasicHeader("Cookie", "JSESSIONID=alice"));
+    TransportResponse resp = transport.fetch(req);
+    assertThat(resp.getResponseCode(), is(200));
+    return new String(resp.getContent(), "UTF-8");
+  }
+}
\ No newline at end of file
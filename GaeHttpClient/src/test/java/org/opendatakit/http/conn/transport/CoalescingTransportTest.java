@@ -0,0 +1,199 @@
+package org.opendatakit.http.conn.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Test;
+
+public class CoalescingTransportTest {
+
+  private static final int CALLERS = 8;
+
+  /**
+   * Holds every fetch until released, so that concurrent callers overlap.
+   */
+  private static class GatedTransport implements HttpTransport {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger fetches = new AtomicInteger();
+
+    @Override
+    public TransportResponse fetch(TransportRequest request) throws IOException {
+      fetches.incrementAndGet();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      return new TransportResponse(200, "manifest".getBytes("UTF-8"), request.getURL(),
+          new ArrayList<Header>());
+    }
+
+    @Override
+    public Future<TransportResponse> fetchAsync(final TransportRequest request) {
+      FutureTask<TransportResponse> task = new FutureTask<TransportResponse>(
+          new Callable<TransportResponse>() {
+            @Override
+            public TransportResponse call() throws Exception {
+              return fetch(request);
+            }
+          });
+      new Thread(task).start();
+      return task;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit unit) {
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  private final ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  private static TransportRequest get(String auth) throws IOException {
+    TransportRequest req = new TransportRequest(new URL("http://example.org/manifest"), "GET");
+    if (auth != null) {
+      req.addHeader(new BasicHeader("Authorization", auth));
+    }
+    return req;
+  }
+
+  private List<Future<TransportResponse>> fetchConcurrently(final CoalescingTransport transport,
+      final String auth) {
+    List<Future<TransportResponse>> results = new ArrayList<Future<TransportResponse>>();
+    for (int i = 0; i < CALLERS; ++i) {
+      results.add(callers.submit(new Callable<TransportResponse>() {
+        @Override
+        public TransportResponse call() throws Exception {
+          return transport.fetch(get(auth));
+        }
+      }));
+    }
+    return results;
+  }
+
+  private static void awaitWaiters(CoalescingTransport transport, long waiters) throws InterruptedException {
+    long until = System.currentTimeMillis() + 5000;
+    while (transport.getSavedFetchCount() < waiters && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void identical_concurrent_gets_share_one_fetch() throws Exception {
+    GatedTransport delegate = new GatedTransport();
+    CoalescingTransport transport = new CoalescingTransport(delegate);
+
+    List<Future<TransportResponse>> results = fetchConcurrently(transport, null);
+    awaitWaiters(transport, CALLERS - 1);
+    delegate.release.countDown();
+
+    byte[] first = results.get(0).get().getContent();
+    for (Future<TransportResponse> result : results) {
+      byte[] content = result.get().getContent();
+      assertThat(new String(content, "UTF-8"), is("manifest"));
+      if (result != results.get(0)) {
+        assertThat(content, not(sameInstance(first)));
+      }
+    }
+    assertThat(delegate.fetches.get(), is(1));
+    assertThat(transport.getSavedFetchCount(), is((long) CALLERS - 1));
+    assertThat(transport.getInFlightCount(), is(0));
+  }
+
+  @Test
+  public void async_gets_share_one_fetch() throws Exception {
+    GatedTransport delegate = new GatedTransport();
+    CoalescingTransport transport = new CoalescingTransport(delegate);
+
+    Future<TransportResponse> a = transport.fetchAsync(get("token"));
+    Future<TransportResponse> b = transport.fetchAsync(get("token"));
+    delegate.release.countDown();
+
+    assertThat(new String(b.get().getContent(), "UTF-8"), is("manifest"));
+    assertThat(a.get().getContent(), not(sameInstance(b.get().getContent())));
+    assertThat(delegate.fetches.get(), is(1));
+    assertThat(transport.getSavedFetchCount(), is(1L));
+  }
+
+  @Test
+  public void different_credentials_are_not_coalesced() throws Exception {
+    GatedTransport delegate = new GatedTransport();
+    CoalescingTransport transport = new CoalescingTransport(delegate);
+
+    Future<TransportResponse> alice = transport.fetchAsync(get("alice"));
+    Future<TransportResponse> bob = transport.fetchAsync(get("bob"));
+    delegate.release.countDown();
+    alice.get();
+    bob.get();
+
+    assertThat(delegate.fetches.get(), is(2));
+    assertThat(transport.getSavedFetchCount(), is(0L));
+  }
+
+  private static TransportRequest get(String... headers) throws IOException {
+    TransportRequest req = get((String) null);
+    for (int i = 0; i < headers.length; i += 2) {
+      req.addHeader(new BasicHeader(headers[i], headers[i + 1]));
+    }
+    return req;
+  }
+
+  @Test
+  public void different_cookies_are_not_coalesced() throws Exception {
+    GatedTransport delegate = new GatedTransport();
+    CoalescingTransport transport = new CoalescingTransport(delegate);
+
+    Future<TransportResponse> alice = transport.fetchAsync(get("Cookie", "JSESSIONID=alice"));
+    Future<TransportResponse> bob = transport.fetchAsync(get("Cookie", "JSESSIONID=bob"));
+    delegate.release.countDown();
+    alice.get();
+    bob.get();
+
+    assertThat(delegate.fetches.get(), is(2));
+    assertThat(transport.getSavedFetchCount(), is(0L));
+  }
+
+  @Test
+  public void the_key_covers_every_header_but_the_ignored_ones() throws Exception {
+    String plain = CoalescingTransport.keyFor(get());
+
+    assertThat(CoalescingTransport.keyFor(get("Accept", "text/xml")), not(is(plain)));
+    assertThat(CoalescingTransport.keyFor(get("Accept-Encoding", "gzip")), not(is(plain)));
+    assertThat(CoalescingTransport.keyFor(get("Cookie", "a=1")), not(is(plain)));
+    assertThat(CoalescingTransport.keyFor(get("User-Agent", "Collect")), is(plain));
+    // header order and name case do not matter
+    assertThat(CoalescingTransport.keyFor(get("accept", "text/xml", "Cookie", "a=1")),
+        is(CoalescingTransport.keyFor(get("Cookie", "a=1", "Accept", "text/xml"))));
+    assertThat(CoalescingTransport.keyFor(get("Range", "bytes=0-99")), is((String) null));
+  }
+}
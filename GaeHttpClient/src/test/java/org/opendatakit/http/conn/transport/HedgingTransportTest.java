@@ -0,0 +1,158 @@
+package org.opendatakit.http.conn.transport;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.junit.Test;
+
+public class HedgingTransportTest {
+
+  /**
+   * Answers after a scripted latency per call (the last one repeats),
+   * honouring each request's deadline.
+   */
+  private static class ScriptedTransport implements HttpTransport {
+    final long[] latencies;
+    final AtomicInteger calls = new AtomicInteger();
+    final List<TransportRequest> requests = new CopyOnWriteArrayList<TransportRequest>();
+
+    ScriptedTransport(long... latencies) {
+      this.latencies = latencies;
+    }
+
+    @Override
+    public TransportResponse fetch(TransportRequest request) throws IOException {
+      requests.add(request);
+      int call = calls.getAndIncrement();
+      long latency = latencies[Math.min(call, latencies.length - 1)];
+      long deadline = (request.getDeadlineMillis() > 0) ? request.getDeadlineMillis() : Long.MAX_VALUE;
+      try {
+        Thread.sleep(Math.min(latency, deadline));
+      } catch (InterruptedException e) {
+        throw new IOException("cancelled");
+      }
+      if (latency > deadline) {
+        throw new SocketTimeoutException("deadline");
+      }
+      return new TransportResponse(200, Integer.toString(call).getBytes("UTF-8"), request.getURL(),
+          new ArrayList<Header>());
+    }
+
+    @Override
+    public Future<TransportResponse> fetchAsync(final TransportRequest request) {
+      FutureTask<TransportResponse> task = new FutureTask<TransportResponse>(
+          new Callable<TransportResponse>() {
+            @Override
+            public TransportResponse call() throws Exception {
+              return fetch(request);
+            }
+          });
+      Thread t = new Thread(task);
+      t.setDaemon(true);
+      t.start();
+      return task;
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit unit) {
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  private static TransportRequest get(int deadlineMillis) throws IOException {
+    TransportRequest req = new TransportRequest(new URL("http://example.org/token"), "GET");
+    req.setDeadlineMillis(deadlineMillis);
+    return req;
+  }
+
+  private static HedgingTransport warmedUp(ScriptedTransport delegate, int samples) throws IOException {
+    HedgingTransport transport = new HedgingTransport(delegate);
+    transport.setMinSamples(samples);
+    transport.setHedgeDelayLimits(50, 50);
+    for (int i = 0; i < samples; ++i) {
+      transport.fetch(get(0));
+    }
+    return transport;
+  }
+
+  @Test
+  public void a_slow_fetch_is_hedged_and_the_hedge_wins() throws Exception {
+    // 10 quick warm-up calls, then a slow original and a quick hedge
+    ScriptedTransport delegate = new ScriptedTransport(1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2000, 1);
+    HedgingTransport transport = warmedUp(delegate, 10);
+
+    long start = System.nanoTime();
+    TransportResponse resp = transport.fetch(get(0));
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertThat(new String(resp.getContent(), "UTF-8"), is("11"));
+    assertThat(elapsedMillis, lessThan(1000L));
+    assertThat(transport.getHedgesSent(), is(1L));
+    assertThat(transport.getHedgesWon(), is(1L));
+  }
+
+  @Test
+  public void the_hedge_only_gets_what_is_left_of_the_deadline() throws Exception {
+    ScriptedTransport delegate = new ScriptedTransport(1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2000, 1);
+    HedgingTransport transport = warmedUp(delegate, 10);
+
+    transport.fetchAsync(get(1000)).get();
+
+    int hedgeDeadline = delegate.requests.get(11).getDeadlineMillis();
+    assertThat(hedgeDeadline, greaterThan(0));
+    assertThat(hedgeDeadline, lessThanOrEqualTo(950));
+  }
+
+  @Test
+  public void no_hedge_is_sent_once_the_budget_is_spent() throws Exception {
+    ScriptedTransport delegate = new ScriptedTransport(1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2000);
+    HedgingTransport transport = warmedUp(delegate, 10);
+
+    try {
+      // the deadline passes before the hedge delay
+      transport.fetch(get(30));
+      fail("expected the original fetch to time out");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+    assertThat(transport.getHedgesSent(), is(0L));
+  }
+
+  @Test
+  public void hedges_are_limited_to_a_fraction_of_requests() throws Exception {
+    ScriptedTransport delegate = new ScriptedTransport(1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 200);
+    HedgingTransport transport = warmedUp(delegate, 10);
+    transport.setMaxHedgeRatio(0.1);
+
+    for (int i = 0; i < 5; ++i) {
+      transport.fetch(get(0));
+    }
+
+    // 15 requests at 10% allows one hedge
+    assertThat(transport.getHedgesSent(), is(1L));
+  }
+}
@@ -0,0 +1,83 @@
+package org.opendatakit.http.conn.transport;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpilledContentTest {
+
+  private static final int LENGTH = 64 * 1024;
+
+  private final byte[] body = new byte[LENGTH];
+  private final ResponseSpooler spooler = new ResponseSpooler(1024, null);
+
+  private SpilledContent spill() throws IOException {
+    new Random(7).nextBytes(body);
+    Object content = spooler.read(new ByteArrayInputStream(body), -1);
+    assertThat(content instanceof SpilledContent, is(true));
+    return (SpilledContent) content;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void releasing_the_content_frees_it_once_open_streams_are_closed() throws Exception {
+    SpilledContent content = spill();
+    assertThat(spooler.getHeldBytes(), is((long) LENGTH));
+
+    InputStream open = content.openStream();
+    content.release();
+    // a stream opened before the release can still be read to the end
+    assertThat(spooler.getHeldBytes(), is((long) LENGTH));
+    assertThat(Arrays.equals(readAll(open), body), is(true));
+    open.close();
+
+    assertThat(spooler.getHeldBytes(), is(0L));
+    assertThat(spooler.getSpilledBytes(), is((long) LENGTH));
+    try {
+      content.openStream();
+      fail("expected released content to refuse new streams");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      open.read();
+      fail("expected a closed stream to refuse reads");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void shared_content_is_freed_when_every_hold_is_released() throws Exception {
+    SpilledContent content = spill();
+    assertThat(content.retain(), is(true));
+
+    content.release();
+    InputStream in = content.openStream();
+    assertThat(Arrays.equals(readAll(in), body), is(true));
+    in.close();
+    assertThat(spooler.getHeldBytes(), is((long) LENGTH));
+    content.release();
+
+    assertThat(spooler.getHeldBytes(), is(0L));
+    assertThat(content.retain(), is(false));
+  }
+}
@@ -0,0 +1,82 @@
+package org.opendatakit.http.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opendatakit.http.conn.GaeHttpClientConnectionManager;
+
+/**
+ * End-to-end GET through HttpClient and a shared
+ * GaeHttpClientConnectionManager, as Aggregate issues them, from one thread
+ * and from eight threads. The response body is read in full.
+ *
+ * Throughput is the sum over all threads; SampleTime gives the per-request
+ * latency distribution. Add {@code -prof gc} for allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+  @Param({ "5", "100" })
+  public int headerCount;
+
+  @Param({ "1024", "1048576" })
+  public int responseSize;
+
+  private Header[] requestHeaders;
+  private GaeHttpClientConnectionManager connectionManager;
+  private CloseableHttpClient client;
+
+  @Setup
+  public void setUp() {
+    requestHeaders = Fixtures.requestHeaders(headerCount);
+    FakeURLFetchService service = new FakeURLFetchService(200,
+        Fixtures.randomBytes(responseSize), Fixtures.responseHeaders(headerCount));
+    connectionManager = new GaeHttpClientConnectionManager(null, null, null, service);
+    client = HttpClients.custom().setConnectionManager(connectionManager).build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    client.close();
+  }
+
+  private byte[] get() throws Exception {
+    HttpGet get = new HttpGet("http://example.org/formList");
+    Fixtures.addRequestHeaders(get, requestHeaders);
+    return EntityUtils.toByteArray(client.execute(get).getEntity());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] singleThreaded() throws Exception {
+    return get();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public byte[] multiThreaded() throws Exception {
+    return get();
+  }
+}
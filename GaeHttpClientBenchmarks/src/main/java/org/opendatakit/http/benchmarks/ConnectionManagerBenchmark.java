@@ -0,0 +1,114 @@
+package org.opendatakit.http.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.routing.HttpRoute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opendatakit.http.conn.GaeHttpClientConnectionImpl;
+import org.opendatakit.http.conn.GaeHttpClientConnectionManager;
+import org.opendatakit.http.conn.transport.HttpTransport;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * Throughput of a full request cycle through
+ * GaeHttpClientConnectionManager when many threads share one manager.
+ *
+ * The "legacy" manager reproduces the previous behaviour (a synchronized
+ * getConnection that allocates a new connection for every request) as a
+ * baseline. Vary the thread count with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ConnectionManagerBenchmark {
+
+  /**
+   * The connection manager as it was before connection objects were
+   * recycled.
+   */
+  static class LegacyConnectionManager extends GaeHttpClientConnectionManager {
+    private final HttpTransport transport;
+
+    LegacyConnectionManager(URLFetchService service) {
+      this(new UrlFetchTransport(service));
+    }
+
+    private LegacyConnectionManager(HttpTransport transport) {
+      super(null, null, null, transport);
+      this.transport = transport;
+    }
+
+    @Override
+    public synchronized HttpClientConnection getConnection(HttpRoute route, Object state) {
+      return new GaeHttpClientConnectionImpl(route, state, transport);
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long lifeTime, TimeUnit unit) {
+      // no-op
+    }
+  }
+
+  @Param({ "recycling", "legacy" })
+  public String manager;
+
+  @Param({ "1", "16" })
+  public int routeCount;
+
+  private GaeHttpClientConnectionManager connectionManager;
+  private HttpRoute[] routes;
+
+  @Setup
+  public void setUp() {
+    FakeURLFetchService service = new FakeURLFetchService();
+    if ("legacy".equals(manager)) {
+      connectionManager = new LegacyConnectionManager(service);
+    } else {
+      connectionManager = new GaeHttpClientConnectionManager(null, null, null, service);
+    }
+    routes = new HttpRoute[routeCount];
+    for (int i = 0; i < routeCount; ++i) {
+      routes[i] = new HttpRoute(new HttpHost("host" + i + ".example.org", 80, "http"));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    connectionManager.shutdown();
+  }
+
+  @Benchmark
+  public HttpResponse requestCycle() throws Exception {
+    HttpRoute route = routes[(int) (Thread.currentThread().getId() % routes.length)];
+    HttpClientConnection conn = connectionManager.requestConnection(route, null).get(0, TimeUnit.MILLISECONDS);
+    connectionManager.connect(conn, route, 0, null);
+    conn.sendRequestHeader(new HttpGet("/index.html"));
+    conn.flush();
+    HttpResponse resp = conn.receiveResponseHeader();
+    conn.receiveResponseEntity(resp);
+    connectionManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+    return resp;
+  }
+}
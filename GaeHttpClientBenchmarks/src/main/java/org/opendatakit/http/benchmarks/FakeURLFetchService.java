@@ -0,0 +1,64 @@
+package org.opendatakit.http.benchmarks;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * In-process URLFetchService that answers every request immediately with a
+ * canned response, so that the benchmarks only measure the translation work
+ * done by the GaeHttpClient connection.
+ */
+public class FakeURLFetchService implements URLFetchService {
+
+  private final int responseCode;
+  private final byte[] responseContent;
+  private final List<HTTPHeader> responseHeaders;
+
+  public FakeURLFetchService() {
+    this(200, new byte[0], Collections.<HTTPHeader> emptyList());
+  }
+
+  public FakeURLFetchService(int responseCode, byte[] responseContent, List<HTTPHeader> responseHeaders) {
+    this.responseCode = responseCode;
+    this.responseContent = responseContent;
+    this.responseHeaders = new ArrayList<HTTPHeader>(responseHeaders);
+  }
+
+  @Override
+  public HTTPResponse fetch(URL url) throws IOException {
+    return fetch(new HTTPRequest(url));
+  }
+
+  @Override
+  public HTTPResponse fetch(HTTPRequest request) throws IOException {
+    return new HTTPResponse(responseCode, responseContent, request.getURL(), responseHeaders);
+  }
+
+  @Override
+  public Future<HTTPResponse> fetchAsync(URL url) {
+    return fetchAsync(new HTTPRequest(url));
+  }
+
+  @Override
+  public Future<HTTPResponse> fetchAsync(final HTTPRequest request) {
+    FutureTask<HTTPResponse> task = new FutureTask<HTTPResponse>(new Callable<HTTPResponse>() {
+      @Override
+      public HTTPResponse call() throws Exception {
+        return fetch(request);
+      }
+    });
+    task.run();
+    return task;
+  }
+}
@@ -0,0 +1,110 @@
+package org.opendatakit.http.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opendatakit.http.conn.GaeHttpClientConnectionImpl;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+/**
+ * Request payload cost of GaeHttpClientConnectionImpl.flush().
+ *
+ * Run with {@code -prof gc} to see the bytes allocated per request;
+ * {@link #legacyCopy()} reproduces the ByteArrayOutputStream/toByteArray
+ * path that flush() used before and serves as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+
+  @Param({ "1024", "65536", "1048576", "33554432" })
+  public int payloadSize;
+
+  @Param({ "bytearray", "file", "stream" })
+  public String entityType;
+
+  private byte[] data;
+  private File file;
+  private FakeURLFetchService service;
+  private HttpRoute route;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    data = Fixtures.randomBytes(payloadSize);
+    file = File.createTempFile("payload", ".bin");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    service = new FakeURLFetchService();
+    route = new HttpRoute(new HttpHost("example.org", 80, "http"));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+  }
+
+  private HttpEntity newEntity() {
+    if ("bytearray".equals(entityType)) {
+      return new ByteArrayEntity(data);
+    } else if ("file".equals(entityType)) {
+      return new FileEntity(file);
+    } else {
+      return new InputStreamEntity(new ByteArrayInputStream(data), data.length);
+    }
+  }
+
+  @Benchmark
+  public Object flush() throws Exception {
+    HttpPost post = new HttpPost("/submission");
+    post.setEntity(newEntity());
+    GaeHttpClientConnectionImpl conn = new GaeHttpClientConnectionImpl(route, null, new UrlFetchTransport(service));
+    conn.connect(route, SocketConfig.DEFAULT, ConnectionConfig.DEFAULT, RequestConfig.DEFAULT, null);
+    conn.sendRequestHeader(post);
+    conn.flush();
+    Object resp = conn.receiveResponseHeader();
+    conn.close();
+    return resp;
+  }
+
+  @Benchmark
+  public byte[] legacyCopy() throws Exception {
+    ByteArrayOutputStream blobStream = new ByteArrayOutputStream();
+    newEntity().writeTo(blobStream);
+    return blobStream.toByteArray();
+  }
+}
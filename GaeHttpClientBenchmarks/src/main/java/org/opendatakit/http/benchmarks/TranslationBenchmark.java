@@ -0,0 +1,75 @@
+package org.opendatakit.http.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opendatakit.http.conn.GaeHttpClientConnectionImpl;
+import org.opendatakit.http.conn.transport.UrlFetchTransport;
+
+/**
+ * Cost of one request/response translation through a single
+ * GaeHttpClientConnectionImpl: flush() (building the URLFetch request),
+ * receiveResponseHeader() and receiveResponseEntity().
+ *
+ * The response body is not read, so the numbers are the translation
+ * overhead only. SampleTime mode reports latency percentiles; add
+ * {@code -prof gc} for the bytes allocated per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslationBenchmark {
+
+  @Param({ "5", "20", "50", "100" })
+  public int headerCount;
+
+  @Param({ "1024", "65536", "1048576", "33554432" })
+  public int responseSize;
+
+  private Header[] requestHeaders;
+  private GaeHttpClientConnectionImpl conn;
+  private HttpRoute route;
+
+  @Setup
+  public void setUp() {
+    requestHeaders = Fixtures.requestHeaders(headerCount);
+    route = new HttpRoute(new HttpHost("example.org", 80, "http"));
+    FakeURLFetchService service = new FakeURLFetchService(200,
+        Fixtures.randomBytes(responseSize), Fixtures.responseHeaders(headerCount));
+    conn = new GaeHttpClientConnectionImpl(route, null, new UrlFetchTransport(service));
+  }
+
+  @Benchmark
+  public HttpResponse getCycle() throws Exception {
+    HttpGet get = new HttpGet("/formList");
+    Fixtures.addRequestHeaders(get, requestHeaders);
+    conn.connect(route, SocketConfig.DEFAULT, ConnectionConfig.DEFAULT, RequestConfig.DEFAULT, null);
+    conn.sendRequestHeader(get);
+    conn.flush();
+    HttpResponse resp = conn.receiveResponseHeader();
+    conn.receiveResponseEntity(resp);
+    conn.close();
+    return resp;
+  }
+}